@@ -3,6 +3,8 @@ package com.github.blovemaple.backupd;
 import java.nio.file.Path;
 
 import com.beust.jcommander.Parameter;
+import com.github.blovemaple.backupd.machine.BackupController;
+import com.github.blovemaple.backupd.machine.BackupDelayingQueue;
 
 /**
  * @author blovemaple <blovemaple2010(at)gmail.com>
@@ -11,6 +13,15 @@ public class Arguments {
 	@Parameter(names = { "-c", "--config" }, description = "Config file path", required = true)
 	private Path configFilePath;
 
+	@Parameter(names = { "-w", "--workers" }, description = "Number of parallel backup workers")
+	private int workers = BackupController.DEFAULT_WORKER_COUNT;
+
+	@Parameter(names = { "-s", "--state-dir" }, description = "Directory to keep state across restarts")
+	private Path stateDir;
+
+	@Parameter(names = "--max-queued", description = "Max number of queued tasks kept in memory, the rest are spilled to disk")
+	private int maxQueued = BackupDelayingQueue.MAX_MEMORY_TASKS;
+
 	@Parameter(names = "--help", description = "Desplay help", help = true)
 	private boolean help;
 
@@ -22,6 +33,30 @@ public class Arguments {
 		this.configFilePath = configFilePath;
 	}
 
+	public int getWorkers() {
+		return workers;
+	}
+
+	public void setWorkers(int workers) {
+		this.workers = workers;
+	}
+
+	public Path getStateDir() {
+		return stateDir;
+	}
+
+	public void setStateDir(Path stateDir) {
+		this.stateDir = stateDir;
+	}
+
+	public int getMaxQueued() {
+		return maxQueued;
+	}
+
+	public void setMaxQueued(int maxQueued) {
+		this.maxQueued = maxQueued;
+	}
+
 	public boolean isHelp() {
 		return help;
 	}
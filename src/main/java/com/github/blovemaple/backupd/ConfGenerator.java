@@ -11,6 +11,8 @@ import org.apache.commons.lang3.StringUtils;
 
 import com.github.blovemaple.backupd.task.BackupConf;
 import com.github.blovemaple.backupd.task.BackupConf.BackupConfType;
+import com.github.blovemaple.backupd.task.BackupConf.Durability;
+import com.github.blovemaple.backupd.utils.HashAlgorithm;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 
@@ -43,7 +45,19 @@ public class ConfGenerator {
 				conf.setToPath(configLine.getPath());
 				break;
 			case FILTER:
-				conf.setFilter(configLine.getContent());
+				conf.addInclude(configLine.getGlob());
+				break;
+			case EXCLUDE:
+				conf.addExclude(configLine.getGlob());
+				break;
+			case STREAMS:
+				conf.setStreams(configLine.getInt());
+				break;
+			case HASH:
+				conf.setHashAlgorithm(configLine.getHashAlgorithm());
+				break;
+			case DURABILITY:
+				conf.setDurability(configLine.getDurability());
 				break;
 			}
 		});
@@ -55,7 +69,8 @@ public class ConfGenerator {
 		private static final String REMOTE_PATH_SIGN = "remote";
 
 		public static enum ConfigLineType {
-			NAME("backup"), FROM("from"), TO("to"), FILTER("only");
+			NAME("backup"), FROM("from"), TO("to"), FILTER("only"), EXCLUDE("except"), STREAMS("streams"), HASH("hash"),
+			DURABILITY("durability");
 			private final String literal;
 
 			private ConfigLineType(String literal) {
@@ -126,6 +141,37 @@ public class ConfGenerator {
 				return Paths.get(content);
 		}
 
+		public String getGlob() {
+			if (Strings.isNullOrEmpty(content)) {
+				throw new IllegalStateException("Cannot parse glob from empty content of config line: " + line);
+			}
+			return content.trim();
+		}
+
+		public int getInt() {
+			try {
+				return Integer.parseInt(Strings.nullToEmpty(content).trim());
+			} catch (NumberFormatException e) {
+				throw new IllegalStateException("Cannot parse integer from content of config line: " + line);
+			}
+		}
+
+		public HashAlgorithm getHashAlgorithm() {
+			try {
+				return HashAlgorithm.of(Strings.nullToEmpty(content).trim());
+			} catch (IllegalArgumentException e) {
+				throw new IllegalStateException("Cannot parse hash algorithm from content of config line: " + line);
+			}
+		}
+
+		public Durability getDurability() {
+			try {
+				return Durability.valueOf(Strings.nullToEmpty(content).trim().toUpperCase());
+			} catch (IllegalArgumentException e) {
+				throw new IllegalStateException("Cannot parse durability from content of config line: " + line);
+			}
+		}
+
 		public void setContent(String content) {
 			this.content = content;
 		}
@@ -87,7 +87,21 @@ public class Runner {
 			}
 		});
 
-		machine = new BackupMachine();
+		if (arguments.getWorkers() <= 0)
+			showUsageAndExit("Illegal worker count: " + arguments.getWorkers());
+		if (arguments.getMaxQueued() <= 0)
+			showUsageAndExit("Illegal max queued count: " + arguments.getMaxQueued());
+
+		if (arguments.getStateDir() == null) {
+			machine = new BackupMachine(arguments.getWorkers(), arguments.getMaxQueued());
+		} else {
+			try {
+				machine = new BackupMachine(arguments.getWorkers(), arguments.getMaxQueued(), arguments.getStateDir());
+			} catch (IOException e) {
+				showUsageAndExit(
+						"Cannot open state dir: " + arguments.getStateDir() + ": " + e.getLocalizedMessage());
+			}
+		}
 		monitors = confs.stream().map(machine::execute).collect(Collectors.toList());
 	}
 
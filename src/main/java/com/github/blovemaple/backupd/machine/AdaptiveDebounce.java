@@ -0,0 +1,82 @@
+package com.github.blovemaple.backupd.machine;
+
+import com.github.blovemaple.backupd.task.BackupTask;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * 根据每个路径被修改的频率，自适应地决定最后修改时间后延迟执行备份的时间。<br>
+ * 没有记录的路径延迟{@link #MIN_DELAY_MILLIS}。两次修改的间隔超过当前延迟（即上次修改后已经可以备份）但不足当前延迟的{@link #HOT_FACTOR}倍时，
+ * 认为备份刚完成就又被修改，延迟加倍，最多到{@link #MAX_DELAY_SECONDS}；间隔小于当前延迟的视为同一次修改，不改变延迟；
+ * 间隔超过当前延迟的{@link #COOL_FACTOR}倍时恢复到最短延迟。<br>
+ * 一直被修改的文件不会超过{@link #MAX_STALENESS_SECONDS}不备份，由{@link BackupDelayingQueue}保证。
+ *
+ * @author blovemaple <blovemaple2010(at)gmail.com>
+ */
+public class AdaptiveDebounce {
+	/**
+	 * 最短延迟毫秒数，也是没有记录的路径的延迟。
+	 */
+	public static int MIN_DELAY_MILLIS = 500;
+	/**
+	 * 最长延迟秒数。
+	 */
+	public static int MAX_DELAY_SECONDS = 60;
+	/**
+	 * 从第一次提交开始，最多等待多少秒就必须执行备份，无论文件是否仍在被修改。
+	 */
+	public static int MAX_STALENESS_SECONDS = 300;
+	/**
+	 * 修改间隔不足当前延迟的多少倍时加倍延迟。
+	 */
+	public static int HOT_FACTOR = 32;
+	/**
+	 * 修改间隔超过当前延迟的多少倍时恢复到最短延迟。
+	 */
+	public static int COOL_FACTOR = 128;
+	/**
+	 * 最多记录多少个路径的修改频率。
+	 */
+	public static int MAX_TRACKED_PATHS = 100000;
+
+	private final Cache<BackupTask, Heat> heats = CacheBuilder.newBuilder().maximumSize(MAX_TRACKED_PATHS).build();
+
+	/**
+	 * 一个路径的修改频率记录。
+	 */
+	private static class Heat {
+		private long lastModifiedTime;
+		private int level = 0;
+	}
+
+	/**
+	 * 记录任务路径的最后修改时间，并返回应当延迟的毫秒数。
+	 *
+	 * @param task
+	 *            任务
+	 * @param modifiedTime
+	 *            最后修改时间
+	 * @return 延迟毫秒数
+	 */
+	public long delayAfter(BackupTask task, long modifiedTime) {
+		Heat heat = heats.asMap().computeIfAbsent(task, aTask -> new Heat());
+		synchronized (heat) {
+			if (heat.lastModifiedTime > 0 && modifiedTime > heat.lastModifiedTime) {
+				long interval = modifiedTime - heat.lastModifiedTime;
+				long delay = delay(heat.level);
+				if (interval >= delay * COOL_FACTOR)
+					heat.level = 0;
+				else if (interval >= delay && interval < delay * HOT_FACTOR && delay(heat.level + 1) > delay)
+					heat.level++;
+			}
+			if (modifiedTime > heat.lastModifiedTime)
+				heat.lastModifiedTime = modifiedTime;
+			return delay(heat.level);
+		}
+	}
+
+	private static long delay(int level) {
+		return Math.min((long) MIN_DELAY_MILLIS << Math.min(level, 30), MAX_DELAY_SECONDS * 1000L);
+	}
+
+}
@@ -1,11 +1,13 @@
 package com.github.blovemaple.backupd.machine;
 
+import java.io.IOException;
 import java.util.Map;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -14,56 +16,148 @@ import com.github.blovemaple.backupd.task.BackupConf;
 import com.github.blovemaple.backupd.task.BackupTask;
 
 /**
- * 执行备份的控制任务，负责从{@link BackupDelayingQueue}中提取{@link BackupTask}并执行。
- * 
+ * 执行备份的控制任务，负责从{@link BackupDelayingQueue}中提取{@link BackupTask}并执行。多个worker线程同时从队列提取并执行任务，
+ * 每个设备上同时执行的任务数由{@link FileStoreLimiter}限制。
+ *
  * @author blovemaple <blovemaple2010(at)gmail.com>
  */
 public class BackupController implements Runnable {
 	private static final Logger logger = LogManager.getLogger(BackupController.class);
 
+	/**
+	 * 默认的worker线程数。
+	 */
+	public static int DEFAULT_WORKER_COUNT = Math.max(2, Runtime.getRuntime().availableProcessors());
+
 	private final BackupDelayingQueue queue;
 	private final Map<BackupConf, BackupMonitor> monitors;
+	private final int workerCount;
+	private final FileStoreLimiter limiter = new FileStoreLimiter();
+
+	private volatile boolean stopped = false;
 
 	public BackupController(BackupDelayingQueue queue, Map<BackupConf, BackupMonitor> monitors) {
+		this(queue, monitors, DEFAULT_WORKER_COUNT);
+	}
+
+	public BackupController(BackupDelayingQueue queue, Map<BackupConf, BackupMonitor> monitors, int workerCount) {
+		if (workerCount <= 0)
+			throw new IllegalArgumentException("Illegal worker count: " + workerCount);
 		this.queue = queue;
 		this.monitors = monitors;
+		this.workerCount = workerCount;
 	}
 
 	@Override
 	public void run() {
-		logger.info(() -> "Started backup controller.");
+		logger.info(() -> "Started backup controller with " + workerCount + " workers.");
 
-		ExecutorService executor = Executors.newSingleThreadExecutor();
+		ExecutorService workers = Executors.newFixedThreadPool(workerCount);
 		try {
-			while (true) {
-				BackupTask task = queue.fetch(10);
-				if (task != null) {
-					Future<Boolean> future = executor.submit(task);
+			for (int i = 0; i < workerCount; i++)
+				workers.submit(new Worker());
 
-					BackupMonitor monitor = monitors.get(task.conf());
-					if (monitor != null)
-						monitor.taskStarted(task, future);
+			// hold在worker上，直到被中断
+			while (!workers.awaitTermination(1, TimeUnit.DAYS))
+				;
+		} catch (InterruptedException e) {
+			// 线程被中断，直接结束
+		} finally {
+			stopped = true;
+			workers.shutdownNow();
+		}
+	}
+
+	/**
+	 * 循环从队列中提取任务并在当前线程执行。
+	 */
+	private class Worker implements Runnable {
+		@Override
+		public void run() {
+			while (true) {
+				try {
+					// 所在设备上的任务数已满的任务留在队列中，取出的任务已获取到设备上的许可
+					BackupTask task = queue.fetch(10, limiter::tryAcquire);
+					if (task == null)
+						continue;
 
 					try {
-						Boolean backuped = future.get();
-						if (backuped)
-							logger.info(() -> "Completed backup task " + task);
-						else
-							logger.info(() -> "Dropped backup task " + task);
-					} catch (ExecutionException e) {
-						// 为了保证不中止，只打印而不抛出异常
-						logger.error(() -> "Error running backup task: " + task, e);
-					} catch (CancellationException e) {
+						executeSafely(task);
+					} finally {
+						limiter.release(task.conf());
+						// 设备上有了空闲的许可，等待中的worker可以取出该设备上的任务
+						queue.wakeUp();
 					}
-
+				} catch (InterruptedException e) {
+					// 线程被中断，直接结束
+					return;
+				} catch (Exception e) {
+					// 为了保证worker不减少，只打印而不抛出异常
+					logger.error("Backup worker exception.", e);
+					// controller已停止（例如队列已关闭）时直接结束
+					if (stopped)
+						return;
 				}
 			}
-		} catch (InterruptedException e) {
-			// 线程被中断，直接结束
-		} catch (Exception e) {
-			logger.fatal("Backup controller exception.", e);
-		} finally {
-			executor.shutdownNow();
+		}
+
+		/**
+		 * 执行任务，出错时只打印，以便继续执行后续任务。
+		 */
+		private void executeSafely(BackupTask task) throws InterruptedException {
+			try {
+				execute(task);
+			} catch (InterruptedException e) {
+				throw e;
+			} catch (Exception e) {
+				// 为了保证不中止，只打印而不抛出异常
+				logger.error(() -> "Error executing backup task: " + task, e);
+			}
+		}
+
+		private void execute(BackupTask task) throws InterruptedException {
+			BackupMonitor monitor = monitors.get(task.conf());
+			if (monitor != null && monitor.isCancelled()) {
+				// 取出后配置已被取消
+				logger.info(() -> "Dropped backup task " + task);
+				return;
+			}
+
+			FutureTask<Boolean> future = new FutureTask<>(task);
+			if (monitor != null) {
+				// 从日志恢复或从磁盘读回的任务没有运行时状态
+				task.setContext(monitor.context());
+				task.setProgressListener(monitor::bytesCopied);
+				monitor.taskStarted(task, future);
+			}
+
+			future.run();
+			if (monitor != null)
+				monitor.taskFinished(task, future);
+
+			// monitor取消任务时会中断当前线程，清除中断状态以免影响后续任务；controller已停止则直接结束
+			if (Thread.interrupted() && stopped)
+				throw new InterruptedException();
+
+			try {
+				Boolean backuped = future.get();
+				if (backuped)
+					logger.info(() -> "Completed backup task " + task);
+				else
+					logger.info(() -> "Dropped backup task " + task);
+			} catch (ExecutionException e) {
+				// 为了保证不中止，只打印而不抛出异常
+				logger.error(() -> "Error running backup task: " + task, e);
+			} catch (CancellationException e) {
+				// 被取消的任务不算执行完毕
+				return;
+			}
+
+			try {
+				queue.taskDone(task);
+			} catch (IOException e) {
+				logger.error(() -> "Error recording done backup task: " + task, e);
+			}
 		}
 	}
 
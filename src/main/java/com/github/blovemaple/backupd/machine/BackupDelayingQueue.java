@@ -2,26 +2,39 @@ package com.github.blovemaple.backupd.machine;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.NoSuchFileException;
-import java.nio.file.attribute.FileTime;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import com.github.blovemaple.backupd.task.BackupConf;
 import com.github.blovemaple.backupd.task.BackupTask;
+import com.github.blovemaple.backupd.utils.FileSnapshot;
 
 /**
- * 备份任务等待执行备份的队列。源文件最后修改时间后延迟指定时间后才可执行备份，延迟时间由常量{@link #DELAY_SECONDS}指定。
+ * 备份任务等待执行备份的队列。源文件最后修改时间后延迟一段时间后才可执行备份，延迟时间由{@link AdaptiveDebounce}根据每个路径的修改频率决定，
+ * 但从第一次提交起不超过{@link AdaptiveDebounce#MAX_STALENESS_SECONDS}。<br>
+ * 需要延迟的任务放在{@link TimingWheel}中，只由DelayingController线程访问；提交任务时不加锁，只把任务放入收件队列并在需要时唤醒DelayingController。<br>
+ * 获取文件最后修改时间在加锁之外进行，批量提交（{@link #submitAll(List)}）时由多个线程同时获取。<br>
+ * 每个配置的排队中任务同时按路径记录在{@link PathTrie}中，排队中的子树任务会合并其下所有路径的任务。<br>
+ * 内存中排队的任务数达到上限（默认为{@link #MAX_MEMORY_TASKS}）后，新提交的任务溢出到磁盘（{@link TaskSpill}），内存中的任务减少到一半以下时再读回。
  * 
  * @author blovemaple <blovemaple2010(at)gmail.com>
  */
@@ -29,25 +42,94 @@ public class BackupDelayingQueue implements Closeable {
 	private static final Logger logger = LogManager.getLogger(BackupDelayingQueue.class);
 
 	/**
-	 * 最后修改时间后延迟执行备份的秒数。
+	 * 时间轮每个tick的毫秒数，即延迟时间的精度。
 	 */
-	public static int DELAY_SECONDS = 3;
+	public static int TICK_MILLIS = 100;
+
+	/**
+	 * 时间轮的槽数。
+	 */
+	public static int WHEEL_SIZE = 512;
+
+	/**
+	 * 内存中最多排队的任务数的默认值，超过的溢出到磁盘。
+	 */
+	public static int MAX_MEMORY_TASKS = 500000;
+
+	/**
+	 * 批量提交任务时，同时获取文件最后修改时间的最大线程数（包括提交任务的线程）。
+	 */
+	public static int STAT_THREADS = 8;
+
+	// 每个stat线程至少处理的任务数，任务少时不必分给其他线程
+	private static final int MIN_STAT_CHUNK_SIZE = 16;
 
 	private final Map<BackupConf, BackupMonitor> monitors;
+	private final TaskJournal journal;
+	private final int maxMemoryTasks;
+	private final AdaptiveDebounce debounce = new AdaptiveDebounce();
 
-	// 需要延迟等待的任务
-	private Map<BackupTask, Long> readyTimes = new HashMap<>();
-	private PriorityQueue<BackupTask> delayingTasks = new PriorityQueue<>(Comparator.comparing(readyTimes::get));
+	// 需要延迟等待的任务，以及每个任务当前有效的项，按配置分组。任务重新提交后旧的项失效，到期时直接丢弃
+	private final Map<BackupConf, Map<BackupTask, DelayingEntry>> delayingEntries = new ConcurrentHashMap<>();
+	// 新提交的需要延迟的项，由DelayingController放入时间轮
+	private final Queue<DelayingEntry> incomingEntries = new ConcurrentLinkedQueue<>();
 
 	// 可以执行备份的任务
-	private BlockingQueue<BackupTask> readyTasks = new LinkedBlockingQueue<>();
+	private final ReadyTaskSet readyTasks = new ReadyTaskSet();
+
+	// 每个配置的排队中任务（包括需要延迟的和可以执行的），按路径记录，只在对应的trie上加锁
+	private final Map<BackupConf, PathTrie> queuedTries = new ConcurrentHashMap<>();
+
+	// 溢出到磁盘的任务，只允许一个线程读回
+	private final TaskSpill spill;
+	private final Lock refillLock = new ReentrantLock();
+
+	// 批量提交任务时获取文件最后修改时间的线程
+	private final ExecutorService statExecutor;
 
 	private final Thread delayingController;
+	// DelayingController是否没有需要延迟的任务、正在无限期等待
+	private volatile boolean delayingIdle = false;
 
 	private volatile boolean closed = false;
 
 	public BackupDelayingQueue(Map<BackupConf, BackupMonitor> monitors) {
+		this(monitors, null, null);
+	}
+
+	/**
+	 * @param journal
+	 *            任务日志，null表示不记录
+	 * @param spillDir
+	 *            存放溢出任务的目录，null表示需要时创建临时目录
+	 */
+	public BackupDelayingQueue(Map<BackupConf, BackupMonitor> monitors, TaskJournal journal, Path spillDir) {
+		this(monitors, journal, spillDir, MAX_MEMORY_TASKS);
+	}
+
+	/**
+	 * @param journal
+	 *            任务日志，null表示不记录
+	 * @param spillDir
+	 *            存放溢出任务的目录，null表示需要时创建临时目录
+	 * @param maxMemoryTasks
+	 *            内存中最多排队的任务数，超过的溢出到磁盘
+	 */
+	public BackupDelayingQueue(Map<BackupConf, BackupMonitor> monitors, TaskJournal journal, Path spillDir,
+			int maxMemoryTasks) {
+		if (maxMemoryTasks <= 0)
+			throw new IllegalArgumentException("Illegal max memory tasks: " + maxMemoryTasks);
 		this.monitors = monitors;
+		this.journal = journal;
+		this.maxMemoryTasks = maxMemoryTasks;
+		this.spill = new TaskSpill(spillDir);
+
+		AtomicInteger statThreadIndex = new AtomicInteger();
+		statExecutor = Executors.newFixedThreadPool(Math.max(1, STAT_THREADS - 1), runnable -> {
+			Thread thread = new Thread(runnable, "stat-" + statThreadIndex.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		});
 
 		delayingController = new Thread(new DelayingController());
 		delayingController.setName("delaying");
@@ -56,67 +138,68 @@ public class BackupDelayingQueue implements Closeable {
 	}
 
 	/**
-	 * 持续检查{@link BackupDelayingQueue#delayingTasks}中的任务，将ready的移入{@link BackupDelayingQueue#readyTasks}。
+	 * 一个需要延迟的任务及其ready时间。
+	 */
+	private static class DelayingEntry {
+		private final BackupTask task;
+		private final long readyTime;
+		// 此任务第一次提交的时间，重新提交时保留
+		private final long pendingSince;
+
+		private DelayingEntry(BackupTask task, long readyTime, long pendingSince) {
+			this.task = task;
+			this.readyTime = readyTime;
+			this.pendingSince = pendingSince;
+		}
+	}
+
+	/**
+	 * 持续把新提交的延迟任务放入时间轮，并把到期的任务移入{@link BackupDelayingQueue#readyTasks}。
 	 */
 	private class DelayingController implements Runnable {
+		private final TimingWheel<DelayingEntry> wheel = new TimingWheel<>(TICK_MILLIS, WHEEL_SIZE,
+				System.currentTimeMillis());
 
 		@Override
 		public void run() {
-			try {
-				synchronized (delayingTasks) {
-					PEEK_TASK: while (true) {
-						if (Thread.interrupted())
-							return;
-
-						logger.trace(() -> "Starting to peek.");
-
-						// 取delayingTasks队列头（最近将要ready的task），若队列为空则一直等待直到被submit方法notify
-						BackupTask nextReadyTask;
-						while ((nextReadyTask = delayingTasks.peek()) == null) {
-							logger.trace(() -> "Peek empty, waiting.");
-							delayingTasks.wait();
-							logger.trace(() -> "Waked up.");
-						}
-						logger.trace(() -> "Peek " + delayingTasks.peek());
-
-						// 取readyTime
-						Long readyTime = readyTimes.get(nextReadyTask);
-						if (readyTime == null)
-							throw new RuntimeException("No ready time for task: " + nextReadyTask);
-
-						// 计算需要延迟的时间
-						long waitTime = readyTime - System.currentTimeMillis();
-						while (waitTime > 0) {
-							logger.trace(
-									() -> "Delaying time " + (readyTime - System.currentTimeMillis()) + ", waiting.");
-							// 在delayingTasks上等待延迟
-							delayingTasks.wait(waitTime);
-
-							BackupTask nextReadyTaskNow = delayingTasks.peek();
-							if (nextReadyTaskNow != nextReadyTask) {
-								// 等待延迟期间delayingTasks队列头已改变，重新peek
-								logger.trace(() -> "Queue head is changed, repeek.");
-								continue PEEK_TASK;
-							}
-
-							waitTime = readyTime - System.currentTimeMillis();
-						}
-
-						// 将task从delayingTasks移到readyTasks
-						BackupTask readyTask = delayingTasks.poll();
-						if (readyTask != nextReadyTask)
-							throw new RuntimeException("delayingTasks is modified concurrently! nextReadyTask="
-									+ nextReadyTask + ", readyTask=" + readyTask);
-						readyTimes.remove(readyTask);
-						readyTasks.add(readyTask);
-						logger.debug(() -> "Move into readyTasks: " + readyTask);
-					}
-
+			while (!Thread.interrupted()) {
+				long now = System.currentTimeMillis();
+				// 先推进时间轮（空轮时直接跳到当前时间），再放入新提交的项，然后把到期的移出
+				wheel.advance(now, this::moveToReady);
+				DelayingEntry entry;
+				while ((entry = incomingEntries.poll()) != null)
+					wheel.add(entry, entry.readyTime);
+				wheel.advance(now, this::moveToReady);
+
+				if (wheel.isEmpty()) {
+					// 没有需要延迟的任务，一直等待直到submit方法唤醒
+					logger.trace(() -> "Wheel empty, waiting.");
+					delayingIdle = true;
+					if (incomingEntries.isEmpty())
+						LockSupport.park(this);
+					delayingIdle = false;
+				} else {
+					// 等到下一个tick
+					long waitTime = wheel.nextTickTime() - System.currentTimeMillis();
+					if (waitTime > 0)
+						LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(waitTime));
 				}
-			} catch (InterruptedException e) {
-				return;
 			}
+		}
 
+		private void moveToReady(DelayingEntry entry) {
+			// 在trie上加锁，取出任务时看到的任务要么在延迟任务中，要么在readyTasks中
+			PathTrie trie = queuedTries.get(entry.task.conf());
+			if (trie == null)
+				// 配置已被取消，项已随配置删除
+				return;
+			synchronized (trie) {
+				// 只有仍然有效的项才移入readyTasks
+				if (delayingEntriesOf(entry.task.conf()).remove(entry.task, entry)) {
+					readyTasks.add(entry.task);
+					logger.debug(() -> "Move into readyTasks: " + entry.task);
+				}
+			}
 		}
 
 	}
@@ -129,46 +212,254 @@ public class BackupDelayingQueue implements Closeable {
 	 * @throws IOException
 	 */
 	public void submit(BackupTask task) throws InterruptedException, IOException {
+		submitAll(Collections.singletonList(task));
+	}
+
+	/**
+	 * 提交一批备份任务。任务的最后修改时间在不加锁的情况下由多个线程同时获取，之后逐个放入队列。<br>
+	 * 获取某些任务的最后修改时间出错时，其他任务仍然正常提交，最后抛出第一个异常。
+	 *
+	 * @param tasks
+	 * @throws InterruptedException
+	 * @throws IOException
+	 */
+	public void submitAll(List<BackupTask> tasks) throws InterruptedException, IOException {
 		if (Thread.interrupted())
 			throw new InterruptedException();
 		if (closed)
 			throw new IllegalStateException("Already closed.");
+		if (tasks.isEmpty())
+			return;
+
+		for (BackupTask task : tasks) {
+			BackupMonitor monitor = monitors.get(task.conf());
+			if (monitor != null)
+				monitor.taskQueued(task);
+		}
+
+		// 内存中放不下的任务溢出到磁盘。写磁盘是同步的，提交任务的线程会因此慢下来
+		int memoryRoom = Math.max(0, maxMemoryTasks - memoryTaskCount());
+		List<BackupTask> memoryTasks = tasks.size() <= memoryRoom ? tasks : tasks.subList(0, memoryRoom);
+		for (BackupTask task : tasks.subList(memoryTasks.size(), tasks.size())) {
+			spill.add(task);
+			if (journal != null)
+				journal.submitted(task);
+			logger.debug(() -> "Submit into spill: " + task);
+		}
+
+		enqueueAll(memoryTasks, true);
+	}
 
+	/**
+	 * 获取任务的ready时间，然后把任务放入内存中的队列。获取ready时间出错或被中断的任务不放入队列。
+	 *
+	 * @param journaling
+	 *            是否记录到任务日志（溢出时已经记录过的不必再记录）
+	 */
+	private void enqueueAll(List<BackupTask> tasks, boolean journaling) throws InterruptedException, IOException {
+		if (tasks.isEmpty())
+			return;
+
+		long[] readyTimes = new long[tasks.size()];
+		IOException[] errors = new IOException[tasks.size()];
+		try {
+			getReadyTimes(tasks, readyTimes, errors);
+		} catch (InterruptedException e) {
+			tasks.forEach(this::dropFromMonitor);
+			throw e;
+		}
+
+		IOException firstError = null;
+		for (int i = 0; i < tasks.size(); i++) {
+			BackupTask task = tasks.get(i);
+			if (errors[i] != null) {
+				dropFromMonitor(task);
+				if (firstError == null)
+					firstError = errors[i];
+				else
+					firstError.addSuppressed(errors[i]);
+			} else {
+				enqueue(task, monitors.get(task.conf()), readyTimes[i], journaling);
+			}
+		}
+		if (firstError != null)
+			throw firstError;
+	}
+
+	private void dropFromMonitor(BackupTask task) {
 		BackupMonitor monitor = monitors.get(task.conf());
 		if (monitor != null)
-			monitor.taskQueued(task);
-
-		synchronized (delayingTasks) {
-			// 先从队列中删除该任务（如果已经有的话）
-			if (readyTimes.remove(task) != null)
-				delayingTasks.remove(task);
-			else
-				readyTasks.remove(task);
-
-			// 根据readyTime决定放到delayingTasks还是readyTasks
-			long readyTime = getReadyTime(task);
-			if (readyTime <= System.currentTimeMillis()) {
-				// ready
-				readyTasks.put(task);
-				logger.debug(() -> "Submit into readyTasks: " + task);
-			} else {
-				// not ready
-				readyTimes.put(task, readyTime);
-				delayingTasks.add(task);
-				delayingTasks.notify(); // 唤醒DelayingControllerTask
-				logger.debug(() -> "Submit into delayingTasks: " + task);
+			monitor.taskDropped(task);
+	}
+
+	/**
+	 * 把任务放入内存中的队列。只有这里对队列的修改需要加锁。<br>
+	 * 任务日志在trie的锁之外记录，不让写日志拖慢同一配置的其他提交任务的线程。此任务的提交在放入队列之前记录，
+	 * 以免任务被取出时还没有记录；合并掉的和重新排队的任务在放入队列之后记录。
+	 *
+	 * @param readyTime
+	 *            任务的ready时间
+	 * @param journaling
+	 *            是否记录到任务日志（溢出时已经记录过的不必再记录）
+	 */
+	private void enqueue(BackupTask task, BackupMonitor monitor, long readyTime, boolean journaling)
+			throws IOException {
+		if (journal != null && journaling)
+			journal.submitted(task);
+
+		List<BackupTask> requeuedTasks = new ArrayList<>(1);
+		List<BackupTask> mergedTasks = new ArrayList<>(1);
+		PathTrie trie = queuedTries.computeIfAbsent(task.conf(), conf -> new PathTrie());
+		synchronized (trie) {
+			enqueue(trie, task, monitor, readyTime, requeuedTasks, mergedTasks);
+		}
+
+		if (journal != null) {
+			// 溢出时（或重启前）已经记录过的任务不再需要执行
+			for (BackupTask mergedTask : mergedTasks)
+				journal.discarded(mergedTask);
+			for (BackupTask requeuedTask : requeuedTasks)
+				journal.submitted(requeuedTask);
+		}
+	}
+
+	/**
+	 * 在trie上加锁后把任务放入内存中的队列。
+	 *
+	 * @param requeuedTasks
+	 *            存放已被取出、因合并此任务而重新排队的子树任务
+	 * @param mergedTasks
+	 *            存放合并掉的任务
+	 */
+	private void enqueue(PathTrie trie, BackupTask task, BackupMonitor monitor, long readyTime,
+			List<BackupTask> requeuedTasks, List<BackupTask> mergedTasks) {
+		BackupTask coveringTask = trie.findCovering(task.relativePath());
+		if (coveringTask != null && !task.isSubtree()) {
+			// 已有排队中的子树任务覆盖此任务，合并进子树任务，子树任务至少延迟到此任务ready
+			DelayingEntry coveringEntry = delayingEntriesOf(task.conf()).get(coveringTask);
+			if (coveringEntry == null || coveringEntry.readyTime < readyTime) {
+				if (!schedule(coveringTask, readyTime)) {
+					// 子树任务已被取出，重新排队
+					if (monitor != null)
+						monitor.taskQueued(coveringTask);
+					requeuedTasks.add(coveringTask);
+				}
 			}
+			if (monitor != null)
+				monitor.taskDropped(task);
+			// 同一路径上的任务在日志中是同一条，不能记录为丢弃
+			if (!task.equals(coveringTask))
+				mergedTasks.add(task);
+			logger.debug(() -> "Merged into " + coveringTask + ": " + task);
+			return;
 		}
+
+		if (task.isSubtree()) {
+			// 子树任务合并其下所有排队中的任务
+			for (BackupTask coveredTask : trie.removeUnder(task.relativePath())) {
+				DelayingEntry coveredEntry = delayingEntriesOf(task.conf()).remove(coveredTask);
+				if (coveredEntry != null)
+					readyTime = Math.max(readyTime, coveredEntry.readyTime);
+				if (coveredEntry != null || readyTasks.remove(coveredTask)) {
+					if (monitor != null)
+						monitor.taskDropped(coveredTask);
+					if (!coveredTask.equals(task))
+						mergedTasks.add(coveredTask);
+				}
+				logger.debug(() -> "Merged into " + task + ": " + coveredTask);
+			}
+		}
+
+		trie.put(task);
+		if (schedule(task, readyTime) && monitor != null)
+			// 队列中已有此任务，只保留一个
+			monitor.taskDropped(task);
 	}
 
-	private long getReadyTime(BackupTask task) throws IOException {
+	/**
+	 * 根据readyTime把任务放到延迟任务或readyTasks中，如果已经有此任务则先删除。
+	 *
+	 * @return 队列中是否已经有此任务
+	 */
+	private boolean schedule(BackupTask task, long readyTime) {
+		long now = System.currentTimeMillis();
+		Map<BackupTask, DelayingEntry> entries = delayingEntriesOf(task.conf());
+
+		// 一直被修改的任务，从第一次提交起最多延迟MAX_STALENESS_SECONDS
+		DelayingEntry originalEntry = entries.get(task);
+		long pendingSince = originalEntry != null ? originalEntry.pendingSince : now;
+		readyTime = Math.min(readyTime, pendingSince + AdaptiveDebounce.MAX_STALENESS_SECONDS * 1000L);
+
+		if (readyTime <= now) {
+			// ready，先从延迟任务中删除该任务（如果已经有的话），已经ready的会被移到末尾
+			boolean existed = entries.remove(task) != null;
+			existed |= !readyTasks.add(task);
+			logger.debug(() -> "Submit into readyTasks: " + task);
+			return existed;
+		} else {
+			// not ready，新的项替换掉旧的项（如果已经有的话）
+			DelayingEntry entry = new DelayingEntry(task, readyTime, pendingSince);
+			boolean existed = entries.put(task, entry) != null || readyTasks.remove(task);
+			incomingEntries.add(entry);
+			if (delayingIdle)
+				LockSupport.unpark(delayingController); // 唤醒DelayingController
+			logger.debug(() -> "Submit into delayingTasks: " + task);
+			return existed;
+		}
+	}
+
+	/**
+	 * 获取一批任务的ready时间。任务较多时分成几段，除第一段由当前线程处理外，其余交给stat线程同时处理。
+	 *
+	 * @param readyTimes
+	 *            存放每个任务的ready时间
+	 * @param errors
+	 *            存放获取每个任务的ready时间时发生的异常
+	 */
+	private void getReadyTimes(List<BackupTask> tasks, long[] readyTimes, IOException[] errors)
+			throws InterruptedException {
+		int chunkCount = Math.max(1, Math.min(STAT_THREADS, tasks.size() / MIN_STAT_CHUNK_SIZE));
+		int chunkSize = (tasks.size() + chunkCount - 1) / chunkCount;
+
+		List<Future<?>> futures = new ArrayList<>(chunkCount - 1);
 		try {
-			FileTime modifiedTime = Files.getLastModifiedTime(task.fromFullPath());
-			return modifiedTime.toMillis() + DELAY_SECONDS * 1000;
-		} catch (NoSuchFileException e) {
+			for (int start = chunkSize; start < tasks.size(); start += chunkSize) {
+				int chunkStart = start, chunkEnd = Math.min(start + chunkSize, tasks.size());
+				futures.add(statExecutor.submit(() -> getReadyTimes(tasks, chunkStart, chunkEnd, readyTimes, errors)));
+			}
+			getReadyTimes(tasks, 0, Math.min(chunkSize, tasks.size()), readyTimes, errors);
+			for (Future<?> future : futures)
+				future.get();
+		} catch (ExecutionException e) {
+			// 异常都已记录在errors中，不应该出现其他异常
+			throw new RuntimeException(e.getCause());
+		} finally {
+			futures.forEach(future -> future.cancel(true));
+		}
+	}
+
+	private void getReadyTimes(List<BackupTask> tasks, int start, int end, long[] readyTimes,
+			IOException[] errors) {
+		for (int i = start; i < end; i++) {
+			try {
+				readyTimes[i] = getReadyTime(tasks.get(i));
+			} catch (IOException e) {
+				errors[i] = e;
+			}
+		}
+	}
+
+	private long getReadyTime(BackupTask task) throws IOException {
+		// 检测时已经读到元数据的不必再读取
+		FileSnapshot snapshot = task.fromSnapshot();
+		if (snapshot == null)
+			snapshot = FileSnapshot.read(task.fromFullPath());
+		if (!snapshot.exists())
 			// 文件被删除，不delay
 			return System.currentTimeMillis();
-		}
+
+		long modifiedTime = snapshot.modifiedTime().toMillis();
+		return modifiedTime + debounce.delayAfter(task, modifiedTime);
 	}
 
 	/**
@@ -178,20 +469,20 @@ public class BackupDelayingQueue implements Closeable {
 	 *            配置
 	 */
 	public void cancelConf(BackupConf conf) {
-		synchronized (delayingTasks) {
-			Iterator<BackupTask> itr = delayingTasks.iterator();
-			while (itr.hasNext()) {
-				BackupTask task = itr.next();
-				if (task.conf() == conf)
-					itr.remove();
-			}
-		}
+		// 时间轮中失效的项到期时会被丢弃
+		delayingEntries.remove(conf);
 
-		Iterator<BackupTask> itr = readyTasks.iterator();
-		while (itr.hasNext()) {
-			BackupTask task = itr.next();
-			if (task.conf() == conf)
-				itr.remove();
+		readyTasks.removeConf(conf);
+		queuedTries.remove(conf);
+		spill.removeConf(conf);
+
+		if (journal != null) {
+			try {
+				journal.discardedConf(conf);
+			} catch (IOException e) {
+				// 为了保证不中止，只打印而不抛出异常
+				logger.error(() -> "Error recording cancelled conf: " + conf, e);
+			}
 		}
 	}
 
@@ -203,19 +494,124 @@ public class BackupDelayingQueue implements Closeable {
 	 * @return 备份任务，超时返回null
 	 */
 	public BackupTask fetch(int waitingSeconds) throws InterruptedException {
+		return fetch(waitingSeconds, conf -> true);
+	}
+
+	/**
+	 * 取出一个acceptable的配置的备份任务，如无任务可取则等待直到取出或超时。不acceptable的配置的任务留在队列中。<br>
+	 * acceptable返回true时一定会取出该配置的一个任务，可以在其中获取执行许可；acceptable的结果变化时需要调用{@link #wakeUp()}。
+	 *
+	 * @param waitingSeconds
+	 *            等待秒数
+	 * @param acceptable
+	 *            判断是否可以取出指定配置的任务
+	 * @return 备份任务，超时返回null
+	 */
+	public BackupTask fetch(int waitingSeconds, Predicate<BackupConf> acceptable) throws InterruptedException {
 		if (Thread.interrupted())
 			throw new InterruptedException();
 		if (closed)
 			throw new IllegalStateException("Already closed.");
 
-		BackupTask task = readyTasks.poll(waitingSeconds, TimeUnit.SECONDS);
+		refillIfNeeded();
+
+		// 有溢出的任务时不长时间等待，以便及时读回
+		BackupTask task = readyTasks.poll(spill.size() > 0 ? Math.min(waitingSeconds, 1) : waitingSeconds,
+				TimeUnit.SECONDS, acceptable);
+		if (task != null) {
+			if (journal != null)
+				journal.fetched(task);
+			PathTrie trie = queuedTries.get(task.conf());
+			if (trie != null) {
+				synchronized (trie) {
+					// 取出后、加锁前可能已被重新排队（例如作为覆盖新任务的子树任务），此时仍然留在trie中
+					if (!delayingEntriesOf(task.conf()).containsKey(task) && !readyTasks.contains(task))
+						trie.remove(task);
+				}
+			}
+		}
 		logger.debug(() -> "Fetch: " + task);
 		return task;
 	}
 
+	/**
+	 * 唤醒等待取出任务的线程，重新判断是否有acceptable的任务。
+	 */
+	public void wakeUp() {
+		readyTasks.wakeUp();
+	}
+
+	/**
+	 * 内存中的任务减少到一半以下时，读回一批溢出的任务。
+	 */
+	private void refillIfNeeded() throws InterruptedException {
+		if (spill.size() == 0 || memoryTaskCount() > maxMemoryTasks / 2)
+			return;
+		if (!refillLock.tryLock())
+			return;
+		try {
+			// 全部是已取消的配置的任务时读回下一批
+			List<BackupTask> run;
+			do {
+				run = spill.takeRun();
+			} while (run.isEmpty() && spill.size() > 0);
+			List<BackupTask> tasks = run;
+			logger.debug(() -> "Refill " + tasks.size() + " tasks from spill.");
+			enqueueAll(tasks, false);
+		} catch (IOException e) {
+			// 为了保证不中止，只打印而不抛出异常
+			logger.error("Error refilling spilled tasks.", e);
+		} finally {
+			refillLock.unlock();
+		}
+	}
+
+	private int memoryTaskCount() {
+		return delayingEntries.values().stream().mapToInt(Map::size).sum() + readyTasks.size();
+	}
+
+	private Map<BackupTask, DelayingEntry> delayingEntriesOf(BackupConf conf) {
+		return delayingEntries.computeIfAbsent(conf, aConf -> new ConcurrentHashMap<>());
+	}
+
+	/**
+	 * 取出的任务执行完毕（而不是被取消）后调用。
+	 *
+	 * @param task
+	 *            取出的任务
+	 * @throws IOException
+	 */
+	public void taskDone(BackupTask task) throws IOException {
+		if (journal != null)
+			journal.done(task);
+	}
+
+	/**
+	 * 把已提交的任务的日志fsync到存储设备上。之后崩溃时这些任务也能从日志中恢复。
+	 *
+	 * @throws IOException
+	 */
+	public void forceJournal() throws IOException {
+		if (journal != null)
+			journal.force();
+	}
+
 	@Override
 	public void close() {
 		closed = true;
 		delayingController.interrupt();
+		statExecutor.shutdownNow();
+		try {
+			spill.close();
+		} catch (IOException e) {
+			logger.error("Error closing task spill.", e);
+		}
+		if (journal != null) {
+			try {
+				journal.close();
+			} catch (IOException e) {
+				logger.error("Error closing task journal.", e);
+			}
+		}
 	}
 }
@@ -1,31 +1,119 @@
 package com.github.blovemaple.backupd.machine;
 
 import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
 import com.github.blovemaple.backupd.task.BackupConf;
+import com.github.blovemaple.backupd.task.BackupContext;
 import com.github.blovemaple.backupd.task.DetectingTask;
+import com.github.blovemaple.backupd.task.HashIndex;
+import com.github.blovemaple.backupd.utils.HashAlgorithm;
+import com.google.common.hash.Hashing;
 
 /**
  * @author blovemaple <blovemaple2010(at)gmail.com>
  */
 public class BackupMachine implements Closeable {
+	private static final Logger logger = LogManager.getLogger(BackupMachine.class);
+
+	/**
+	 * 状态目录下任务日志的文件名。
+	 */
+	public static final String JOURNAL_FILE_NAME = "queue.journal";
+	/**
+	 * 状态目录下存放溢出任务的目录名。
+	 */
+	public static final String SPILL_DIR_NAME = "spill";
+	/**
+	 * 状态目录下存放哈希值索引的目录名。
+	 */
+	public static final String HASH_INDEX_DIR_NAME = "hashes";
+	/**
+	 * 状态目录下存放完整检测清单的目录名。
+	 */
+	public static final String SCAN_MANIFEST_DIR_NAME = "manifests";
+
+	private final Path stateDir;
+
+	private final TaskJournal journal;
 	private final BackupDelayingQueue queue;
 	private final BackupController backupController;
 	private final Map<BackupConf, BackupMonitor> monitors = Collections.synchronizedMap(new HashMap<>());
+	// 每个配置的哈希值索引，按stateKey和算法共用
+	private final Map<String, HashIndex> hashIndexes = new HashMap<>();
+	private final GroupCommitter groupCommitter = new GroupCommitter();
 
 	private final ExecutorService executor;
 
 	private boolean closed = false;
 
 	public BackupMachine() {
-		queue = new BackupDelayingQueue(monitors);
-		backupController = new BackupController(queue, monitors);
+		this(BackupController.DEFAULT_WORKER_COUNT);
+	}
+
+	/**
+	 * @param workerCount
+	 *            同时执行备份任务的线程数
+	 */
+	public BackupMachine(int workerCount) {
+		this(workerCount, BackupDelayingQueue.MAX_MEMORY_TASKS);
+	}
+
+	/**
+	 * @param workerCount
+	 *            同时执行备份任务的线程数
+	 * @param maxMemoryTasks
+	 *            内存中最多排队的任务数，超过的溢出到磁盘
+	 */
+	public BackupMachine(int workerCount, int maxMemoryTasks) {
+		stateDir = null;
+		journal = null;
+		queue = new BackupDelayingQueue(monitors, null, null, maxMemoryTasks);
+		backupController = new BackupController(queue, monitors, workerCount);
+
+		executor = Executors.newCachedThreadPool();
+		executor.submit(backupController);
+	}
+
+	/**
+	 * @param workerCount
+	 *            同时执行备份任务的线程数
+	 * @param stateDir
+	 *            保存持久化状态的目录，重启后从中恢复未执行完毕的任务
+	 * @throws IOException
+	 *             无法打开状态目录中的任务日志
+	 */
+	public BackupMachine(int workerCount, Path stateDir) throws IOException {
+		this(workerCount, BackupDelayingQueue.MAX_MEMORY_TASKS, stateDir);
+	}
+
+	/**
+	 * @param workerCount
+	 *            同时执行备份任务的线程数
+	 * @param maxMemoryTasks
+	 *            内存中最多排队的任务数，超过的溢出到磁盘
+	 * @param stateDir
+	 *            保存持久化状态的目录，重启后从中恢复未执行完毕的任务
+	 * @throws IOException
+	 *             无法打开状态目录中的任务日志
+	 */
+	public BackupMachine(int workerCount, int maxMemoryTasks, Path stateDir) throws IOException {
+		this.stateDir = stateDir;
+		journal = new TaskJournal(stateDir.resolve(JOURNAL_FILE_NAME));
+		queue = new BackupDelayingQueue(monitors, journal, stateDir.resolve(SPILL_DIR_NAME), maxMemoryTasks);
+		backupController = new BackupController(queue, monitors, workerCount);
 
 		executor = Executors.newCachedThreadPool();
 		executor.submit(backupController);
@@ -41,23 +129,82 @@ public class BackupMachine implements Closeable {
 			if (monitor != null && !monitor.isDone())
 				return monitor;
 
-			monitor = new BackupMonitor(conf, queue);
+			Path scanManifestFile = stateDir == null ? null
+					: stateDir.resolve(SCAN_MANIFEST_DIR_NAME).resolve(
+							Hashing.murmur3_128().hashString(conf.stateKey(), StandardCharsets.UTF_8) + ".manifest");
+			monitor = new BackupMonitor(conf, new BackupContext(hashIndex(conf), groupCommitter, scanManifestFile),
+					queue);
 			monitors.put(conf, monitor);
 		}
 
-		DetectingTask detecting = new DetectingTask(conf, queue);
+		if (journal != null)
+			recover(conf);
+
+		DetectingTask detecting = new DetectingTask(conf, monitor.context(), queue);
 		Future<?> detectingFuture = executor.submit(detecting);
 
 		monitor.detectingStarted(detectingFuture);
 		return monitor;
 	}
 
+	/**
+	 * 返回配置的哈希值索引，没有状态目录时只在内存中。每个状态键和算法一个索引，一直使用到机器关闭，
+	 * 算法变了时之前的配置执行的任务可能还在使用原来的索引，所以不关闭，而是使用另一个索引。
+	 */
+	private HashIndex hashIndex(BackupConf conf) {
+		HashAlgorithm algorithm = conf.getHashAlgorithm();
+		String key = conf.stateKey() + " " + algorithm.id();
+		return hashIndexes.computeIfAbsent(key, k -> {
+			if (stateDir != null) {
+				Path file = stateDir.resolve(HASH_INDEX_DIR_NAME)
+						.resolve(Hashing.murmur3_128().hashString(conf.stateKey(), StandardCharsets.UTF_8) + "."
+								+ algorithm.id() + ".index");
+				try {
+					return new HashIndex(file, algorithm);
+				} catch (IOException e) {
+					logger.error(() -> "Error opening hash index " + file + ", using memory instead.", e);
+				}
+			}
+			return new HashIndex(algorithm);
+		});
+	}
+
+	/**
+	 * 重新提交重启前未执行完毕的任务，这些任务不必等待检测任务发现。没有重新提交的任务仍然保留在日志中，下次启动时再恢复。
+	 */
+	private void recover(BackupConf conf) {
+		List<TaskJournal.Entry> entries = journal.recover(conf);
+		if (entries.isEmpty())
+			return;
+
+		logger.info(() -> "Recovering " + entries.size() + " tasks for " + conf);
+		for (TaskJournal.Entry entry : entries) {
+			try {
+				queue.submit(entry.toTask(conf));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (Exception e) {
+				// 为了保证不中止，只打印而不抛出异常
+				logger.error(() -> "Error recovering task " + entry, e);
+			}
+		}
+	}
+
 	@Override
 	public synchronized void close() {
 		if (!closed) {
 			closed = true;
 			executor.shutdownNow();
 			queue.close();
+			groupCommitter.close();
+			for (HashIndex hashIndex : hashIndexes.values()) {
+				try {
+					hashIndex.close();
+				} catch (IOException e) {
+					logger.error(() -> "Error closing " + hashIndex, e);
+				}
+			}
 		}
 	}
 }
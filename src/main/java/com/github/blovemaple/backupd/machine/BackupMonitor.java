@@ -1,15 +1,15 @@
 package com.github.blovemaple.backupd.machine;
 
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.ArrayList;
 import java.util.Map;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -18,6 +18,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import com.github.blovemaple.backupd.task.BackupConf;
+import com.github.blovemaple.backupd.task.BackupContext;
 import com.github.blovemaple.backupd.task.BackupTask;
 
 /**
@@ -28,9 +29,14 @@ public class BackupMonitor implements Future<Void> {
 	private static final Logger logger = LogManager.getLogger(BackupMonitor.class);
 
 	private BackupConf conf;
+	private final BackupContext context;
 	private Future<?> detectingFuture;
-	private List<BackupTask> queuedTasks = Collections.synchronizedList(new LinkedList<>());
-	private Map<BackupTask, Future<?>> startedTasks = Collections.synchronizedMap(new HashMap<>());
+	// 只记录排队中的任务数，不持有任务本身，以免占用内存
+	private final AtomicInteger queuedTaskCount = new AtomicInteger();
+	// 已开始、尚未执行完毕的任务
+	private Map<BackupTask, Future<?>> startedTasks = new ConcurrentHashMap<>();
+	// 已复制的字节数
+	private final AtomicLong copiedBytes = new AtomicLong();
 
 	private final BackupDelayingQueue queue;
 
@@ -43,7 +49,16 @@ public class BackupMonitor implements Future<Void> {
 	private boolean cancelled = false;
 
 	public BackupMonitor(BackupConf conf, BackupDelayingQueue queue) {
+		this(conf, BackupContext.NONE, queue);
+	}
+
+	/**
+	 * @param context
+	 *            执行配置时的运行时状态，执行此配置的任务时使用
+	 */
+	public BackupMonitor(BackupConf conf, BackupContext context, BackupDelayingQueue queue) {
 		this.conf = conf;
+		this.context = context;
 		this.queue = queue;
 
 		// 创建runningMonitor但不启动，到检测任务开始时再启动
@@ -56,19 +71,40 @@ public class BackupMonitor implements Future<Void> {
 		return conf;
 	}
 
+	/**
+	 * 执行配置时的运行时状态。
+	 */
+	public BackupContext context() {
+		return context;
+	}
+
 	protected synchronized void detectingStarted(Future<?> detectingFuture) {
 		this.detectingFuture = detectingFuture;
 		runningMonitor.start();
 	}
 
 	protected void taskQueued(BackupTask task) {
-		queuedTasks.add(task);
+		queuedTaskCount.incrementAndGet();
+	}
+
+	/**
+	 * 排队中的任务不再需要执行（例如被子树任务合并）。
+	 */
+	protected void taskDropped(BackupTask task) {
+		doneWaitingLock.lock();
+		try {
+			queuedTaskCount.decrementAndGet();
+
+			taskStartCondition.signalAll();
+		} finally {
+			doneWaitingLock.unlock();
+		}
 	}
 
 	protected void taskStarted(BackupTask task, Future<?> future) {
 		doneWaitingLock.lock();
 		try {
-			queuedTasks.remove(task);
+			queuedTaskCount.decrementAndGet();
 			startedTasks.put(task, future);
 
 			taskStartCondition.signalAll();
@@ -77,6 +113,21 @@ public class BackupMonitor implements Future<Void> {
 		}
 	}
 
+	protected void taskFinished(BackupTask task, Future<?> future) {
+		startedTasks.remove(task, future);
+	}
+
+	protected void bytesCopied(long bytes) {
+		copiedBytes.addAndGet(bytes);
+	}
+
+	/**
+	 * 返回此配置的备份任务已复制的字节数，包括复制了一部分的文件。
+	 */
+	public long copiedBytes() {
+		return copiedBytes.get();
+	}
+
 	private class RunningMonitorTask implements Runnable {
 		@Override
 		public void run() {
@@ -90,10 +141,10 @@ public class BackupMonitor implements Future<Void> {
 
 				doneWaitingLock.lock();
 				try {
-					while (!queuedTasks.isEmpty())
+					while (queuedTaskCount.get() > 0)
 						taskStartCondition.await();
 
-					for (Future<?> backupFuture : startedTasks.values()) {
+					for (Future<?> backupFuture : new ArrayList<>(startedTasks.values())) {
 						try {
 							backupFuture.get();
 						} catch (ExecutionException | CancellationException e) {
@@ -119,7 +170,7 @@ public class BackupMonitor implements Future<Void> {
 		if (detectingFuture != null)
 			detectingFuture.cancel(true);
 		queue.cancelConf(conf);
-		for (Future<?> backupFuture : startedTasks.values())
+		for (Future<?> backupFuture : new ArrayList<>(startedTasks.values()))
 			backupFuture.cancel(true);
 
 		logger.info(() -> "Conf cancelled: " + conf);
@@ -0,0 +1,105 @@
+package com.github.blovemaple.backupd.machine;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.github.blovemaple.backupd.task.BackupConf;
+
+/**
+ * 按备份目标所在的{@link FileStore}（即物理设备）限制同时执行的备份任务数，避免多个配置同时写同一块磁盘。<br>
+ * 设备上的任务数已满时，该设备上的任务留在队列中不被取出（见{@link BackupDelayingQueue#fetch(int, java.util.function.Predicate)}），
+ * worker去执行其他设备上的任务。
+ *
+ * @author blovemaple <blovemaple2010(at)gmail.com>
+ */
+class FileStoreLimiter {
+	private static final Logger logger = LogManager.getLogger(FileStoreLimiter.class);
+
+	/**
+	 * 配置中未指定streams时，每个设备上同时执行的任务数。
+	 */
+	public static int DEFAULT_STREAMS = 2;
+
+	private final Map<BackupConf, StoreSlot> slotsByConf = new ConcurrentHashMap<>();
+	private final Map<Object, StoreSlot> slotsByStore = new ConcurrentHashMap<>();
+
+	/**
+	 * 一个设备上的执行许可。
+	 */
+	private static class StoreSlot {
+		private int limit;
+		private int running = 0;
+
+		private StoreSlot(int limit) {
+			this.limit = limit;
+		}
+	}
+
+	/**
+	 * 为配置的一个任务获取执行许可。
+	 *
+	 * @param conf
+	 *            配置
+	 * @return 是否获取到许可，所在设备上的任务数已满时返回false
+	 */
+	public boolean tryAcquire(BackupConf conf) {
+		StoreSlot slot = slotOf(conf);
+		synchronized (slot) {
+			if (slot.running >= slot.limit)
+				return false;
+			slot.running++;
+			return true;
+		}
+	}
+
+	/**
+	 * 任务执行完毕后释放许可。
+	 *
+	 * @param conf
+	 *            配置
+	 */
+	public void release(BackupConf conf) {
+		StoreSlot slot = slotOf(conf);
+		synchronized (slot) {
+			slot.running--;
+		}
+	}
+
+	private StoreSlot slotOf(BackupConf conf) {
+		return slotsByConf.computeIfAbsent(conf, aConf -> {
+			int limit = aConf.getStreams() != null ? aConf.getStreams() : DEFAULT_STREAMS;
+			Object store = storeOf(aConf);
+			StoreSlot slot = slotsByStore.computeIfAbsent(store, aStore -> new StoreSlot(limit));
+			synchronized (slot) {
+				// 多个配置指向同一设备时，取其中最小的限制
+				slot.limit = Math.min(slot.limit, limit);
+			}
+			logger.info(() -> "Backup target of " + aConf + " is on " + store + ", streams limit " + slot.limit);
+			return slot;
+		});
+	}
+
+	private Object storeOf(BackupConf conf) {
+		// toPath可能还不存在，取最近的已存在的上级目录所在的设备
+		Path path = conf.getToPath().toAbsolutePath();
+		while (path != null && Files.notExists(path))
+			path = path.getParent();
+		if (path != null) {
+			try {
+				return Files.getFileStore(path);
+			} catch (IOException e) {
+				logger.warn(() -> "Cannot get file store of " + conf.getToPath(), e);
+			}
+		}
+		// 取不到设备时，单独限制这个配置
+		return conf;
+	}
+
+}
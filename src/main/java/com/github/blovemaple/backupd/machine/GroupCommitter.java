@@ -0,0 +1,306 @@
+package com.github.blovemaple.backupd.machine;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.github.blovemaple.backupd.utils.FileCopying;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+
+/**
+ * 成批fsync已备份的文件（group commit）。备份任务完成后把目标文件（或要改名替换目标文件的临时文件）交给此对象，不等待fsync；
+ * 攒够{@link #MAX_PENDING_BYTES}字节或最早的文件等待了{@link #MAX_DELAY_MILLIS}毫秒时，由单独的线程fsync这一批文件，
+ * 再把临时文件改名替换目标文件，然后fsync它们所在的目录（每个目录一次），最后执行每个文件的提交后操作。<br>
+ * 临时文件fsync之后才改名，崩溃时目标位置上要么是原来的文件，要么是完整的新文件。
+ * 文件在提交前不能被认为与源文件一致（备份任务在提交后操作中才设置源文件的修改时间、记录哈希值），
+ * 这样崩溃时最多丢失最近一批的文件，这些文件与源文件不一致，下次检测时会重新备份。
+ *
+ * @author blovemaple <blovemaple2010(at)gmail.com>
+ */
+public class GroupCommitter implements Closeable {
+	private static final Logger logger = LogManager.getLogger(GroupCommitter.class);
+
+	/**
+	 * 文件交给此对象后最多等待多少毫秒被fsync。
+	 */
+	public static long MAX_DELAY_MILLIS = 1000;
+	/**
+	 * 等待fsync的文件累计多少字节时立即fsync。
+	 */
+	public static long MAX_PENDING_BYTES = 64 * 1024 * 1024;
+
+	private List<PendingFile> pendingFiles = new ArrayList<>();
+	private long pendingBytes = 0;
+	private long firstPendingTime;
+	// 有线程在等待改名，不等到最长延迟
+	private boolean commitRequested = false;
+	private boolean closed = false;
+	// 等待改名替换的目标文件，包括正在提交的
+	private final Multiset<Path> pendingTargets = HashMultiset.create();
+
+	private final AtomicLong committedFiles = new AtomicLong();
+	private final Thread thread;
+
+	public GroupCommitter() {
+		thread = new Thread(this::run, "group-commit");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private static class PendingFile {
+		final Path file;
+		// 要改名为file的临时文件，null表示file已写在原位置
+		final Path tempFile;
+		final Runnable committed;
+		final Runnable finished;
+
+		PendingFile(Path file, Path tempFile, Runnable committed, Runnable finished) {
+			this.file = file;
+			this.tempFile = tempFile;
+			this.committed = committed;
+			this.finished = finished;
+		}
+
+		Path syncedFile() {
+			return tempFile != null ? tempFile : file;
+		}
+	}
+
+	/**
+	 * 添加一个已写完的文件，等待成批fsync。
+	 *
+	 * @see #add(Path, long, Runnable)
+	 */
+	public void add(Path file, long size) {
+		add(file, size, () -> {
+		});
+	}
+
+	/**
+	 * 添加一个已写完的文件，等待成批fsync。已关闭时直接fsync。
+	 *
+	 * @param file
+	 *            文件
+	 * @param size
+	 *            文件的字节数
+	 * @param committed
+	 *            文件和所在目录fsync之后执行，在提交的线程中执行；fsync失败时不执行
+	 */
+	public void add(Path file, long size, Runnable committed) {
+		add(new PendingFile(file, null, committed, () -> {
+		}), size);
+	}
+
+	/**
+	 * 添加一个已写完的临时文件，等待成批fsync后改名替换目标文件。已关闭时直接提交。<br>
+	 * 改名之前目标文件仍是原来的文件，再次修改目标文件之前要先{@link #awaitReplaced(Path)}。
+	 *
+	 * @param tempFile
+	 *            临时文件
+	 * @param file
+	 *            目标文件
+	 * @param size
+	 *            文件的字节数
+	 * @param committed
+	 *            临时文件fsync、改名、所在目录fsync之后执行，在提交的线程中执行；fsync或改名失败时不执行
+	 * @param finished
+	 *            无论是否成功，处理完毕后执行（失败时临时文件已删除）
+	 */
+	public void addReplacing(Path tempFile, Path file, long size, Runnable committed, Runnable finished) {
+		add(new PendingFile(file, tempFile, committed, finished), size);
+	}
+
+	private void add(PendingFile pending, long size) {
+		synchronized (this) {
+			if (!closed) {
+				if (pendingFiles.isEmpty()) {
+					firstPendingTime = System.currentTimeMillis();
+					notifyAll();
+				}
+				pendingFiles.add(pending);
+				if (pending.tempFile != null)
+					pendingTargets.add(pending.file);
+				pendingBytes += size;
+				if (pendingBytes >= MAX_PENDING_BYTES)
+					notifyAll();
+				return;
+			}
+		}
+		commit(Collections.singletonList(pending));
+	}
+
+	/**
+	 * 等待之前添加的改名替换指定目标文件的临时文件提交完毕，并让等待中的文件立即提交。
+	 */
+	public synchronized void awaitReplaced(Path file) throws InterruptedException {
+		while (pendingTargets.contains(file)) {
+			commitRequested = true;
+			notifyAll();
+			wait();
+		}
+	}
+
+	/**
+	 * 已fsync的文件数。
+	 */
+	public long committedFiles() {
+		return committedFiles.get();
+	}
+
+	private void run() {
+		try {
+			while (true) {
+				List<PendingFile> batch;
+				synchronized (this) {
+					while (!closed && !isBatchReady())
+						wait(pendingFiles.isEmpty() ? 0
+								: Math.max(1, firstPendingTime + MAX_DELAY_MILLIS - System.currentTimeMillis()));
+					if (pendingFiles.isEmpty())
+						// 已关闭且没有剩余的文件
+						return;
+					batch = pendingFiles;
+					pendingFiles = new ArrayList<>();
+					pendingBytes = 0;
+					commitRequested = false;
+				}
+				try {
+					commit(batch);
+				} finally {
+					synchronized (this) {
+						batch.stream().filter(pending -> pending.tempFile != null)
+								.forEach(pending -> pendingTargets.remove(pending.file));
+						notifyAll();
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			// 线程被中断，直接结束
+		}
+	}
+
+	private boolean isBatchReady() {
+		return !pendingFiles.isEmpty() && (commitRequested || pendingBytes >= MAX_PENDING_BYTES
+				|| System.currentTimeMillis() >= firstPendingTime + MAX_DELAY_MILLIS);
+	}
+
+	private void commit(List<PendingFile> batch) {
+		try {
+			// fsync失败的文件不能认为已写到存储设备上，不执行提交后操作，下次检测时会重新备份
+			Map<Path, Boolean> synced = new HashMap<>();
+			for (PendingFile pending : batch)
+				synced.computeIfAbsent(pending.syncedFile(), this::sync);
+
+			// 按添加的顺序改名，同一目标文件后添加的替换先添加的
+			Set<PendingFile> committedBatch = new LinkedHashSet<>();
+			for (PendingFile pending : batch) {
+				if (!synced.get(pending.syncedFile()))
+					continue;
+				if (pending.tempFile != null && !replace(pending))
+					continue;
+				committedBatch.add(pending);
+			}
+			batch.stream().filter(pending -> pending.tempFile != null && !committedBatch.contains(pending))
+					.forEach(pending -> deleteTempFile(pending.tempFile));
+
+			Set<Path> dirs = new LinkedHashSet<>();
+			committedBatch.stream().filter(pending -> pending.file.getParent() != null)
+					.forEach(pending -> dirs.add(pending.file.getParent()));
+			dirs.forEach(FileCopying::syncDirectory);
+
+			for (PendingFile pending : committedBatch) {
+				try {
+					pending.committed.run();
+				} catch (Exception e) {
+					// 为了保证不中止，只打印而不抛出异常
+					logger.error(() -> "Error after committing " + pending.file, e);
+				}
+			}
+
+			long fileCount = committedBatch.stream().map(pending -> pending.file).distinct().count();
+			committedFiles.addAndGet(fileCount);
+			logger.debug(() -> "Committed " + fileCount + " files in " + dirs.size() + " directories.");
+		} finally {
+			for (PendingFile pending : batch) {
+				try {
+					pending.finished.run();
+				} catch (Exception e) {
+					// 为了保证不中止，只打印而不抛出异常
+					logger.error(() -> "Error finishing " + pending.file, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * fsync一个文件。
+	 *
+	 * @return 是否成功
+	 */
+	private boolean sync(Path file) {
+		try {
+			FileCopying.sync(file);
+		} catch (NoSuchFileException e) {
+			// 已被删除或替换，替换它的文件会另外提交；临时文件不存在时改名会失败
+		} catch (IOException e) {
+			logger.error(() -> "Error syncing " + file, e);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 把临时文件改名替换目标文件。
+	 *
+	 * @return 是否成功
+	 */
+	private boolean replace(PendingFile pending) {
+		try {
+			Files.move(pending.tempFile, pending.file, StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+			return true;
+		} catch (IOException e) {
+			logger.error(() -> "Error replacing " + pending.file, e);
+			return false;
+		}
+	}
+
+	private void deleteTempFile(Path tempFile) {
+		try {
+			Files.deleteIfExists(tempFile);
+		} catch (IOException e) {
+			logger.error(() -> "Error deleting temp file " + tempFile, e);
+		}
+	}
+
+	/**
+	 * fsync所有剩余的文件后结束线程。
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
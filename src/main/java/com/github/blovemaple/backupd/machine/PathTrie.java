@@ -0,0 +1,132 @@
+package com.github.blovemaple.backupd.machine;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.github.blovemaple.backupd.task.BackupTask;
+
+/**
+ * 按相对路径组织的一个配置的排队中任务，用于找出覆盖某个路径的子树任务，以及子树任务覆盖的所有任务。<br>
+ * 非线程安全，由使用者加锁。
+ *
+ * @author blovemaple <blovemaple2010(at)gmail.com>
+ */
+class PathTrie {
+	private final Node root = new Node(null, null);
+
+	private static class Node {
+		private final Node parent;
+		private final Path name;
+		private Map<Path, Node> children;
+		private BackupTask task;
+
+		private Node(Node parent, Path name) {
+			this.parent = parent;
+			this.name = name;
+		}
+
+		private Node child(Path name, boolean create) {
+			if (children == null) {
+				if (!create)
+					return null;
+				children = new HashMap<>();
+			}
+			Node child = children.get(name);
+			if (child == null && create)
+				children.put(name, child = new Node(this, name));
+			return child;
+		}
+	}
+
+	/**
+	 * 返回覆盖指定路径的子树任务，即此路径本身或其上级路径上的子树任务。
+	 *
+	 * @return 子树任务，没有则返回null
+	 */
+	public BackupTask findCovering(Path relativePath) {
+		Node node = root;
+		for (Path name : relativePath) {
+			node = node.child(name, false);
+			if (node == null)
+				return null;
+			if (node.task != null && node.task.isSubtree())
+				return node.task;
+		}
+		return null;
+	}
+
+	/**
+	 * 放入一个任务。
+	 *
+	 * @return 原来在此路径上的任务，没有则返回null
+	 */
+	public BackupTask put(BackupTask task) {
+		Node node = root;
+		for (Path name : task.relativePath())
+			node = node.child(name, true);
+		BackupTask original = node.task;
+		node.task = task;
+		return original;
+	}
+
+	/**
+	 * 删除指定路径本身及其下所有路径上的任务。
+	 *
+	 * @return 删除的任务
+	 */
+	public List<BackupTask> removeUnder(Path relativePath) {
+		List<BackupTask> removed = new ArrayList<>();
+		Node node = find(relativePath);
+		if (node != null) {
+			collect(node, removed);
+			node.task = null;
+			node.children = null;
+			prune(node);
+		}
+		return removed;
+	}
+
+	private void collect(Node node, List<BackupTask> tasks) {
+		if (node.task != null)
+			tasks.add(node.task);
+		if (node.children != null)
+			node.children.values().forEach(child -> collect(child, tasks));
+	}
+
+	/**
+	 * 删除一个任务，只有路径上的任务与之相等时才删除。
+	 */
+	public void remove(BackupTask task) {
+		Node node = find(task.relativePath());
+		if (node != null && task.equals(node.task)) {
+			node.task = null;
+			prune(node);
+		}
+	}
+
+	public boolean isEmpty() {
+		return root.children == null || root.children.isEmpty();
+	}
+
+	private Node find(Path relativePath) {
+		Node node = root;
+		for (Path name : relativePath) {
+			node = node.child(name, false);
+			if (node == null)
+				return null;
+		}
+		return node;
+	}
+
+	private void prune(Node node) {
+		// 从下往上删除没有任务也没有下级的节点
+		while (node != root && node.task == null && (node.children == null || node.children.isEmpty())) {
+			node.parent.children.remove(node.name);
+			node = node.parent;
+		}
+	}
+
+}
@@ -0,0 +1,189 @@
+package com.github.blovemaple.backupd.machine;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+import com.github.blovemaple.backupd.task.BackupConf;
+import com.github.blovemaple.backupd.task.BackupTask;
+
+/**
+ * 可以执行备份的任务集合。按配置分区，每个分区内按加入顺序排列，各分区之间轮流取出。<br>
+ * 加入、删除单个任务以及删除一个配置的所有任务都是O(1)的。
+ *
+ * @author blovemaple <blovemaple2010(at)gmail.com>
+ */
+class ReadyTaskSet {
+	private final Lock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+
+	private final Map<BackupConf, LinkedHashSet<BackupTask>> partitions = new HashMap<>();
+	// 有任务的配置，按轮流取出的顺序排列
+	private final Deque<BackupConf> rotation = new ArrayDeque<>();
+	private int size = 0;
+
+	/**
+	 * 加入一个任务。如果已经有此任务，则把它移到所在分区的末尾。
+	 *
+	 * @return 是否是新加入的任务
+	 */
+	public boolean add(BackupTask task) {
+		lock.lock();
+		try {
+			LinkedHashSet<BackupTask> partition = partitions.get(task.conf());
+			if (partition == null) {
+				partitions.put(task.conf(), partition = new LinkedHashSet<>());
+				rotation.add(task.conf());
+			}
+			boolean added = !partition.remove(task);
+			if (added)
+				size++;
+			partition.add(task);
+			notEmpty.signal();
+			return added;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * 删除一个任务。
+	 *
+	 * @return 是否有此任务
+	 */
+	public boolean remove(BackupTask task) {
+		lock.lock();
+		try {
+			LinkedHashSet<BackupTask> partition = partitions.get(task.conf());
+			if (partition == null || !partition.remove(task))
+				return false;
+			size--;
+			if (partition.isEmpty()) {
+				partitions.remove(task.conf());
+				rotation.remove(task.conf());
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * 判断是否有此任务。
+	 */
+	public boolean contains(BackupTask task) {
+		lock.lock();
+		try {
+			LinkedHashSet<BackupTask> partition = partitions.get(task.conf());
+			return partition != null && partition.contains(task);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * 删除指定配置的所有任务。
+	 */
+	public void removeConf(BackupConf conf) {
+		lock.lock();
+		try {
+			LinkedHashSet<BackupTask> partition = partitions.remove(conf);
+			if (partition != null) {
+				size -= partition.size();
+				rotation.remove(conf);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * 取出一个任务，如无任务可取则等待直到取出或超时。
+	 *
+	 * @return 任务，超时返回null
+	 */
+	public BackupTask poll(long timeout, TimeUnit unit) throws InterruptedException {
+		return poll(timeout, unit, conf -> true);
+	}
+
+	/**
+	 * 取出一个acceptable的配置的任务，如无任务可取则等待直到取出或超时。不acceptable的配置的任务留在集合中，轮到下一个配置。<br>
+	 * acceptable在加锁的情况下调用，返回true时一定会取出该配置的一个任务。acceptable的结果变化时需要调用{@link #wakeUp()}。
+	 *
+	 * @return 任务，超时返回null
+	 */
+	public BackupTask poll(long timeout, TimeUnit unit, Predicate<BackupConf> acceptable)
+			throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (true) {
+				BackupTask task = size == 0 ? null : pollAcceptable(acceptable);
+				if (task != null) {
+					if (size > 0)
+						notEmpty.signal();
+					return task;
+				}
+				if (nanos <= 0)
+					return null;
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private BackupTask pollAcceptable(Predicate<BackupConf> acceptable) {
+		Iterator<BackupConf> rotationItr = rotation.iterator();
+		while (rotationItr.hasNext()) {
+			BackupConf conf = rotationItr.next();
+			if (!acceptable.test(conf))
+				continue;
+			rotationItr.remove();
+
+			LinkedHashSet<BackupTask> partition = partitions.get(conf);
+			Iterator<BackupTask> itr = partition.iterator();
+			BackupTask task = itr.next();
+			itr.remove();
+			size--;
+
+			// 分区还有任务则排到最后，下次轮到其他配置
+			if (partition.isEmpty())
+				partitions.remove(conf);
+			else
+				rotation.add(conf);
+			return task;
+		}
+		return null;
+	}
+
+	/**
+	 * 唤醒所有等待取出任务的线程，重新判断是否有可取的任务。
+	 */
+	public void wakeUp() {
+		lock.lock();
+		try {
+			notEmpty.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int size() {
+		lock.lock();
+		try {
+			return size;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+}
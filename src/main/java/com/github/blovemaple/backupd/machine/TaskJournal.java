@@ -0,0 +1,372 @@
+package com.github.blovemaple.backupd.machine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.github.blovemaple.backupd.task.BackupConf;
+import com.github.blovemaple.backupd.task.BackupTask;
+import com.google.common.io.CountingInputStream;
+
+/**
+ * 备份任务日志，记录提交的和执行完毕的任务，重启后可以恢复重启前未执行完毕的任务。<br>
+ * 日志是只追加的文件，记录先写到缓冲区，由后台线程每隔{@link #FLUSH_INTERVAL_MILLIS}毫秒flush到操作系统，
+ * 进程崩溃时可能丢失最近这段时间的记录；失效的记录多到一定程度时重写整个文件。<br>
+ * 内存中只按配置的状态键和相对路径记录每个未执行完毕的任务，不引用任务对象。
+ *
+ * @author blovemaple <blovemaple2010(at)gmail.com>
+ */
+public class TaskJournal implements Closeable {
+	private static final Logger logger = LogManager.getLogger(TaskJournal.class);
+
+	/**
+	 * 文件中的记录数超过有效记录数的多少倍时重写文件。
+	 */
+	public static int COMPACT_RATIO = 2;
+	/**
+	 * 文件中的记录数至少达到多少时才重写文件。
+	 */
+	public static int COMPACT_MIN_RECORDS = 10000;
+	/**
+	 * 每隔多少毫秒把缓冲区中的记录flush到操作系统。
+	 */
+	public static long FLUSH_INTERVAL_MILLIS = 200;
+
+	private static final byte SUBMITTED = 'S';
+	private static final byte DONE = 'D';
+
+	private final Path file;
+	private FileChannel channel;
+	private DataOutputStream out;
+
+	private long nextSeq = 0;
+	private int recordCount = 0;
+
+	// 本次运行中提交的未执行完毕的任务的最新序号，按配置分组
+	private final Map<String, Map<String, Entry>> liveEntries = new HashMap<>();
+	// 已取出正在执行的任务的序号
+	private final Map<BackupTask, Long> fetchedSeqs = new IdentityHashMap<>();
+	// 重启前未执行完毕、还没有重新提交或丢弃的任务，按配置分组。重新提交之前仍然参与重写文件
+	private final Map<String, Map<String, Entry>> recoveredEntries = new HashMap<>();
+	// 配置的状态键，所有记录共用同一个字符串
+	private final Map<String, String> confKeys = new HashMap<>();
+
+	private boolean dirty = false;
+	private final ScheduledExecutorService flusher;
+
+	/**
+	 * 一个未执行完毕的任务。
+	 */
+	public static class Entry {
+		private final long seq;
+		private final String confKey;
+		private final String relativePath;
+		private final boolean subtree;
+
+		private Entry(long seq, String confKey, String relativePath, boolean subtree) {
+			this.seq = seq;
+			this.confKey = confKey;
+			this.relativePath = relativePath;
+			this.subtree = subtree;
+		}
+
+		/**
+		 * 为指定配置生成此任务。
+		 */
+		public BackupTask toTask(BackupConf conf) {
+			return new BackupTask(conf, conf.getFromPath().getFileSystem().getPath(relativePath), subtree);
+		}
+
+		@Override
+		public String toString() {
+			return "Entry [seq=" + seq + ", confKey=" + confKey + ", relativePath=" + relativePath + ", subtree="
+					+ subtree + "]";
+		}
+	}
+
+	/**
+	 * 打开日志文件，不存在则创建，存在则读取其中未执行完毕的任务。
+	 *
+	 * @param file
+	 *            日志文件
+	 * @throws IOException
+	 */
+	public TaskJournal(Path file) throws IOException {
+		this.file = file;
+		if (file.getParent() != null)
+			Files.createDirectories(file.getParent());
+
+		long validLength = Files.exists(file) ? load() : 0;
+		openForAppend(validLength);
+
+		flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "journal-flush");
+			thread.setDaemon(true);
+			return thread;
+		});
+		flusher.scheduleWithFixedDelay(this::flushSafely, FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS,
+				TimeUnit.MILLISECONDS);
+
+		logger.info(() -> "Opened task journal " + file + ", recovered "
+				+ count(recoveredEntries) + " tasks.");
+	}
+
+	/**
+	 * 读取日志文件。
+	 *
+	 * @return 完整记录的长度，此后的部分是不完整的记录
+	 */
+	private long load() throws IOException {
+		Map<Long, Entry> entriesBySeq = new LinkedHashMap<>();
+		Map<String, Long> seqsByKey = new HashMap<>();
+		long validLength = 0;
+
+		try (CountingInputStream counting = new CountingInputStream(
+				new BufferedInputStream(Files.newInputStream(file)));
+				DataInputStream in = new DataInputStream(counting)) {
+			while (true) {
+				try {
+					byte type = in.readByte();
+					long seq = in.readLong();
+					if (type == SUBMITTED) {
+						Entry entry = new Entry(seq, confKey(in.readUTF()), in.readUTF(), in.readBoolean());
+						// 同一任务后提交的记录替换先提交的
+						Long originalSeq = seqsByKey.put(entry.confKey + '\0' + entry.relativePath, seq);
+						if (originalSeq != null)
+							entriesBySeq.remove(originalSeq);
+						entriesBySeq.put(seq, entry);
+					} else if (type == DONE) {
+						Entry entry = entriesBySeq.remove(seq);
+						if (entry != null)
+							seqsByKey.remove(entry.confKey + '\0' + entry.relativePath);
+					} else {
+						throw new IOException("Corrupted task journal " + file + " at " + validLength);
+					}
+					nextSeq = Math.max(nextSeq, seq + 1);
+					recordCount++;
+					validLength = counting.getCount();
+				} catch (EOFException e) {
+					break;
+				}
+			}
+		} catch (IOException e) {
+			// 日志损坏时保留已读到的部分
+			logger.error(() -> "Error reading task journal " + file + ", ignored the rest.", e);
+		}
+
+		entriesBySeq.values().forEach(entry -> put(recoveredEntries, entry));
+		return validLength;
+	}
+
+	private void openForAppend(long validLength) throws IOException {
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		// 丢掉末尾不完整的记录
+		channel.truncate(validLength);
+		channel.position(validLength);
+		out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+	}
+
+	/**
+	 * 返回指定配置在重启前未执行完毕的任务，由调用者重新提交。<br>
+	 * 每个任务在重新提交（{@link #submitted}）或丢弃（{@link #discarded}）之前仍然保留在日志中，恢复期间中止也不会丢失。
+	 */
+	public synchronized List<Entry> recover(BackupConf conf) {
+		Map<String, Entry> entries = recoveredEntries.get(conf.stateKey());
+		return entries == null ? Collections.emptyList() : new ArrayList<>(entries.values());
+	}
+
+	/**
+	 * 记录提交的任务。重启前的同一任务由此记录代替。
+	 */
+	public synchronized void submitted(BackupTask task) throws IOException {
+		Entry entry = new Entry(nextSeq++, confKey(task.conf().stateKey()), task.relativePath().toString(),
+				task.isSubtree());
+		put(liveEntries, entry);
+		// 读取日志时后提交的记录替换先提交的，不必再记录重启前的任务已完成
+		remove(recoveredEntries, entry.confKey, entry.relativePath);
+
+		out.writeByte(SUBMITTED);
+		out.writeLong(entry.seq);
+		out.writeUTF(entry.confKey);
+		out.writeUTF(entry.relativePath);
+		out.writeBoolean(entry.subtree);
+		appended();
+	}
+
+	/**
+	 * 记录任务已被取出执行。
+	 */
+	public synchronized void fetched(BackupTask task) {
+		Entry entry = get(liveEntries, task);
+		if (entry != null)
+			fetchedSeqs.put(task, entry.seq);
+	}
+
+	/**
+	 * 记录取出的任务已执行完毕。如果执行期间又提交了此任务，新提交的仍然有效。
+	 */
+	public synchronized void done(BackupTask task) throws IOException {
+		Long seq = fetchedSeqs.remove(task);
+		if (seq != null) {
+			Entry entry = get(liveEntries, task);
+			if (entry != null && entry.seq == seq)
+				remove(liveEntries, entry.confKey, entry.relativePath);
+			writeDone(seq);
+		}
+	}
+
+	/**
+	 * 记录排队中的任务（或重启前未执行完毕、还没有重新提交的同一任务）不再需要执行。
+	 */
+	public synchronized void discarded(BackupTask task) throws IOException {
+		String confKey = task.conf().stateKey(), relativePath = task.relativePath().toString();
+		Entry entry = remove(liveEntries, confKey, relativePath);
+		if (entry == null)
+			entry = remove(recoveredEntries, confKey, relativePath);
+		if (entry != null)
+			writeDone(entry.seq);
+	}
+
+	/**
+	 * 记录指定配置的所有任务不再需要执行（配置被取消）。重启前的任务不受影响。
+	 */
+	public synchronized void discardedConf(BackupConf conf) throws IOException {
+		fetchedSeqs.keySet().removeIf(task -> task.conf() == conf);
+		Map<String, Entry> entries = liveEntries.remove(conf.stateKey());
+		if (entries != null)
+			for (Entry entry : entries.values())
+				writeDone(entry.seq);
+	}
+
+	private String confKey(String stateKey) {
+		return confKeys.computeIfAbsent(stateKey, key -> key);
+	}
+
+	private static void put(Map<String, Map<String, Entry>> entriesByConf, Entry entry) {
+		entriesByConf.computeIfAbsent(entry.confKey, key -> new LinkedHashMap<>()).put(entry.relativePath, entry);
+	}
+
+	private static Entry get(Map<String, Map<String, Entry>> entriesByConf, BackupTask task) {
+		Map<String, Entry> entries = entriesByConf.get(task.conf().stateKey());
+		return entries == null ? null : entries.get(task.relativePath().toString());
+	}
+
+	private static Entry remove(Map<String, Map<String, Entry>> entriesByConf, String confKey, String relativePath) {
+		Map<String, Entry> entries = entriesByConf.get(confKey);
+		if (entries == null)
+			return null;
+		Entry entry = entries.remove(relativePath);
+		if (entries.isEmpty())
+			entriesByConf.remove(confKey);
+		return entry;
+	}
+
+	private static int count(Map<String, Map<String, Entry>> entriesByConf) {
+		return entriesByConf.values().stream().mapToInt(Map::size).sum();
+	}
+
+	private void writeDone(long seq) throws IOException {
+		out.writeByte(DONE);
+		out.writeLong(seq);
+		appended();
+	}
+
+	private void appended() throws IOException {
+		dirty = true;
+		recordCount++;
+
+		int liveCount = count(liveEntries) + count(recoveredEntries);
+		if (recordCount >= COMPACT_MIN_RECORDS && recordCount > liveCount * COMPACT_RATIO)
+			compact();
+	}
+
+	/**
+	 * 只保留有效记录，重写日志文件。
+	 */
+	private void compact() throws IOException {
+		List<Entry> entries = new ArrayList<>();
+		liveEntries.values().forEach(map -> entries.addAll(map.values()));
+		recoveredEntries.values().forEach(map -> entries.addAll(map.values()));
+		entries.sort((e1, e2) -> Long.compare(e1.seq, e2.seq));
+
+		Path tempFile = file.resolveSibling(file.getFileName() + ".compacting");
+		try (DataOutputStream tempOut = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+			for (Entry entry : entries) {
+				tempOut.writeByte(SUBMITTED);
+				tempOut.writeLong(entry.seq);
+				tempOut.writeUTF(entry.confKey);
+				tempOut.writeUTF(entry.relativePath);
+				tempOut.writeBoolean(entry.subtree);
+			}
+		}
+
+		out.close();
+		Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		openForAppend(Files.size(file));
+
+		logger.debug(() -> "Compacted task journal " + file + " from " + recordCount + " to " + entries.size()
+				+ " records.");
+		recordCount = entries.size();
+	}
+
+	/**
+	 * 把缓冲区中的记录flush到操作系统。
+	 */
+	public synchronized void flush() throws IOException {
+		if (dirty) {
+			out.flush();
+			dirty = false;
+		}
+	}
+
+	/**
+	 * 把缓冲区中的记录flush并fsync到存储设备上。之后崩溃也不会丢失已写的记录。
+	 */
+	public synchronized void force() throws IOException {
+		flush();
+		channel.force(false);
+	}
+
+	private void flushSafely() {
+		try {
+			flush();
+		} catch (IOException e) {
+			// 为了保证不中止，只打印而不抛出异常
+			logger.error(() -> "Error flushing task journal " + file, e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		flusher.shutdownNow();
+		synchronized (this) {
+			out.close();
+		}
+	}
+
+}
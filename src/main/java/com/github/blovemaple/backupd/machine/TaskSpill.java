@@ -0,0 +1,182 @@
+package com.github.blovemaple.backupd.machine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.github.blovemaple.backupd.task.BackupConf;
+import com.github.blovemaple.backupd.task.BackupTask;
+
+/**
+ * 内存中排队的任务过多时，溢出到磁盘上的任务。<br>
+ * 任务先攒在内存中，每攒满{@link #RUN_SIZE}个按路径排序后写入一个文件，读回时按写入的先后顺序一次读回一个文件。
+ * 文件只在本次运行中使用，重启后的恢复由{@link TaskJournal}负责。<br>
+ * 文件中用编号代表任务的配置，配置每次取消后再溢出时使用新的编号，所以取消前溢出的任务不会被读回。
+ *
+ * @author blovemaple <blovemaple2010(at)gmail.com>
+ */
+public class TaskSpill implements Closeable {
+	private static final Logger logger = LogManager.getLogger(TaskSpill.class);
+
+	/**
+	 * 每个溢出文件中的任务数。
+	 */
+	public static int RUN_SIZE = 10000;
+
+	private static final String RUN_FILE_PREFIX = "run-";
+
+	private Path dir;
+	private final boolean tempDir;
+
+	private final List<BackupTask> buffer = new ArrayList<>();
+	private final Deque<Path> runFiles = new ArrayDeque<>();
+	private long nextRunIndex = 0;
+	// 每个配置当前的编号，以及每个编号的配置（已取消的编号不在其中）
+	private final Map<BackupConf, Integer> confIds = new HashMap<>();
+	private final Map<Integer, BackupConf> confsById = new HashMap<>();
+	private int nextConfId = 0;
+
+	private volatile int size = 0;
+
+	/**
+	 * @param dir
+	 *            存放溢出文件的目录，null表示需要时创建临时目录
+	 */
+	public TaskSpill(Path dir) {
+		this.dir = dir;
+		this.tempDir = dir == null;
+	}
+
+	/**
+	 * 溢出一个任务。
+	 */
+	public synchronized void add(BackupTask task) throws IOException {
+		confIds.computeIfAbsent(task.conf(), conf -> {
+			int id = nextConfId++;
+			confsById.put(id, conf);
+			return id;
+		});
+		buffer.add(task);
+		size++;
+		if (buffer.size() >= RUN_SIZE)
+			writeRun();
+	}
+
+	private void writeRun() throws IOException {
+		Path runFile = prepareDir().resolve(RUN_FILE_PREFIX + nextRunIndex++);
+
+		// 按配置和路径排序，读回后同一目录下的任务挨在一起
+		buffer.sort(Comparator.comparing((BackupTask task) -> confIds.get(task.conf()))
+				.thenComparing(BackupTask::relativePath));
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(runFile)))) {
+			for (BackupTask task : buffer) {
+				out.writeInt(confIds.get(task.conf()));
+				out.writeUTF(task.relativePath().toString());
+				out.writeBoolean(task.isSubtree());
+			}
+		}
+		runFiles.add(runFile);
+		buffer.clear();
+
+		logger.debug(() -> "Spilled tasks into " + runFile);
+	}
+
+	private Path prepareDir() throws IOException {
+		if (dir == null) {
+			dir = Files.createTempDirectory("backupd-spill");
+		} else if (Files.notExists(dir)) {
+			Files.createDirectories(dir);
+		} else if (runFiles.isEmpty() && nextRunIndex == 0) {
+			// 清掉上次运行留下的文件
+			clearDir();
+		}
+		return dir;
+	}
+
+	/**
+	 * 读回最早溢出的一批任务。
+	 *
+	 * @return 任务，没有则返回空列表
+	 */
+	public synchronized List<BackupTask> takeRun() throws IOException {
+		List<BackupTask> tasks = new ArrayList<>();
+		Path runFile = runFiles.poll();
+		if (runFile == null) {
+			tasks.addAll(buffer);
+			buffer.clear();
+		} else {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(runFile)))) {
+				while (true) {
+					int confId;
+					try {
+						confId = in.readInt();
+					} catch (EOFException e) {
+						break;
+					}
+					String relativePath = in.readUTF();
+					boolean subtree = in.readBoolean();
+					BackupConf conf = confsById.get(confId);
+					// 配置已取消的任务直接丢弃
+					if (conf != null)
+						tasks.add(new BackupTask(conf, conf.getFromPath().getFileSystem().getPath(relativePath),
+								subtree));
+				}
+			} finally {
+				Files.deleteIfExists(runFile);
+			}
+		}
+		size = buffer.size() + runFiles.size() * RUN_SIZE;
+		return tasks;
+	}
+
+	/**
+	 * 丢弃指定配置的任务。已写入文件的任务在读回时丢弃，此后再溢出的同一配置的任务不受影响。
+	 */
+	public synchronized void removeConf(BackupConf conf) {
+		Integer id = confIds.remove(conf);
+		if (id != null)
+			confsById.remove(id);
+		buffer.removeIf(task -> task.conf() == conf);
+	}
+
+	/**
+	 * 返回溢出的任务数（估计值）。
+	 */
+	public int size() {
+		return size;
+	}
+
+	private void clearDir() throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, RUN_FILE_PREFIX + "*")) {
+			for (Path file : files)
+				Files.deleteIfExists(file);
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (dir != null && Files.exists(dir)) {
+			clearDir();
+			if (tempDir)
+				Files.deleteIfExists(dir);
+		}
+	}
+
+}
@@ -0,0 +1,127 @@
+package com.github.blovemaple.backupd.machine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * 哈希时间轮。添加元素为O(1)，元素到期时间精确到一个tick，不会提前到期。<br>
+ * 非线程安全，只能由一个线程使用。
+ *
+ * @author blovemaple <blovemaple2010(at)gmail.com>
+ */
+class TimingWheel<T> {
+	private final long tickMillis;
+	private final long startMillis;
+	private final int mask;
+	private final List<List<Node<T>>> buckets;
+
+	// 下一个要处理的tick
+	private long currentTick = 0;
+	private int size = 0;
+
+	private static class Node<T> {
+		private final T item;
+		private long rounds;
+
+		private Node(T item, long rounds) {
+			this.item = item;
+			this.rounds = rounds;
+		}
+	}
+
+	/**
+	 * @param tickMillis
+	 *            每个tick的毫秒数
+	 * @param wheelSize
+	 *            轮上的槽数，必须是2的幂
+	 * @param startMillis
+	 *            第0个tick的时间
+	 */
+	public TimingWheel(long tickMillis, int wheelSize, long startMillis) {
+		if (tickMillis <= 0)
+			throw new IllegalArgumentException("Illegal tick: " + tickMillis);
+		if (wheelSize <= 0 || Integer.bitCount(wheelSize) != 1)
+			throw new IllegalArgumentException("Wheel size must be a power of 2: " + wheelSize);
+		this.tickMillis = tickMillis;
+		this.startMillis = startMillis;
+		this.mask = wheelSize - 1;
+		this.buckets = new ArrayList<>(wheelSize);
+		for (int i = 0; i < wheelSize; i++)
+			buckets.add(new ArrayList<>());
+	}
+
+	/**
+	 * 添加一个元素。
+	 *
+	 * @param item
+	 *            元素
+	 * @param deadline
+	 *            到期时间
+	 */
+	public void add(T item, long deadline) {
+		// 向上取整到tick，保证不会提前到期；已经到期的放到下一个要处理的tick
+		long tick = Math.max(currentTick, ceilDiv(deadline - startMillis, tickMillis));
+		long rounds = (tick - currentTick) / buckets.size();
+		buckets.get((int) (tick & mask)).add(new Node<>(item, rounds));
+		size++;
+	}
+
+	/**
+	 * 处理截至指定时间的所有tick，把到期的元素交给consumer。
+	 *
+	 * @param now
+	 *            当前时间
+	 * @param expired
+	 *            接收到期元素
+	 */
+	public void advance(long now, Consumer<? super T> expired) {
+		if (size == 0) {
+			// 轮是空的，直接跳到当前时间，免得空转
+			currentTick = Math.max(currentTick, (now - startMillis) / tickMillis);
+			return;
+		}
+
+		while (tickTime(currentTick) <= now) {
+			List<Node<T>> bucket = buckets.get((int) (currentTick & mask));
+			if (!bucket.isEmpty()) {
+				List<Node<T>> remained = new ArrayList<>();
+				for (Node<T> node : bucket) {
+					if (node.rounds <= 0) {
+						size--;
+						expired.accept(node.item);
+					} else {
+						node.rounds--;
+						remained.add(node);
+					}
+				}
+				buckets.set((int) (currentTick & mask), remained);
+			}
+			currentTick++;
+		}
+	}
+
+	/**
+	 * 返回下一个要处理的tick的时间。
+	 */
+	public long nextTickTime() {
+		return tickTime(currentTick);
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private long tickTime(long tick) {
+		return startMillis + tick * tickMillis;
+	}
+
+	private static long ceilDiv(long x, long y) {
+		return -Math.floorDiv(-x, y);
+	}
+
+}
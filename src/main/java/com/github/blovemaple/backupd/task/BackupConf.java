@@ -3,10 +3,14 @@ package com.github.blovemaple.backupd.task;
 import java.nio.file.ClosedFileSystemException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
 
-import com.google.common.base.Strings;
+import com.github.blovemaple.backupd.machine.GroupCommitter;
+import com.github.blovemaple.backupd.utils.HashAlgorithm;
+import com.github.blovemaple.backupd.utils.PathFilter;
 
 /**
  * 一条备份设置。
@@ -17,13 +21,36 @@ public class BackupConf {
 	private String name;
 	private Path fromPath;
 	private Path toPath;
-	private String filter;
+	private final List<String> includes = new ArrayList<>();
+	private final List<String> excludes = new ArrayList<>();
+	private Integer streams;
+	private HashAlgorithm hashAlgorithm = HashAlgorithm.DEFAULT;
+	private Durability durability = Durability.NONE;
 	private BackupConfType type;
 
 	public static enum BackupConfType {
 		DAEMON, ONCE
 	}
 
+	/**
+	 * 备份的文件写到存储设备上的方式。整个复制的文件先写到临时文件再改名，崩溃时不会只剩下写了一部分的文件；
+	 * 只复制差异或追加的部分时在原位置写，崩溃时可能只写了一部分，但此时还没有设置源文件的修改时间，下次检测时会重新备份。
+	 */
+	public static enum Durability {
+		/**
+		 * 不fsync，由操作系统决定何时写入。
+		 */
+		NONE,
+		/**
+		 * 每个文件写完（改名前）fsync文件，之后fsync目录。
+		 */
+		FILE,
+		/**
+		 * 交给{@link GroupCommitter}成批fsync，临时文件fsync之后才改名。提交之后才设置源文件的修改时间，崩溃后没有提交的文件会被重新备份。
+		 */
+		GROUP
+	}
+
 	public BackupConf(Path fromPath, Path toPath, BackupConfType type) {
 		this.fromPath = fromPath;
 		this.toPath = toPath;
@@ -33,7 +60,8 @@ public class BackupConf {
 	public BackupConf(Path fromPath, Path toPath, String filter, BackupConfType type) {
 		this.fromPath = fromPath;
 		this.toPath = toPath;
-		this.filter = filter;
+		if (filter != null)
+			includes.add(filter);
 		this.type = type;
 	}
 
@@ -48,6 +76,8 @@ public class BackupConf {
 		Objects.requireNonNull(type, "Type is not specified.");
 		Objects.requireNonNull(fromPath, "From-path is not specified.");
 		Objects.requireNonNull(toPath, "To-path is not specified.");
+		if (streams != null && streams <= 0)
+			throw new IllegalArgumentException("Streams must be positive: " + streams);
 	}
 
 	public void checkReady() throws BackupConfNotReadyException {
@@ -98,12 +128,56 @@ public class BackupConf {
 		this.toPath = toPath;
 	}
 
-	public String getFilter() {
-		return filter;
+	/**
+	 * 只备份匹配其中任意一个glob的路径，为空表示不限制。
+	 */
+	public List<String> getIncludes() {
+		return Collections.unmodifiableList(includes);
+	}
+
+	public void addInclude(String include) {
+		includes.add(Objects.requireNonNull(include));
+	}
+
+	/**
+	 * 不备份匹配其中任意一个glob的路径，匹配的目录下的路径也不备份。
+	 */
+	public List<String> getExcludes() {
+		return Collections.unmodifiableList(excludes);
 	}
 
-	public void setFilter(String filter) {
-		this.filter = filter;
+	public void addExclude(String exclude) {
+		excludes.add(Objects.requireNonNull(exclude));
+	}
+
+	/**
+	 * 目标路径所在设备上同时执行的备份任务数上限，null表示使用默认值。
+	 */
+	public Integer getStreams() {
+		return streams;
+	}
+
+	public void setStreams(Integer streams) {
+		this.streams = streams;
+	}
+
+	/**
+	 * 判断文件内容是否相同时计算哈希值的算法。
+	 */
+	public HashAlgorithm getHashAlgorithm() {
+		return hashAlgorithm;
+	}
+
+	public void setHashAlgorithm(HashAlgorithm hashAlgorithm) {
+		this.hashAlgorithm = Objects.requireNonNull(hashAlgorithm);
+	}
+
+	public Durability getDurability() {
+		return durability;
+	}
+
+	public void setDurability(Durability durability) {
+		this.durability = Objects.requireNonNull(durability);
 	}
 
 	public BackupConfType getType() {
@@ -114,20 +188,25 @@ public class BackupConf {
 		this.type = type;
 	}
 
-	public PathMatcher newPathMatcher() {
-		PathMatcher pathMatcher;
-		if (Strings.isNullOrEmpty(getFilter())) {
-			pathMatcher = anyPath -> true;
-		} else {
-			pathMatcher = fromPath.getFileSystem().getPathMatcher("glob:" + getFilter());
-		}
-		return pathMatcher;
+	/**
+	 * 在持久化的状态中标识此配置的键，由fromPath和toPath决定。
+	 */
+	public String stateKey() {
+		return fromPath.toUri() + " -> " + toPath.toUri();
+	}
+
+	/**
+	 * 按includes和excludes创建过滤相对路径的{@link PathFilter}。
+	 */
+	public PathFilter newPathFilter() {
+		return PathFilter.of(fromPath.getFileSystem(), includes, excludes);
 	}
 
 	@Override
 	public String toString() {
-		return "BackupConf [name=" + name + ", fromPath=" + fromPath + ", toPath=" + toPath + ", filter=" + filter
-				+ ", type=" + type + "]";
+		return "BackupConf [name=" + name + ", fromPath=" + fromPath + ", toPath=" + toPath + ", includes=" + includes
+				+ ", excludes=" + excludes + ", streams=" + streams + ", hashAlgorithm=" + hashAlgorithm.id()
+				+ ", durability=" + durability + ", type=" + type + "]";
 	}
 
 }
@@ -0,0 +1,65 @@
+package com.github.blovemaple.backupd.task;
+
+import java.nio.file.Path;
+
+import com.github.blovemaple.backupd.machine.GroupCommitter;
+import com.github.blovemaple.backupd.task.BackupConf.Durability;
+
+/**
+ * 执行一条备份设置时的运行时状态，不属于配置本身。由{@link com.github.blovemaple.backupd.machine.BackupMachine}在执行配置时创建，
+ * 交给检测任务和备份任务使用。
+ *
+ * @author blovemaple <blovemaple2010(at)gmail.com>
+ */
+public class BackupContext {
+	/**
+	 * 不使用任何运行时状态，单独执行任务时使用。
+	 */
+	public static final BackupContext NONE = new BackupContext(null, null, null);
+
+	private final HashIndex hashIndex;
+	private final GroupCommitter groupCommitter;
+	private final Path scanManifestFile;
+
+	/**
+	 * @param hashIndex
+	 *            判断文件是否相同时使用的哈希值索引，null表示不使用
+	 * @param groupCommitter
+	 *            {@link Durability#GROUP}时使用的{@link GroupCommitter}，null表示按{@link Durability#FILE}处理
+	 * @param scanManifestFile
+	 *            完整检测使用的{@link ScanManifest}文件，null表示不使用
+	 */
+	public BackupContext(HashIndex hashIndex, GroupCommitter groupCommitter, Path scanManifestFile) {
+		this.hashIndex = hashIndex;
+		this.groupCommitter = groupCommitter;
+		this.scanManifestFile = scanManifestFile;
+	}
+
+	/**
+	 * 判断文件是否相同时使用的哈希值索引，null表示不使用索引、每次都计算哈希值。
+	 */
+	public HashIndex getHashIndex() {
+		return hashIndex;
+	}
+
+	/**
+	 * {@link Durability#GROUP}时使用的{@link GroupCommitter}，null表示按{@link Durability#FILE}处理。
+	 */
+	public GroupCommitter getGroupCommitter() {
+		return groupCommitter;
+	}
+
+	/**
+	 * 完整检测使用的{@link ScanManifest}文件，null表示不使用，每次完整检测都检查所有文件。
+	 */
+	public Path getScanManifestFile() {
+		return scanManifestFile;
+	}
+
+	@Override
+	public String toString() {
+		return "BackupContext [hashIndex=" + hashIndex + ", groupCommitter=" + groupCommitter
+				+ ", scanManifestFile=" + scanManifestFile + "]";
+	}
+
+}
@@ -3,40 +3,132 @@ package com.github.blovemaple.backupd.task;
 import static com.github.blovemaple.backupd.utils.FileHashing.*;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.NotDirectoryException;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.nio.file.attribute.FileTime;
+import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongConsumer;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import com.github.blovemaple.backupd.machine.GroupCommitter;
+import com.github.blovemaple.backupd.task.BackupConf.Durability;
+import com.github.blovemaple.backupd.utils.FileComparing;
+import com.github.blovemaple.backupd.utils.FileCopying;
+import com.github.blovemaple.backupd.utils.FileSnapshot;
+import com.github.blovemaple.backupd.utils.PathFilter;
+
 /**
- * 执行备份的任务，由{@link DetectingTask}生成，负责执行指定的一个文件或目录的备份。
+ * 执行备份的任务，由{@link DetectingTask}生成，负责执行指定的一个文件或目录的备份。<br>
+ * 子树任务负责备份一个目录及其下所有符合配置的文件和目录。
  * 
  * @author blovemaple <blovemaple2010(at)gmail.com>
  */
 public class BackupTask implements Callable<Boolean> {
 	private static final Logger logger = LogManager.getLogger(BackupTask.class);
 
+	/**
+	 * 复制时临时文件名的后缀，临时文件名为“.”+目标文件名+此后缀。这样命名的源文件不备份，以免与临时文件冲突。
+	 */
+	public static final String TEMP_SUFFIX = ".backupd-tmp";
+
+	// 正在使用的临时文件，清理时跳过
+	private static final Set<Path> tempFilesInUse = ConcurrentHashMap.newKeySet();
+
 	private final BackupConf conf;
 	private final Path relativePath;
+	private final boolean subtree;
+
+	// 执行配置时的运行时状态
+	private volatile BackupContext context = BackupContext.NONE;
+	// 接收复制的字节数
+	private LongConsumer progressListener = bytes -> {
+	};
+	// 检测时得到的源路径元数据，检测和进入队列时使用，执行时重新读取
+	private volatile FileSnapshot fromSnapshot;
+	// 检测时得到的目标路径元数据，只在判断是否需要备份时使用
+	private volatile FileSnapshot toSnapshot;
 
 	public BackupTask(BackupConf conf, Path relativePath) {
+		this(conf, relativePath, false);
+	}
+
+	/**
+	 * @param subtree
+	 *            是否是子树任务
+	 */
+	public BackupTask(BackupConf conf, Path relativePath, boolean subtree) {
 		this.conf = conf;
 		this.relativePath = relativePath;
+		this.subtree = subtree;
 	}
 
 	public BackupConf conf() {
 		return conf;
 	}
 
+	public Path relativePath() {
+		return relativePath;
+	}
+
+	public boolean isSubtree() {
+		return subtree;
+	}
+
+	/**
+	 * 设置执行配置时的运行时状态，没有设置时不使用任何运行时状态。
+	 */
+	public void setContext(BackupContext context) {
+		this.context = context;
+	}
+
+	public BackupContext context() {
+		return context;
+	}
+
+	/**
+	 * 设置接收复制进度的对象，每复制完一块时接收这一块的字节数。
+	 */
+	public void setProgressListener(LongConsumer progressListener) {
+		this.progressListener = progressListener;
+	}
+
+	/**
+	 * 设置检测时已经得到的源路径元数据，判断是否需要备份和计算延迟时不必再读取。执行任务时仍然重新读取。
+	 */
+	public void setFromSnapshot(FileSnapshot fromSnapshot) {
+		this.fromSnapshot = fromSnapshot;
+	}
+
+	/**
+	 * 检测时得到的源路径元数据，没有则返回null。
+	 */
+	public FileSnapshot fromSnapshot() {
+		return fromSnapshot;
+	}
+
+	/**
+	 * 设置检测时已经得到的目标路径元数据（不存在时为{@link FileSnapshot#ABSENT}），判断是否需要备份时不必再读取。
+	 */
+	public void setToSnapshot(FileSnapshot toSnapshot) {
+		this.toSnapshot = toSnapshot;
+	}
+
 	public Path fromFullPath() {
 		return conf.getFromPath().resolve(relativePath);
 	}
@@ -46,62 +138,102 @@ public class BackupTask implements Callable<Boolean> {
 	}
 
 	/**
-	 * 判断此任务是否需要执行（是否需要备份，如果from不存在，或两边文件内容相同/目录都存在，则不需要备份）。
+	 * 判断此任务是否需要执行（是否需要备份，如果from不存在，或两边文件内容相同/目录都存在，则不需要备份）。子树任务只要from是目录就需要执行，
+	 * 执行时再逐个判断。
 	 */
 	public boolean needBackup() {
 		try {
-			Path fromFullPath = fromFullPath();
-			Path toFullPath = toFullPath();
+			return checkNeedBackup();
+		} catch (Exception e) {
+			// 为了保证任务不中止，只打印而不抛出异常
+			logger.error(() -> "Error checking backup task: " + this, e);
+			return false;
+		}
+	}
 
-			if (Files.notExists(fromFullPath)) {
-				// 若源文件不存在，则不删除目标文件
-				return false;
-			}
+	/**
+	 * 同{@link #needBackup()}，但出错时抛出异常，以便调用者区分“不需要备份”和“无法判断”。
+	 *
+	 * @throws IOException
+	 *             读取元数据或内容出错
+	 */
+	public boolean checkNeedBackup() throws IOException {
+		Path fromFullPath = fromFullPath();
+		Path toFullPath = toFullPath();
 
-			if (fromFullPath.startsWith(conf.getToPath())) {
-				// 如果源文件在toPath内部，则不进行备份，以免无限循环
-				return false;
-			}
+		if (fromFullPath.startsWith(conf.getToPath())) {
+			// 如果源文件在toPath内部，则不进行备份，以免无限循环
+			return false;
+		}
 
-			if (Files.isDirectory(fromFullPath)) {
-				if (!Files.isDirectory(toFullPath))
-					return true;
+		// 每边只读取一次元数据
+		FileSnapshot from = fromSnapshot != null ? fromSnapshot : FileSnapshot.read(fromFullPath);
+		if (!from.exists()) {
+			// 若源文件不存在，则不删除目标文件
+			return false;
+		}
 
-			} else if (Files.isRegularFile(fromFullPath)) {
-				if (!Files.isRegularFile(toFullPath))
-					return true;
+		if (from.isDirectory()) {
+			if (subtree)
+				return true;
+			if (!(toSnapshot != null ? toSnapshot : FileSnapshot.read(toFullPath)).isDirectory())
+				return true;
 
-				if (!isEqualFiles(fromFullPath, toFullPath))
-					return true;
+		} else if (from.isRegularFile()) {
+			FileSnapshot to = toSnapshot != null ? toSnapshot : FileSnapshot.read(toFullPath);
+			if (!to.isRegularFile())
+				return true;
+
+			if (!isEqualFiles(fromFullPath, from, toFullPath, to))
+				return true;
 
-			}
-			return false;
-		} catch (Exception e) {
-			// 为了保证任务不中止，只打印而不抛出异常
-			logger.error(() -> "Error checking backup task: " + this, e);
-			return false;
 		}
+		return false;
 	}
 
-	private boolean isEqualFiles(Path file1, Path file2) throws IOException {
-		long size1 = Files.size(file1);
-		long size2 = Files.size(file1);
-		if (size1 != size2)
+	private boolean isEqualFiles(Path file1, FileSnapshot snapshot1, Path file2, FileSnapshot snapshot2)
+			throws IOException {
+		if (snapshot1.size() != snapshot2.size())
 			return false;
 
-		FileTime time1 = Files.getLastModifiedTime(file1);
-		FileTime time2 = Files.getLastModifiedTime(file2);
-		if (time1.equals(time2))
+		if (snapshot1.modifiedTime().equals(snapshot2.modifiedTime()))
 			// 为了快，只要文件大小和修改时间都一样，就认为文件一样，不再比较内容hash
 			return true;
 
-		String hash1 = fileHash(file1);
-		String hash2 = fileHash(file2);
-		return hash1.equals(hash2);
+		// 先看不读取内容就能得到的哈希值：复制时保存在目标文件扩展属性中的，以及索引中记录的（元数据没有变化才有效）
+		HashIndex hashIndex = context.getHashIndex();
+		BasicFileAttributes attrs1 = snapshot1.attributes();
+		BasicFileAttributes attrs2 = snapshot2.attributes();
+		String hash1 = hashIndex != null ? hashIndex.recordedFromHash(relativePath, attrs1) : null;
+		String hash2 = storedHash(file2, conf.getHashAlgorithm(), attrs2);
+		if (hash2 == null && hashIndex != null)
+			hash2 = hashIndex.recordedToHash(relativePath, attrs2);
+
+		if (hash1 != null && hash2 != null)
+			return hash1.equals(hash2);
+
+		// 修改时间不同的文件内容通常也不同，先抽样比较几个位置，有不同就不必读取全部内容
+		if (!FileComparing.equalSamples(file1, file2))
+			return false;
+
+		if (hash1 != null)
+			return hash1.equals(hashIndex.toHash(relativePath, file2));
+		if (hash2 != null)
+			return hash2.equals(hashIndex != null ? hashIndex.fromHash(relativePath, file1)
+					: fileHash(file1, conf.getHashAlgorithm()));
+
+		// 都不知道时同时读取两个文件逐块比较，遇到不同的块就停止
+		String hash = FileComparing.equalContentHash(file1, file2, conf.getHashAlgorithm());
+		if (hash != null && hashIndex != null)
+			hashIndex.equalContent(relativePath, attrs1, attrs2, hash);
+		return hash != null;
 	}
 
 	@Override
 	public Boolean call() throws IOException {
+		// 检测时的元数据可能已经过时
+		fromSnapshot = null;
+		toSnapshot = null;
 		if (!needBackup())
 			return false;
 
@@ -111,17 +243,312 @@ public class BackupTask implements Callable<Boolean> {
 			throw new NotDirectoryException(conf.getToPath().toString());
 		}
 
+		if (subtree)
+			backupSubtree();
+		else
+			backup();
+
+		return true;
+	}
+
+	private void backup() throws IOException {
 		Path fromFullPath = conf.getFromPath().resolve(relativePath);
 		Path toFullPath = conf.getToPath().resolve(relativePath);
 
-		delete(toFullPath);
-		prepareParent(toFullPath);
-		if (Files.isDirectory(fromFullPath))
+		GroupCommitter groupCommitter = context.getGroupCommitter();
+		if (groupCommitter != null) {
+			// 之前交给GroupCommitter的临时文件改名之前，目标位置上还是原来的文件，修改它会被改名覆盖
+			try {
+				groupCommitter.awaitReplaced(toFullPath);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted backup task: " + this);
+			}
+		}
+
+		HashIndex hashIndex = context.getHashIndex();
+		if (Files.isDirectory(fromFullPath)) {
+			// 目标目录已存在时保留，其下的路径可能正在被其他任务备份。不是目录时只删除它本身，不递归删除，
+			// 以免删除期间其他任务在此建了目录并备份了其下的文件
+			if (!Files.isDirectory(toFullPath, LinkOption.NOFOLLOW_LINKS)) {
+				try {
+					Files.deleteIfExists(toFullPath);
+				} catch (DirectoryNotEmptyException e) {
+					// 已被其他任务建成目录
+				}
+			}
+			prepareParent(toFullPath);
 			Files.createDirectories(toFullPath);
-		else if (Files.isRegularFile(fromFullPath))
-			Files.copy(fromFullPath, toFullPath, StandardCopyOption.COPY_ATTRIBUTES);
+			if (hashIndex != null)
+				hashIndex.remove(relativePath);
+			return;
+		}
 
-		return true;
+		Durability durability = conf.getDurability();
+		if (durability == Durability.GROUP && groupCommitter == null)
+			durability = Durability.FILE;
+		// 成批fsync时，目标文件写到存储设备上之前不能设置源文件的修改时间，否则崩溃后内容不完整的文件会被认为与源文件一致
+		boolean copyTimes = durability != Durability.GROUP;
+		FileSnapshot from = FileSnapshot.read(fromFullPath);
+
+		boolean copied = false;
+		String hash = null;
+		if (from.isRegularFile() && Files.isRegularFile(toFullPath, LinkOption.NOFOLLOW_LINKS)) {
+			long fromSize = from.size();
+			long toSize = Files.size(toFullPath);
+			if (toSize >= FileCopying.APPEND_MIN_SIZE && toSize < fromSize) {
+				// 日志等只增长的文件，只追加新增的部分。需要已知目标文件的哈希值，才能确认它是源文件的前缀
+				String toHash = storedHash(toFullPath, conf.getHashAlgorithm());
+				if (toHash == null && hashIndex != null)
+					toHash = hashIndex.recordedToHash(relativePath, toFullPath);
+				if (toHash != null) {
+					try {
+						hash = FileCopying.copyAppended(fromFullPath, toFullPath, toHash, conf.getHashAlgorithm(),
+								copyTimes, progressListener);
+						copied = hash != null;
+					} catch (AccessDeniedException e) {
+						// 源文件只读时目标文件也只读，不能追加
+						logger.debug(() -> "Cannot append in place, replacing: " + toFullPath);
+					}
+				}
+			}
+			if (!copied && fromSize >= FileCopying.DELTA_MIN_SIZE) {
+				// 大文件通常只在原位置修改了少量内容，只重写不同的块
+				try {
+					FileCopying.copyDelta(fromFullPath, toFullPath, copyTimes, progressListener);
+					// 没有计算哈希值，之前保存的已经无效
+					removeStoredHash(toFullPath);
+					copied = true;
+				} catch (AccessDeniedException e) {
+					// 目标文件带着源文件的权限，源文件只读时不能在原位置写，整个复制后改名替换
+					logger.debug(() -> "Cannot write in place, replacing: " + toFullPath);
+				}
+			}
+			if (copied && durability == Durability.FILE)
+				FileCopying.sync(toFullPath);
+		}
+
+		if (!copied) {
+			if (from.isRegularFile() && durability == Durability.GROUP) {
+				copyReplacingGrouped(fromFullPath, toFullPath, from.attributes(), groupCommitter);
+				return;
+			} else if (from.isRegularFile()) {
+				hash = copyReplacing(fromFullPath, toFullPath, durability);
+				copied = true;
+			} else {
+				// 源路径不是普通文件或目录
+				delete(toFullPath);
+			}
+		}
+
+		if (copied && durability == Durability.GROUP) {
+			// 在原位置写的文件，提交后再设置修改时间、记录哈希值
+			BasicFileAttributes written = Files.readAttributes(toFullPath, BasicFileAttributes.class,
+					LinkOption.NOFOLLOW_LINKS);
+			String copiedHash = hash;
+			groupCommitter.add(toFullPath, written.size(),
+					() -> committed(fromFullPath, toFullPath, from.attributes(), written, copiedHash));
+			return;
+		}
+		recordHashes(fromFullPath, toFullPath, hash);
+	}
+
+	/**
+	 * 成批fsync提交目标文件之后，设置源文件的修改时间并记录哈希值。提交前目标文件已被后来的任务修改的，由那个任务设置。
+	 */
+	private void committed(Path fromFullPath, Path toFullPath, BasicFileAttributes fromAttrs,
+			BasicFileAttributes written, String hash) {
+		try {
+			BasicFileAttributes current = Files.readAttributes(toFullPath, BasicFileAttributes.class,
+					LinkOption.NOFOLLOW_LINKS);
+			if (!Objects.equals(current.fileKey(), written.fileKey()) || current.size() != written.size()
+					|| !current.lastModifiedTime().equals(written.lastModifiedTime()))
+				return;
+			FileCopying.copyTimes(toFullPath, fromAttrs);
+			recordHashes(fromFullPath, toFullPath, hash);
+		} catch (NoSuchFileException e) {
+			// 已被删除
+		} catch (IOException e) {
+			// 修改时间与源文件不同，下次检测时会重新比较
+			logger.error(() -> "Error finishing committed backup task: " + this, e);
+		}
+	}
+
+	private void recordHashes(Path fromFullPath, Path toFullPath, String hash) throws IOException {
+		HashIndex hashIndex = context.getHashIndex();
+		if (hashIndex != null) {
+			if (Files.isRegularFile(toFullPath))
+				hashIndex.copied(relativePath, fromFullPath, toFullPath, hash);
+			else
+				hashIndex.remove(relativePath);
+		}
+	}
+
+	/**
+	 * 把源文件复制到目标位置旁边的临时文件，再改名替换目标文件。崩溃时目标位置上要么是原来的文件，要么是完整的新文件。
+	 *
+	 * @param durability
+	 *            {@link Durability#NONE}或{@link Durability#FILE}
+	 * @return 复制的内容的哈希值
+	 */
+	private String copyReplacing(Path fromFullPath, Path toFullPath, Durability durability) throws IOException {
+		prepareParent(toFullPath);
+		Path tempPath = tempPath(toFullPath);
+		tempFilesInUse.add(tempPath);
+		String hash;
+		boolean moved = false;
+		try {
+			hash = FileCopying.copyHashing(fromFullPath, tempPath, conf.getHashAlgorithm(), true, progressListener);
+			if (durability == Durability.FILE)
+				FileCopying.sync(tempPath);
+			if (Files.isDirectory(toFullPath, LinkOption.NOFOLLOW_LINKS))
+				// 目录不能被改名替换
+				delete(toFullPath);
+			Files.move(tempPath, toFullPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			moved = true;
+		} finally {
+			if (!moved)
+				Files.deleteIfExists(tempPath);
+			tempFilesInUse.remove(tempPath);
+		}
+
+		if (durability == Durability.FILE)
+			FileCopying.syncDirectory(toFullPath.getParent());
+		return hash;
+	}
+
+	/**
+	 * 把源文件复制到目标位置旁边的临时文件，交给GroupCommitter成批fsync后改名替换目标文件，提交后再设置修改时间、记录哈希值。
+	 */
+	private void copyReplacingGrouped(Path fromFullPath, Path toFullPath, BasicFileAttributes fromAttrs,
+			GroupCommitter groupCommitter) throws IOException {
+		prepareParent(toFullPath);
+		Path tempPath = tempPath(toFullPath);
+		tempFilesInUse.add(tempPath);
+		boolean added = false;
+		try {
+			String hash = FileCopying.copyHashing(fromFullPath, tempPath, conf.getHashAlgorithm(), false,
+					progressListener);
+			if (Files.isDirectory(toFullPath, LinkOption.NOFOLLOW_LINKS))
+				// 目录不能被改名替换
+				delete(toFullPath);
+			// 改名不改变fileKey、大小和修改时间，提交时可以据此判断目标文件是否已被后来的任务修改
+			BasicFileAttributes written = Files.readAttributes(tempPath, BasicFileAttributes.class,
+					LinkOption.NOFOLLOW_LINKS);
+			groupCommitter.addReplacing(tempPath, toFullPath, written.size(),
+					() -> committed(fromFullPath, toFullPath, fromAttrs, written, hash),
+					() -> tempFilesInUse.remove(tempPath));
+			added = true;
+		} finally {
+			if (!added) {
+				Files.deleteIfExists(tempPath);
+				tempFilesInUse.remove(tempPath);
+			}
+		}
+	}
+
+	private static Path tempPath(Path toFullPath) {
+		return toFullPath.resolveSibling("." + toFullPath.getFileName() + TEMP_SUFFIX);
+	}
+
+	private void backupSubtree() throws IOException {
+		PathFilter pathFilter = conf.newPathFilter();
+		// 目标目录原本不存在时，其下所有路径都需要备份，不必逐个判断
+		boolean fresh = Files.notExists(toFullPath());
+
+		Files.walkFileTree(fromFullPath(), new SimpleFileVisitor<Path>() {
+
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				// 不进入toPath，以免无限循环
+				if (dir.startsWith(conf.getToPath()))
+					return FileVisitResult.SKIP_SUBTREE;
+				visit(dir, attrs);
+				if (!fresh)
+					deleteStaleTempFiles(conf.getToPath().resolve(conf.getFromPath().relativize(dir)));
+				// 不可能有路径通过过滤的子树不进入
+				if (!pathFilter.mayMatchUnder(conf.getFromPath().relativize(dir)))
+					return FileVisitResult.SKIP_SUBTREE;
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				visit(file, attrs);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+				// 为了保证任务不中止，只打印而不抛出异常
+				logger.error(() -> "Error visiting " + file + " in backup task: " + BackupTask.this, exc);
+				return FileVisitResult.CONTINUE;
+			}
+
+			private void visit(Path fullPath, BasicFileAttributes attrs) throws IOException {
+				if (Thread.currentThread().isInterrupted())
+					throw new InterruptedIOException("Interrupted backup task: " + BackupTask.this);
+
+				Path entryPath = conf.getFromPath().relativize(fullPath);
+				if (isTempFile(entryPath) || !pathFilter.matches(entryPath))
+					return;
+
+				BackupTask entryTask = new BackupTask(conf, entryPath);
+				entryTask.context = context;
+				entryTask.progressListener = progressListener;
+				// 遍历时刚读到的属性，不必再读取（符号链接的属性是链接本身的，仍需跟随链接读取）
+				if (!attrs.isSymbolicLink())
+					entryTask.fromSnapshot = FileSnapshot.of(attrs);
+				try {
+					if (fresh || entryTask.needBackup())
+						entryTask.backup();
+				} catch (InterruptedIOException | ClosedByInterruptException e) {
+					// 被取消，不再继续
+					throw e;
+				} catch (IOException e) {
+					// 为了保证任务不中止，只打印而不抛出异常
+					logger.error(() -> "Error backing up " + entryPath + " in backup task: " + BackupTask.this, e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * 判断路径的文件名是否是复制时使用的临时文件名。
+	 */
+	public static boolean isTempFile(Path path) {
+		Path name = path.getFileName();
+		return name != null && name.toString().startsWith(".") && name.toString().endsWith(TEMP_SUFFIX);
+	}
+
+	/**
+	 * 删除复制中止（例如崩溃）时留在目标目录中的临时文件，正在使用的除外。出错时只打印。
+	 *
+	 * @param tempPath
+	 *            临时文件的完整路径
+	 */
+	public static void deleteStaleTempFile(Path tempPath) {
+		if (tempFilesInUse.contains(tempPath))
+			return;
+		try {
+			if (Files.isRegularFile(tempPath, LinkOption.NOFOLLOW_LINKS) && Files.deleteIfExists(tempPath))
+				logger.info(() -> "Deleted stale temp file " + tempPath);
+		} catch (IOException e) {
+			logger.error(() -> "Error deleting stale temp file " + tempPath, e);
+		}
+	}
+
+	/**
+	 * 删除目标目录中复制中止时留下的临时文件。目录不存在时什么也不做。
+	 */
+	private static void deleteStaleTempFiles(Path toDir) throws IOException {
+		if (!Files.isDirectory(toDir, LinkOption.NOFOLLOW_LINKS))
+			return;
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(toDir, "*" + TEMP_SUFFIX)) {
+			for (Path entry : entries)
+				if (isTempFile(entry))
+					deleteStaleTempFile(entry);
+		}
 	}
 
 	private void delete(Path path) throws IOException {
@@ -194,7 +621,7 @@ public class BackupTask implements Callable<Boolean> {
 
 	@Override
 	public String toString() {
-		return "BackupTask [conf=" + conf + ", relativePath=" + relativePath + "]";
+		return "BackupTask [conf=" + conf + ", relativePath=" + relativePath + ", subtree=" + subtree + "]";
 	}
 
 }
@@ -21,14 +21,24 @@ public class DetectingTask implements Runnable {
 	public static Integer READY_WAITING_SECONDS = 5;
 
 	private final BackupConf conf;
+	private final BackupContext context;
 	private final BackupDelayingQueue queue;
 
 	@SuppressWarnings("unused")
 	private boolean running = false;
 
 	public DetectingTask(BackupConf conf, BackupDelayingQueue queue) {
+		this(conf, BackupContext.NONE, queue);
+	}
+
+	/**
+	 * @param context
+	 *            执行配置时的运行时状态，交给检测到的任务
+	 */
+	public DetectingTask(BackupConf conf, BackupContext context, BackupDelayingQueue queue) {
 		conf.validate();
 		this.conf = conf;
+		this.context = context;
 		this.queue = queue;
 	}
 
@@ -46,7 +56,7 @@ public class DetectingTask implements Runnable {
 			case ONCE:
 				// ONCE备份任务，如果可以备份就执行一次全量检测并等待完成
 				if (checkBackupable(true)) {
-					fullDetecting = executor.submit(new FullDetectingTask(conf, queue));
+					fullDetecting = executor.submit(new FullDetectingTask(conf, context, queue));
 					fullDetecting.get();
 				}
 				break;
@@ -60,7 +70,7 @@ public class DetectingTask implements Runnable {
 						} while (!checkBackupable(false));
 					}
 					realTimeDetecting = executor.submit(new RealTimeDetectingTask(conf, queue));
-					fullDetecting = executor.submit(new FullDetectingTask(conf, queue));
+					fullDetecting = executor.submit(new FullDetectingTask(conf, context, queue));
 					// 等待完整检测完毕
 					fullDetecting.get();
 					// hold在实时检测任务上
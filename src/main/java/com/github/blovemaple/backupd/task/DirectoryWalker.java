@@ -0,0 +1,398 @@
+package com.github.blovemaple.backupd.task;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+/**
+ * 并行遍历一个目录树。每个目录的列举和其中各项的处理（visitor）由ForkJoinPool中的线程进行，子目录作为新的任务fork出去，由空闲线程窃取；
+ * 一个目录的项很多时也分成多块并行处理。<br>
+ * visitor的结果按先序（目录在其内容之前，同一目录中按文件名排序）交给调用{@link #walk}的线程，顺序与线程调度无关。<br>
+ * 已列举但结果还没有被取走的目录最多{@link #MAX_PENDING_DIRECTORIES}个，超过后新的子目录等调用线程取到时才开始列举，以限制占用的内存。<br>
+ * 可以同时给出另一个根目录（otherRoot），每个目录与otherRoot下相同相对路径的目录按文件名合并（merge join），每个相对路径只处理一次，
+ * 同时得到两边的属性。只进入root下的子目录，只在otherRoot下存在的项只处理本身。两边的列举都只保留当前目录的，不记录已处理过的路径。<br>
+ * 不跟随符号链接（同{@link Files#walkFileTree}），root本身和otherRoot中指向目录的符号链接除外。<br>
+ * 需要按目录处理时使用{@link DirectoryHandler}：每个目录得到一个{@link DirectoryVisitor}，可以给出已知的列举代替读取目录，并在目录中各项处理完后给出目录本身的结果。
+ *
+ * @author blovemaple <blovemaple2010(at)gmail.com>
+ */
+public class DirectoryWalker<T> {
+	/**
+	 * 并行遍历的线程数。
+	 */
+	public static int WALK_THREADS = 8;
+	/**
+	 * 最多同时有多少个已开始列举、结果还没有被取走的目录。
+	 */
+	public static int MAX_PENDING_DIRECTORIES = 4096;
+	/**
+	 * 一个目录的项超过此数量时分块并行处理。
+	 */
+	public static int ENTRY_CHUNK_SIZE = 256;
+
+	private final Path root;
+	private final Path otherRoot;
+	private final DirectoryHandler<T> handler;
+
+	private ForkJoinPool pool;
+	private final AtomicInteger pendingDirectories = new AtomicInteger();
+
+	/**
+	 * 处理每一项的方法。在遍历线程中调用，需要线程安全。
+	 */
+	@FunctionalInterface
+	public interface Visitor<T> {
+		/**
+		 * @param relativePath
+		 *            相对于根目录的路径（不包括根目录本身）
+		 * @param attrs
+		 *            root下此项本身（不跟随符号链接）的属性，只在otherRoot下存在时为null
+		 * @param otherAttrs
+		 *            otherRoot下此项本身的属性，不存在时为null
+		 * @return 结果，null表示没有结果
+		 */
+		T visit(Path relativePath, BasicFileAttributes attrs, BasicFileAttributes otherAttrs);
+	}
+
+	/**
+	 * 处理一个目录中各项的对象，每个目录一个。在遍历线程中调用，一个目录的项分块处理时visit需要线程安全。
+	 */
+	public interface DirectoryVisitor<T> extends Visitor<T> {
+		/**
+		 * 返回已知的目录中的文件名（已排序），用来代替读取目录，此时不读取otherRoot下对应的目录，各项的otherAttrs都为null。
+		 *
+		 * @return 文件名，null表示需要读取目录
+		 */
+		default List<String> knownNames() {
+			return null;
+		}
+
+		/**
+		 * 判断是否进入此目录中的一个子目录。返回false时跳过整个子树（子目录本身仍然处理）。
+		 *
+		 * @param relativePath
+		 *            子目录相对于根目录的路径
+		 */
+		default boolean shouldDescend(Path relativePath) {
+			return true;
+		}
+
+		/**
+		 * 目录中各项都处理完后调用，结果在这些项的结果之前交给consumer。
+		 *
+		 * @return 目录的结果，null表示没有结果
+		 */
+		default T finish() {
+			return null;
+		}
+	}
+
+	/**
+	 * 为每个目录（包括root）创建{@link DirectoryVisitor}。在遍历线程中调用，需要线程安全。
+	 */
+	@FunctionalInterface
+	public interface DirectoryHandler<T> {
+		/**
+		 * @param relativePath
+		 *            目录相对于根目录的路径，root为空路径
+		 * @param attrs
+		 *            目录的属性
+		 */
+		DirectoryVisitor<T> enter(Path relativePath, BasicFileAttributes attrs) throws IOException;
+	}
+
+	/**
+	 * @param root
+	 *            根目录
+	 * @param visitor
+	 *            处理每一项（不包括root本身），参数为相对于root的路径和此项本身（不跟随符号链接）的属性，返回null表示没有结果。在遍历线程中调用，需要线程安全
+	 */
+	public DirectoryWalker(Path root, BiFunction<Path, BasicFileAttributes, T> visitor) {
+		this(root, null, (relativePath, attrs, otherAttrs) -> visitor.apply(relativePath, attrs));
+	}
+
+	/**
+	 * @param root
+	 *            根目录
+	 * @param otherRoot
+	 *            与root合并遍历的另一个根目录，null或不是目录时只遍历root
+	 * @param visitor
+	 *            处理每一项
+	 */
+	public DirectoryWalker(Path root, Path otherRoot, Visitor<T> visitor) {
+		this(root, otherRoot, (relativePath, attrs) -> visitor::visit);
+	}
+
+	/**
+	 * @param root
+	 *            根目录
+	 * @param otherRoot
+	 *            与root合并遍历的另一个根目录，null或不是目录时只遍历root
+	 * @param handler
+	 *            为每个目录创建处理其中各项的对象
+	 */
+	public DirectoryWalker(Path root, Path otherRoot, DirectoryHandler<T> handler) {
+		this.root = root;
+		this.otherRoot = otherRoot;
+		this.handler = handler;
+	}
+
+	/**
+	 * 遍历目录树，按先序把visitor的结果交给consumer。root不是目录时什么也不做。
+	 *
+	 * @param consumer
+	 *            接收visitor的结果，在当前线程中调用
+	 * @throws IOException
+	 *             列举目录或读取属性出错
+	 * @throws InterruptedException
+	 */
+	public void walk(Consumer<? super T> consumer) throws IOException, InterruptedException {
+		if (!Files.isDirectory(root))
+			return;
+
+		pool = new ForkJoinPool(Math.max(1, WALK_THREADS));
+		try {
+			consume(new DirectoryScan(root, Files.readAttributes(root, BasicFileAttributes.class),
+					otherRoot != null && Files.isDirectory(otherRoot) ? otherRoot : null), consumer);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private void consume(DirectoryScan scan, Consumer<? super T> consumer) throws IOException, InterruptedException {
+		if (!scan.started)
+			start(scan);
+
+		List<Entry<T>> entries;
+		try {
+			entries = scan.get();
+		} catch (ExecutionException e) {
+			throw toIOException(e);
+		}
+		pendingDirectories.decrementAndGet();
+
+		for (int i = 0; i < entries.size(); i++) {
+			Entry<T> entry = entries.get(i);
+			// 取走后不再引用，已遍历完的子树可以被回收
+			entries.set(i, null);
+			if (entry.result != null)
+				consumer.accept(entry.result);
+			if (entry.subdirectory != null)
+				consume(entry.subdirectory, consumer);
+		}
+	}
+
+	private void start(DirectoryScan scan) {
+		scan.started = true;
+		pendingDirectories.incrementAndGet();
+		pool.execute(scan);
+	}
+
+	private static IOException toIOException(ExecutionException e) {
+		// ForkJoinTask可能会把异常包装或复制一层，找到原来的IOException
+		for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+			if (cause instanceof IOException)
+				return (IOException) cause;
+		}
+		// visitor抛出的其他异常原样抛出
+		if (e.getCause() instanceof RuntimeException)
+			throw (RuntimeException) e.getCause();
+		if (e.getCause() instanceof Error)
+			throw (Error) e.getCause();
+		return new IOException(e.getCause());
+	}
+
+	/**
+	 * 目录中的一项：visitor的结果，以及是目录时遍历它的任务。
+	 */
+	private static class Entry<T> {
+		private final T result;
+		private final DirectoryWalker<T>.DirectoryScan subdirectory;
+
+		private Entry(T result, DirectoryWalker<T>.DirectoryScan subdirectory) {
+			this.result = result;
+			this.subdirectory = subdirectory;
+		}
+	}
+
+	/**
+	 * 列举一个目录（以及otherRoot下对应的目录）并处理其中的各项。
+	 */
+	private class DirectoryScan extends RecursiveTask<List<Entry<T>>> {
+		private static final long serialVersionUID = 1L;
+
+		private final Path dir;
+		private final BasicFileAttributes attrs;
+		// otherRoot下对应的目录，不存在时为null
+		private final Path otherDir;
+		// 是否已经开始，只在创建它的线程中设置，结果发布之后才被调用线程读取
+		private boolean started = false;
+
+		private DirectoryScan(Path dir, BasicFileAttributes attrs, Path otherDir) {
+			this.dir = dir;
+			this.attrs = attrs;
+			this.otherDir = otherDir;
+		}
+
+		@Override
+		protected List<Entry<T>> compute() {
+			DirectoryVisitor<T> visitor;
+			try {
+				visitor = handler.enter(root.relativize(dir), attrs);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+
+			List<String> names = visitor.knownNames();
+			List<String> otherNames = null;
+			Path otherDir = this.otherDir;
+			boolean otherListed = false;
+			if (names == null) {
+				names = list(dir);
+				if (names == null)
+					// 遍历期间被删除
+					return Collections.emptyList();
+				if (otherDir != null) {
+					otherNames = list(otherDir);
+					if (otherNames == null)
+						// 不是目录或已被删除
+						otherDir = null;
+					otherListed = true;
+				}
+			}
+
+			// 按文件名合并两边的列举，相同的名字只保留一个
+			List<String> mergedNames;
+			if (otherNames == null || otherNames.isEmpty()) {
+				mergedNames = names;
+			} else {
+				mergedNames = new ArrayList<>(names.size() + otherNames.size());
+				int i = 0, j = 0;
+				while (i < names.size() || j < otherNames.size()) {
+					int cmp = i == names.size() ? 1
+							: j == otherNames.size() ? -1 : names.get(i).compareTo(otherNames.get(j));
+					if (cmp <= 0) {
+						mergedNames.add(names.get(i++));
+						if (cmp == 0)
+							j++;
+					} else {
+						mergedNames.add(otherNames.get(j++));
+					}
+				}
+			}
+
+			@SuppressWarnings("unchecked")
+			Entry<T>[] entries = new Entry[mergedNames.size()];
+			Path finalOtherDir = otherDir;
+			boolean finalOtherListed = otherListed;
+			if (mergedNames.size() <= ENTRY_CHUNK_SIZE) {
+				visitRange(visitor, mergedNames, finalOtherDir, finalOtherListed, entries, 0, mergedNames.size());
+			} else {
+				List<ForkJoinTask<?>> chunks = new ArrayList<>();
+				for (int start = 0; start < mergedNames.size(); start += ENTRY_CHUNK_SIZE) {
+					int chunkStart = start, chunkEnd = Math.min(start + ENTRY_CHUNK_SIZE, mergedNames.size());
+					chunks.add(ForkJoinTask.adapt(
+							() -> visitRange(visitor, mergedNames, finalOtherDir, finalOtherListed, entries, chunkStart,
+									chunkEnd)));
+				}
+				ForkJoinTask.invokeAll(chunks);
+			}
+
+			List<Entry<T>> result = new ArrayList<>(entries.length + 1);
+			T finished = visitor.finish();
+			if (finished != null)
+				result.add(new Entry<>(finished, null));
+			for (Entry<T> entry : entries)
+				if (entry != null)
+					result.add(entry);
+			return result;
+		}
+
+		/**
+		 * 列举目录中的文件名，排序后返回。目录不存在时返回null。
+		 */
+		private List<String> list(Path directory) {
+			List<String> names = new ArrayList<>();
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+				for (Path child : stream)
+					names.add(child.getFileName().toString());
+			} catch (NoSuchFileException | NotDirectoryException e) {
+				return null;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			Collections.sort(names);
+			return names;
+		}
+
+		/**
+		 * 处理一部分项。
+		 *
+		 * @param otherDir
+		 *            otherRoot下对应的目录，不存在时为null
+		 * @param otherListed
+		 *            是否已列举otherDir。已列举时读取其中对应项的属性；没有列举（使用已知的列举）时otherAttrs为null，
+		 *            子目录仍与otherDir中对应的目录合并遍历
+		 */
+		private void visitRange(DirectoryVisitor<T> visitor, List<String> names, Path otherDir, boolean otherListed,
+				Entry<T>[] entries, int start, int end) {
+			for (int i = start; i < end; i++) {
+				Path child = dir.resolve(names.get(i));
+				Path otherChild = otherDir != null ? otherDir.resolve(names.get(i)) : null;
+				BasicFileAttributes attrs = readAttributes(child);
+				BasicFileAttributes otherAttrs = otherListed && otherChild != null ? readAttributes(otherChild) : null;
+				if (attrs == null && otherAttrs == null)
+					// 遍历期间被删除
+					continue;
+
+				Path relativePath = root.relativize(child);
+				T result = visitor.visit(relativePath, attrs, otherAttrs);
+				DirectoryScan subdirectory = null;
+				if (attrs != null && attrs.isDirectory() && visitor.shouldDescend(relativePath)) {
+					// 已列举otherRoot时根据属性判断对应的是不是目录，否则由子目录列举时判断
+					boolean otherIsDirectory = otherChild != null && (!otherListed || otherAttrs != null
+							&& (otherAttrs.isDirectory() || otherAttrs.isSymbolicLink() && Files.isDirectory(otherChild)));
+					subdirectory = new DirectoryScan(child, attrs, otherIsDirectory ? otherChild : null);
+					// 未取走的目录不多时立即开始，否则等调用线程取到时再开始
+					if (pendingDirectories.incrementAndGet() <= MAX_PENDING_DIRECTORIES) {
+						subdirectory.started = true;
+						subdirectory.fork();
+					} else {
+						pendingDirectories.decrementAndGet();
+					}
+				}
+				if (result != null || subdirectory != null)
+					entries[i] = new Entry<>(result, subdirectory);
+			}
+		}
+
+		/**
+		 * 读取此项本身的属性，不存在时返回null。
+		 */
+		private BasicFileAttributes readAttributes(Path path) {
+			try {
+				return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			} catch (NoSuchFileException e) {
+				return null;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+}
@@ -4,28 +4,57 @@ import static com.github.blovemaple.backupd.utils.LambdaUtils.*;
 
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.nio.file.PathMatcher;
-import java.util.stream.Stream;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import com.github.blovemaple.backupd.machine.BackupDelayingQueue;
+import com.github.blovemaple.backupd.task.DirectoryWalker.DirectoryVisitor;
+import com.github.blovemaple.backupd.utils.FileSnapshot;
+import com.github.blovemaple.backupd.utils.PathFilter;
 
 /**
- * 执行一次完整检测的任务。
- * 
+ * 执行一次完整检测的任务。<br>
+ * 配置了{@link BackupContext#getScanManifestFile()}时使用上一次完整检测的{@link ScanManifest}，跳过没有变化的目录和文件，
+ * 检测正常结束后写入新的清单。<br>
+ * 写清单时每隔{@link #CHECKPOINT_INTERVAL_MILLIS}毫秒保存一次检查点，记录最后一个已处理（其中各项的任务已提交到队列）的目录。
+ * 检测中途停止后，下一次检测从检查点继续，不再处理遍历顺序在此之前的路径。
+ *
  * @author blovemaple <blovemaple2010(at)gmail.com>
  */
 public class FullDetectingTask implements Runnable {
 	private static final Logger logger = LogManager.getLogger(FullDetectingTask.class);
 
+	/**
+	 * 每批提交到队列的任务数。
+	 */
+	public static int SUBMIT_BATCH_SIZE = 256;
+	/**
+	 * 每隔多少毫秒保存一次检查点。
+	 */
+	public static long CHECKPOINT_INTERVAL_MILLIS = 60000;
+
 	private final BackupConf conf;
+	private final BackupContext context;
 	private final BackupDelayingQueue queue;
 
 	public FullDetectingTask(BackupConf conf, BackupDelayingQueue queue) {
+		this(conf, BackupContext.NONE, queue);
+	}
+
+	/**
+	 * @param context
+	 *            执行配置时的运行时状态，交给检测到的任务
+	 */
+	public FullDetectingTask(BackupConf conf, BackupContext context, BackupDelayingQueue queue) {
 		this.conf = conf;
+		this.context = context;
 		this.queue = queue;
 	}
 
@@ -34,33 +63,35 @@ public class FullDetectingTask implements Runnable {
 		logger.info(() -> "Started full detecting for " + conf);
 
 		Path fromPath = conf.getFromPath();
-		Path toPath = conf.getToPath();
 
 		if (Files.notExists(fromPath)) {
 			return;
 		}
 
-		PathMatcher pathMatcher = conf.newPathMatcher();
+		PathFilter pathFilter = conf.newPathFilter();
+		long scanTime = System.currentTimeMillis();
+		Path manifestFile = context.getScanManifestFile();
+		String manifestKey = manifestFile != null ? manifestKey(pathFilter) : null;
 
-		try {
-			// 遍历fromPath和toPath下所有的Path，生成所有相对路径
-			Stream<Path> pathStream = Files.walk(fromPath).map(fromPath::relativize);
-			if (Files.isDirectory(toPath))
-				pathStream = Stream.concat(pathStream, Files.walk(toPath).map(toPath::relativize));
-
-			pathStream
-					// 去掉fromPath和toPath本身
-					.filter(path -> !path.toString().isEmpty())
-					// 去重
-					.distinct()
-					// 根据配置过滤
-					.filter(pathMatcher::matches)
-					// 为每个Path创建BackupTask
-					.map(relativePath -> new BackupTask(conf, relativePath))
-					// 过滤出需要备份的task
-					.filter(rethrowPredicate(BackupTask::needBackup))
-					// 提交到队列
-					.forEachOrdered(rethrowConsumer(queue::submit));
+		try (ScanManifest manifest = manifestFile != null ? ScanManifest.open(manifestFile, manifestKey) : null;
+				ScanManifest.Writer manifestWriter = manifestFile != null
+						? openManifestWriter(manifestFile, manifestKey, scanTime) : null) {
+			// 从检查点继续时，遍历顺序在此之前的路径都已处理
+			Path cursor = manifestWriter != null && manifestWriter.cursor() != null
+					? fromPath.getFileSystem().getPath(manifestWriter.cursor()) : null;
+			if (cursor != null)
+				logger.info(() -> "Resuming full detecting for " + conf + " after " + cursor);
+			Submitter submitter = new Submitter(manifestWriter);
+
+			// 并行遍历fromPath下所有的Path，同时按目录合并toPath下的列举，在遍历线程中判断是否需要备份，按先序提交。
+			// 两边读到的属性直接交给任务，不必再读取。只在toPath中存在的Path不需要备份（源文件不存在时不删除目标文件），直接跳过
+			new DirectoryWalker<Object>(fromPath, conf.getToPath(), (relativeDir, dirAttrs) -> new Detector(
+					relativeDir, dirAttrs, manifest != null ? manifest.directory(relativeDir) : null,
+					manifestWriter, pathFilter, cursor)).walk(rethrowConsumer(submitter::accept));
+			submitter.flush();
+
+			if (manifestWriter != null)
+				manifestWriter.commit();
 		} catch (InterruptedException e) {
 			// 线程被中断，直接结束
 		} catch (IOException e) {
@@ -72,4 +103,202 @@ public class FullDetectingTask implements Runnable {
 		logger.info(() -> "Ended full detecting for " + conf);
 	}
 
+	/**
+	 * 有检查点时从检查点继续写，否则写新的清单。
+	 */
+	private static ScanManifest.Writer openManifestWriter(Path manifestFile, String manifestKey, long scanTime)
+			throws IOException {
+		ScanManifest.Writer writer = ScanManifest.Writer.resume(manifestFile, manifestKey);
+		return writer != null ? writer : new ScanManifest.Writer(manifestFile, manifestKey, scanTime);
+	}
+
+	/**
+	 * 按遍历顺序接收结果：任务攒够一批提交到队列，目录的记录写入清单，并定期保存检查点。只在调用walk的线程中使用。
+	 */
+	private class Submitter {
+		private final ScanManifest.Writer manifestWriter;
+		private final List<BackupTask> batch = new ArrayList<>(SUBMIT_BATCH_SIZE);
+		private long lastCheckpointTime = System.currentTimeMillis();
+
+		private Submitter(ScanManifest.Writer manifestWriter) {
+			this.manifestWriter = manifestWriter;
+		}
+
+		private void accept(Object result) throws IOException, InterruptedException {
+			if (result instanceof ScanManifest.Directory) {
+				ScanManifest.Directory directory = (ScanManifest.Directory) result;
+				manifestWriter.write(directory);
+				// 此目录之前的任务都提交并写到存储设备上的队列日志中之后才能保存检查点，否则崩溃后检查点之前的任务会丢失
+				if (System.currentTimeMillis() - lastCheckpointTime >= CHECKPOINT_INTERVAL_MILLIS) {
+					flush();
+					queue.forceJournal();
+					manifestWriter.checkpoint(directory.relativePath());
+					lastCheckpointTime = System.currentTimeMillis();
+				}
+				return;
+			}
+			// 攒够一批提交到队列
+			batch.add((BackupTask) result);
+			if (batch.size() >= SUBMIT_BATCH_SIZE)
+				flush();
+		}
+
+		private void flush() throws IOException, InterruptedException {
+			queue.submitAll(batch);
+			batch.clear();
+		}
+	}
+
+	/**
+	 * 清单的适用条件：过滤条件和toPath的标识。过滤条件变了，或toPath换成了另一个目录（例如换了备份盘）时，不使用上一次的清单。
+	 */
+	private String manifestKey(PathFilter pathFilter) {
+		String target;
+		try {
+			BasicFileAttributes attrs = Files.readAttributes(conf.getToPath(), BasicFileAttributes.class);
+			target = attrs.fileKey() + "@" + attrs.creationTime().toMillis();
+		} catch (NoSuchFileException e) {
+			target = "";
+		} catch (IOException e) {
+			// 无法确定时不使用上一次的清单
+			target = "unknown@" + System.nanoTime();
+		}
+		return pathFilter + "\n" + target;
+	}
+
+	/**
+	 * 处理一个目录中的各项：判断是否需要备份，并记录到新的清单中。
+	 */
+	private class Detector implements DirectoryVisitor<Object> {
+		private final Path relativeDir;
+		private final BasicFileAttributes dirAttrs;
+		// 上一次的清单中此目录的记录
+		private final ScanManifest.Directory previous;
+		private final ScanManifest.Writer manifestWriter;
+		private final PathFilter pathFilter;
+		// 检查点的位置，没有则为null
+		private final Path cursor;
+
+		// 目录没有变化时使用上一次的列举，此时没有读取toPath下的列举
+		private final List<String> knownNames;
+		private final List<ScanManifest.Entry> entries = Collections.synchronizedList(new ArrayList<>());
+
+		private Detector(Path relativeDir, BasicFileAttributes dirAttrs, ScanManifest.Directory previous,
+				ScanManifest.Writer manifestWriter, PathFilter pathFilter, Path cursor) {
+			this.relativeDir = relativeDir;
+			this.dirAttrs = dirAttrs;
+			this.previous = previous;
+			this.manifestWriter = manifestWriter;
+			this.pathFilter = pathFilter;
+			this.cursor = cursor;
+			this.knownNames = previous != null ? previous.namesIfUnchanged(dirAttrs) : null;
+		}
+
+		@Override
+		public List<String> knownNames() {
+			return knownNames;
+		}
+
+		@Override
+		public boolean shouldDescend(Path relativePath) {
+			// 不可能有路径通过过滤的子树、检查点之前已处理完的子树不进入
+			return pathFilter.mayMatchUnder(relativePath)
+					&& (cursor == null || compareAsSegments(relativePath, cursor, false) >= 0);
+		}
+
+		@Override
+		public Object visit(Path relativePath, BasicFileAttributes fromAttrs, BasicFileAttributes toAttrs) {
+			if (BackupTask.isTempFile(relativePath)) {
+				// 复制中止时留下的临时文件
+				if (toAttrs != null)
+					BackupTask.deleteStaleTempFile(conf.getToPath().resolve(relativePath));
+				return null;
+			}
+			if (fromAttrs == null)
+				return null;
+			// 检查点之前已处理
+			if (cursor != null && compareAsSegments(relativePath, cursor, true) <= 0)
+				return null;
+
+			String name = relativePath.getFileName().toString();
+			ScanManifest.Entry last = previous != null ? previous.entry(name) : null;
+			BackupTask task = null;
+			boolean failed = false;
+			// 上次已一致且没有变化的不再检查
+			if (last == null || !last.isUnchangedInSync(fromAttrs)) {
+				// 没有读取toPath下的列举时，由任务读取目标的属性
+				FileSnapshot toSnapshot = knownNames != null ? null
+						: toAttrs == null ? FileSnapshot.ABSENT : snapshot(toAttrs);
+				try {
+					task = detect(relativePath, snapshot(fromAttrs), toSnapshot, pathFilter);
+				} catch (Exception e) {
+					// 为了保证检测不中止，只打印而不抛出异常
+					logger.error(() -> "Error checking " + relativePath + " of " + conf, e);
+					failed = true;
+				}
+			}
+
+			if (manifestWriter != null) {
+				// 需要备份的项、无法判断的项下次重新检查
+				boolean inSync = task == null && !failed && !fromAttrs.isSymbolicLink()
+						&& !manifestWriter.isRacy(fromAttrs);
+				entries.add(new ScanManifest.Entry(name, fromAttrs, inSync));
+			}
+			return task;
+		}
+
+		@Override
+		public Object finish() {
+			if (manifestWriter == null)
+				return null;
+			// 检查点之前（包括检查点）的目录的记录已写入
+			if (cursor != null && compareAsSegments(relativeDir, cursor, true) <= 0)
+				return null;
+			ScanManifest.sort(entries);
+			long modifiedTime = manifestWriter.isRacy(dirAttrs) ? -1 : dirAttrs.lastModifiedTime().toMillis();
+			return new ScanManifest.Directory(relativeDir.toString(), modifiedTime, entries);
+		}
+	}
+
+	/**
+	 * 按遍历顺序（先序，同一目录中按文件名排序）比较两个相对路径。
+	 *
+	 * @param parentFirst
+	 *            一个是另一个的上级时，true表示上级在前，false表示认为相等（用于判断整个子树是否在另一个路径之前）
+	 */
+	private static int compareAsSegments(Path path1, Path path2, boolean parentFirst) {
+		int count1 = path1.toString().isEmpty() ? 0 : path1.getNameCount();
+		int count2 = path2.toString().isEmpty() ? 0 : path2.getNameCount();
+		for (int i = 0; i < Math.min(count1, count2); i++) {
+			int cmp = path1.getName(i).toString().compareTo(path2.getName(i).toString());
+			if (cmp != 0)
+				return cmp;
+		}
+		return parentFirst ? Integer.compare(count1, count2) : 0;
+	}
+
+	/**
+	 * 根据配置过滤，为Path创建BackupTask，需要备份时返回。
+	 *
+	 * @throws IOException
+	 *             无法判断是否需要备份
+	 */
+	private BackupTask detect(Path relativePath, FileSnapshot fromSnapshot, FileSnapshot toSnapshot,
+			PathFilter pathFilter) throws IOException {
+		if (!pathFilter.matches(relativePath))
+			return null;
+		BackupTask task = new BackupTask(conf, relativePath);
+		task.setContext(context);
+		task.setFromSnapshot(fromSnapshot);
+		task.setToSnapshot(toSnapshot);
+		return task.checkNeedBackup() ? task : null;
+	}
+
+	/**
+	 * 遍历时读到的属性，符号链接返回null。
+	 */
+	private static FileSnapshot snapshot(BasicFileAttributes attrs) {
+		return attrs.isSymbolicLink() ? null : FileSnapshot.of(attrs);
+	}
+
 }
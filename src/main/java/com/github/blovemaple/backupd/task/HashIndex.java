@@ -0,0 +1,440 @@
+package com.github.blovemaple.backupd.task;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.github.blovemaple.backupd.utils.FileHashing;
+import com.github.blovemaple.backupd.utils.HashAlgorithm;
+import com.google.common.io.CountingInputStream;
+
+/**
+ * 一个配置下文件内容哈希值的索引，按相对路径记录源文件和目标文件计算哈希值时的大小、修改时间、fileKey和哈希值。
+ * 文件的这些元数据没有变化时直接使用记录的哈希值，不再读取文件内容。<br>
+ * 指定了索引文件时，记录追加写入文件，重启后读回；无效的记录多到一定程度时重写整个文件。索引文件丢失或损坏只会导致重新计算哈希值。<br>
+ * 索引文件开头记录哈希值的算法，与打开时指定的算法不同时丢弃所有记录。<br>
+ * 所有记录都在内存中，每条记录约占几百字节，所以最多记录{@link #MAX_RECORDS}条（源文件和目标文件合计），
+ * 达到上限后不再记录新的路径，已记录的路径仍然更新；没有记录的文件每次比较时重新计算哈希值。
+ *
+ * @author blovemaple <blovemaple2010(at)gmail.com>
+ */
+public class HashIndex implements Closeable {
+	private static final Logger logger = LogManager.getLogger(HashIndex.class);
+
+	/**
+	 * 文件中的记录数超过有效记录数的多少倍时重写文件。
+	 */
+	public static int COMPACT_RATIO = 2;
+	/**
+	 * 文件中的记录数至少达到多少时才重写文件。
+	 */
+	public static int COMPACT_MIN_RECORDS = 10000;
+	/**
+	 * 内存中最多记录的源文件和目标文件数之和。
+	 */
+	public static int MAX_RECORDS = 200000;
+
+	private static final byte FROM = 'F';
+	private static final byte TO = 'T';
+	private static final byte REMOVED = 'R';
+	// 文件开头的算法记录，没有此记录的文件是支持选择算法之前写的，算法为murmur3_128
+	private static final byte ALGORITHM = 'A';
+
+	private final Path file;
+	private final HashAlgorithm algorithm;
+	private DataOutputStream out;
+	private int recordCount = 0;
+	private boolean full = false;
+
+	private final Map<String, FileRecord> fromRecords = new HashMap<>();
+	private final Map<String, FileRecord> toRecords = new HashMap<>();
+
+	/**
+	 * 计算哈希值时文件的元数据和哈希值。
+	 */
+	private static class FileRecord {
+		private final long size;
+		private final long modifiedTime;
+		private final String fileKey;
+		private final String hash;
+
+		private FileRecord(long size, long modifiedTime, String fileKey, String hash) {
+			this.size = size;
+			this.modifiedTime = modifiedTime;
+			this.fileKey = fileKey;
+			this.hash = hash;
+		}
+
+		private FileRecord(BasicFileAttributes attrs, String hash) {
+			this(attrs.size(), attrs.lastModifiedTime().toMillis(), fileKey(attrs), hash);
+		}
+
+		private boolean matches(BasicFileAttributes attrs) {
+			return size == attrs.size() && modifiedTime == attrs.lastModifiedTime().toMillis()
+					&& fileKey.equals(fileKey(attrs));
+		}
+
+		private static String fileKey(BasicFileAttributes attrs) {
+			Object fileKey = attrs.fileKey();
+			return fileKey == null ? "" : fileKey.toString();
+		}
+	}
+
+	/**
+	 * 创建只在内存中的索引。
+	 *
+	 * @param algorithm
+	 *            计算哈希值的算法
+	 */
+	public HashIndex(HashAlgorithm algorithm) {
+		this.file = null;
+		this.algorithm = algorithm;
+	}
+
+	/**
+	 * 打开索引文件，不存在则创建，存在则读取其中的记录。
+	 *
+	 * @param file
+	 *            索引文件
+	 * @param algorithm
+	 *            计算哈希值的算法
+	 * @throws IOException
+	 */
+	public HashIndex(Path file, HashAlgorithm algorithm) throws IOException {
+		this.file = file;
+		this.algorithm = algorithm;
+		if (file.getParent() != null)
+			Files.createDirectories(file.getParent());
+
+		long validLength = Files.exists(file) ? load() : 0;
+		openForAppend(validLength);
+
+		logger.info(() -> "Opened hash index " + file + ", " + fromRecords.size() + " source files and "
+				+ toRecords.size() + " target files recorded.");
+	}
+
+	/**
+	 * 读取索引文件。
+	 *
+	 * @return 完整记录的长度，此后的部分是不完整的记录
+	 */
+	private long load() {
+		long validLength = 0;
+		HashAlgorithm fileAlgorithm = HashAlgorithm.MURMUR3_128;
+		try (CountingInputStream counting = new CountingInputStream(
+				new BufferedInputStream(Files.newInputStream(file)));
+				DataInputStream in = new DataInputStream(counting)) {
+			while (true) {
+				try {
+					byte type = in.readByte();
+					if (type == ALGORITHM) {
+						if (validLength > 0)
+							throw new IOException("Corrupted hash index " + file + " at " + validLength);
+						fileAlgorithm = HashAlgorithm.of(in.readUTF());
+						validLength = counting.getCount();
+						continue;
+					}
+					String relativePath = in.readUTF();
+					if (type == REMOVED) {
+						fromRecords.remove(relativePath);
+						toRecords.remove(relativePath);
+					} else if (type == FROM || type == TO) {
+						FileRecord record = new FileRecord(in.readLong(), in.readLong(), in.readUTF(), in.readUTF());
+						Map<String, FileRecord> records = type == FROM ? fromRecords : toRecords;
+						// 上限调小后超出的记录不读入
+						if (records.containsKey(relativePath)
+								|| fromRecords.size() + toRecords.size() < MAX_RECORDS)
+							records.put(relativePath, record);
+					} else {
+						throw new IOException("Corrupted hash index " + file + " at " + validLength);
+					}
+					recordCount++;
+					validLength = counting.getCount();
+				} catch (EOFException e) {
+					break;
+				}
+			}
+		} catch (IOException | IllegalArgumentException e) {
+			// 索引损坏时保留已读到的部分
+			logger.error(() -> "Error reading hash index " + file + ", ignored the rest.", e);
+		}
+
+		if (fileAlgorithm != algorithm) {
+			HashAlgorithm loadedAlgorithm = fileAlgorithm;
+			if (validLength > 0)
+				logger.info(() -> "Hash algorithm of " + file + " changed from " + loadedAlgorithm.id() + " to "
+						+ algorithm.id() + ", discarded recorded hashes.");
+			fromRecords.clear();
+			toRecords.clear();
+			recordCount = 0;
+			return 0;
+		}
+		return validLength;
+	}
+
+	private void openForAppend(long validLength) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		// 丢掉末尾不完整的记录
+		channel.truncate(validLength);
+		channel.position(validLength);
+		out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+		if (validLength == 0)
+			writeAlgorithm(out);
+	}
+
+	private void writeAlgorithm(DataOutputStream out) throws IOException {
+		out.writeByte(ALGORITHM);
+		out.writeUTF(algorithm.id());
+	}
+
+	/**
+	 * 计算哈希值的算法。
+	 */
+	public HashAlgorithm getAlgorithm() {
+		return algorithm;
+	}
+
+	/**
+	 * 返回源文件内容的哈希值，文件的元数据与记录一致时直接返回记录的哈希值，否则计算并记录。
+	 *
+	 * @param relativePath
+	 *            相对路径
+	 * @param file
+	 *            源文件
+	 */
+	public String fromHash(Path relativePath, Path file) throws IOException {
+		return hash(fromRecords, FROM, relativePath.toString(), file);
+	}
+
+	/**
+	 * 返回目标文件内容的哈希值，文件的元数据与记录一致时直接返回记录的哈希值，否则计算并记录。
+	 *
+	 * @param relativePath
+	 *            相对路径
+	 * @param file
+	 *            目标文件
+	 */
+	public String toHash(Path relativePath, Path file) throws IOException {
+		return hash(toRecords, TO, relativePath.toString(), file);
+	}
+
+	/**
+	 * 返回源文件记录的哈希值，不计算。
+	 *
+	 * @return 文件的元数据与记录一致时返回记录的哈希值，否则返回null
+	 */
+	public String recordedFromHash(Path relativePath, Path file) throws IOException {
+		return recordedFromHash(relativePath, Files.readAttributes(file, BasicFileAttributes.class));
+	}
+
+	/**
+	 * 返回源文件记录的哈希值，不计算。
+	 *
+	 * @param attrs
+	 *            源文件当前的属性
+	 * @return 文件的元数据与记录一致时返回记录的哈希值，否则返回null
+	 */
+	public String recordedFromHash(Path relativePath, BasicFileAttributes attrs) {
+		return recordedHash(fromRecords, relativePath.toString(), attrs);
+	}
+
+	/**
+	 * 返回目标文件记录的哈希值，不计算。
+	 *
+	 * @return 文件的元数据与记录一致时返回记录的哈希值，否则返回null
+	 */
+	public String recordedToHash(Path relativePath, Path file) throws IOException {
+		return recordedToHash(relativePath, Files.readAttributes(file, BasicFileAttributes.class));
+	}
+
+	/**
+	 * 返回目标文件记录的哈希值，不计算。
+	 *
+	 * @param attrs
+	 *            目标文件当前的属性
+	 * @return 文件的元数据与记录一致时返回记录的哈希值，否则返回null
+	 */
+	public String recordedToHash(Path relativePath, BasicFileAttributes attrs) {
+		return recordedHash(toRecords, relativePath.toString(), attrs);
+	}
+
+	private synchronized String recordedHash(Map<String, FileRecord> records, String relativePath,
+			BasicFileAttributes attrs) {
+		FileRecord record = records.get(relativePath);
+		return record != null && record.matches(attrs) ? record.hash : null;
+	}
+
+	/**
+	 * 记录比较后内容相同的源文件和目标文件的哈希值。
+	 *
+	 * @param fromAttrs
+	 *            比较前读取的源文件属性
+	 * @param toAttrs
+	 *            比较前读取的目标文件属性
+	 * @param hash
+	 *            内容的哈希值
+	 */
+	public void equalContent(Path relativePath, BasicFileAttributes fromAttrs, BasicFileAttributes toAttrs,
+			String hash) throws IOException {
+		String key = relativePath.toString();
+		put(fromRecords, FROM, key, new FileRecord(fromAttrs, hash));
+		put(toRecords, TO, key, new FileRecord(toAttrs, hash));
+	}
+
+	private String hash(Map<String, FileRecord> records, byte type, String relativePath, Path file)
+			throws IOException {
+		// 先读元数据再计算哈希值，计算期间文件被修改的话，下次元数据不一致会重新计算
+		BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+		synchronized (this) {
+			FileRecord record = records.get(relativePath);
+			if (record != null && record.matches(attrs))
+				return record.hash;
+		}
+
+		String hash = FileHashing.fileHash(file, algorithm);
+		put(records, type, relativePath, new FileRecord(attrs, hash));
+		return hash;
+	}
+
+	/**
+	 * 源文件已复制到目标文件后调用。<br>
+	 * 复制时计算了哈希值的，目标文件记录此哈希值；源文件复制后没有变化（大小和修改时间与目标文件一致）的，源文件也记录此哈希值。<br>
+	 * 复制时没有计算哈希值的，如果源文件的哈希值已记录且仍然有效，则目标文件直接记录同样的哈希值。<br>
+	 * 以后都不必读取文件计算。
+	 *
+	 * @param relativePath
+	 *            相对路径
+	 * @param fromFile
+	 *            源文件
+	 * @param toFile
+	 *            目标文件
+	 * @param hash
+	 *            复制时计算的哈希值，null表示没有计算
+	 */
+	public void copied(Path relativePath, Path fromFile, Path toFile, String hash) throws IOException {
+		String key = relativePath.toString();
+		BasicFileAttributes fromAttrs = Files.readAttributes(fromFile, BasicFileAttributes.class);
+		BasicFileAttributes toAttrs = Files.readAttributes(toFile, BasicFileAttributes.class);
+
+		if (hash != null) {
+			put(toRecords, TO, key, new FileRecord(toAttrs, hash));
+			if (fromAttrs.size() == toAttrs.size()
+					&& fromAttrs.lastModifiedTime().equals(toAttrs.lastModifiedTime()))
+				put(fromRecords, FROM, key, new FileRecord(fromAttrs, hash));
+			return;
+		}
+
+		FileRecord fromRecord;
+		synchronized (this) {
+			fromRecord = fromRecords.get(key);
+		}
+		if (fromRecord != null && fromRecord.matches(fromAttrs) && fromRecord.size == toAttrs.size())
+			put(toRecords, TO, key, new FileRecord(toAttrs, fromRecord.hash));
+		else
+			remove(relativePath);
+	}
+
+	/**
+	 * 删除相对路径的记录。
+	 */
+	public synchronized void remove(Path relativePath) throws IOException {
+		String key = relativePath.toString();
+		boolean removed = fromRecords.remove(key) != null;
+		removed |= toRecords.remove(key) != null;
+		if (removed && out != null) {
+			out.writeByte(REMOVED);
+			out.writeUTF(key);
+			appended();
+		}
+	}
+
+	private synchronized void put(Map<String, FileRecord> records, byte type, String relativePath,
+			FileRecord record) throws IOException {
+		if (!records.containsKey(relativePath) && fromRecords.size() + toRecords.size() >= MAX_RECORDS) {
+			if (!full) {
+				full = true;
+				logger.warn(() -> "Hash index " + this + " reached " + MAX_RECORDS
+						+ " records, new files are not recorded.");
+			}
+			return;
+		}
+		records.put(relativePath, record);
+		if (out != null) {
+			write(out, type, relativePath, record);
+			appended();
+		}
+	}
+
+	private static void write(DataOutputStream out, byte type, String relativePath, FileRecord record)
+			throws IOException {
+		out.writeByte(type);
+		out.writeUTF(relativePath);
+		out.writeLong(record.size);
+		out.writeLong(record.modifiedTime);
+		out.writeUTF(record.fileKey);
+		out.writeUTF(record.hash);
+	}
+
+	private void appended() throws IOException {
+		// 记录丢失只会导致重新计算哈希值，所以不逐条flush
+		recordCount++;
+		if (recordCount >= COMPACT_MIN_RECORDS
+				&& recordCount > (fromRecords.size() + toRecords.size()) * COMPACT_RATIO)
+			compact();
+	}
+
+	/**
+	 * 只保留有效记录，重写索引文件。
+	 */
+	private void compact() throws IOException {
+		Path tempFile = file.resolveSibling(file.getFileName() + ".compacting");
+		try (DataOutputStream tempOut = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+			writeAlgorithm(tempOut);
+			for (Map.Entry<String, FileRecord> entry : fromRecords.entrySet())
+				write(tempOut, FROM, entry.getKey(), entry.getValue());
+			for (Map.Entry<String, FileRecord> entry : toRecords.entrySet())
+				write(tempOut, TO, entry.getKey(), entry.getValue());
+		}
+
+		out.close();
+		Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		openForAppend(Files.size(file));
+
+		int originalCount = recordCount;
+		recordCount = fromRecords.size() + toRecords.size();
+		logger.debug(() -> "Compacted hash index " + file + " from " + originalCount + " to " + recordCount
+				+ " records.");
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (out != null) {
+			out.close();
+			out = null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "HashIndex [file=" + Objects.toString(file, "(memory)") + ", algorithm=" + algorithm.id() + "]";
+	}
+
+}
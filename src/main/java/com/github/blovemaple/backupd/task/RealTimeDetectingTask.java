@@ -5,13 +5,17 @@ import static java.nio.file.StandardWatchEventKinds.*;
 
 import java.io.IOException;
 import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Collections;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
@@ -19,6 +23,8 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import com.github.blovemaple.backupd.machine.BackupDelayingQueue;
+import com.github.blovemaple.backupd.utils.FileSnapshot;
+import com.github.blovemaple.backupd.utils.PathFilter;
 
 /**
  * 持续进行实时检测的任务。
@@ -44,17 +50,36 @@ public class RealTimeDetectingTask implements Runnable {
 
 		Path fromPath = conf.getFromPath();
 
-		PathMatcher pathMatcher = conf.newPathMatcher();
+		PathFilter pathFilter = conf.newPathFilter();
 
 		try (WatchService watcher = fromPath.getFileSystem().newWatchService()) {
 
 			Map<WatchKey, Path> pathsByKey = Collections.synchronizedMap(new HashMap<>());
 
-			// 遍历fromPath下所有目录，注册到WatchService。
-			Files.walk(fromPath).filter(Files::isDirectory).forEach(rethrowConsumer(path -> {
-				WatchKey key = path.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
-				pathsByKey.put(key, fromPath.relativize(path));
-			}));
+			// 遍历fromPath下所有目录，注册到WatchService。其下不可能有路径通过过滤的目录不注册，也不进入
+			Files.walkFileTree(fromPath, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+					return register(dir) ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+					// 指向目录的符号链接也注册，但不进入
+					if (attrs.isSymbolicLink() && Files.isDirectory(file))
+						register(file);
+					return FileVisitResult.CONTINUE;
+				}
+
+				private boolean register(Path dir) throws IOException {
+					Path relativePath = fromPath.relativize(dir);
+					if (!pathFilter.mayMatchUnder(relativePath))
+						return false;
+					WatchKey key = dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+					pathsByKey.put(key, relativePath);
+					return true;
+				}
+			});
 
 			// 循环处理事件
 			while (true) {
@@ -73,7 +98,8 @@ public class RealTimeDetectingTask implements Runnable {
 
 				WatchKey realEventKey = eventKey;
 
-				// 取出事件并处理
+				// 取出事件并处理，同一批事件产生的任务一起提交
+				List<BackupTask> tasks = new ArrayList<>();
 				try {
 					realEventKey.pollEvents().forEach(rethrowConsumer(event -> {
 						logger.debug(() -> "New event: " + event);
@@ -81,23 +107,30 @@ public class RealTimeDetectingTask implements Runnable {
 						Path eventPath = (Path) event.context(); // 注册路径到事件路径的相对路径
 						Path relativePath = pathsByKey.get(realEventKey).resolve(eventPath); // fromPath到事件路径的相对路径
 
-						if (pathMatcher.matches(relativePath))
-							queue.submit(new BackupTask(conf, relativePath));
-
-						if (event.kind() == ENTRY_CREATE) {
-							Path newPath = fromPath.resolve(relativePath); // 绝对路径
-							if (Files.isDirectory(newPath)) {
-								WatchKey key = newPath.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
-								pathsByKey.put(key, relativePath);
-								// 新目录注册到watcher后进行一次全量检测，以免此前新目录内已经新建了子目录或文件而漏掉
-								fullDetect(newPath);
-							}
+						Path newPath = fromPath.resolve(relativePath); // 绝对路径
+						// 新建的路径读取一次元数据，判断是否目录，并交给任务使用
+						FileSnapshot snapshot = event.kind() == ENTRY_CREATE ? FileSnapshot.read(newPath) : null;
+						if (snapshot != null && snapshot.isDirectory() && pathFilter.mayMatchUnder(relativePath)) {
+							WatchKey key = newPath.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+							pathsByKey.put(key, relativePath);
+							// 新目录注册到watcher后作为子树任务提交，以免此前新目录内已经新建了子目录或文件而漏掉；
+							// 之后新目录内的事件会被合并进这个任务
+							tasks.add(new BackupTask(conf, relativePath, true));
+						} else if (!BackupTask.isTempFile(relativePath) && pathFilter.matches(relativePath)) {
+							BackupTask task = new BackupTask(conf, relativePath);
+							task.setFromSnapshot(snapshot);
+							tasks.add(task);
 						}
 					}));
 				} catch (Exception e) {
 					// 为了保证任务不中止，只打印而不抛出异常
 					logger.error(() -> "Error handling event of path: " + pathsByKey.get(realEventKey), e);
 				}
+				try {
+					queue.submitAll(tasks);
+				} catch (IOException e) {
+					logger.error(() -> "Error submitting tasks of path: " + pathsByKey.get(realEventKey), e);
+				}
 				boolean isStillValid = realEventKey.reset();
 				if (!isStillValid)
 					pathsByKey.remove(realEventKey);
@@ -116,21 +149,4 @@ public class RealTimeDetectingTask implements Runnable {
 		}
 	}
 
-	private void fullDetect(Path fullPath) throws IOException, RuntimeException, Exception {
-		PathMatcher pathMatcher = conf.newPathMatcher();
-		Files.walk(fullPath).map(conf.getFromPath()::relativize)
-				// 去掉dir本身
-				.filter(path -> !path.toString().isEmpty())
-				// 去重
-				.distinct()
-				// 根据配置过滤
-				.filter(pathMatcher::matches)
-				// 为每个Path创建BackupTask
-				.map(relativePath -> new BackupTask(conf, relativePath))
-				// 过滤出需要备份的task
-				.filter(rethrowPredicate(BackupTask::needBackup))
-				// 提交到队列
-				.forEachOrdered(rethrowConsumer(queue::submit));
-	}
-
 }
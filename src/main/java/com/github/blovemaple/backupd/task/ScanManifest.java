@@ -0,0 +1,535 @@
+package com.github.blovemaple.backupd.task;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.io.CountingInputStream;
+import com.google.common.io.CountingOutputStream;
+
+/**
+ * 上一次完整检测的清单：每个源目录的修改时间和其中各项的类型、大小、修改时间，以及检测时是否已与目标一致。<br>
+ * 下一次完整检测时，修改时间没有变化的目录直接使用清单中的列举，不读取源目录和目标目录；大小和修改时间都没有变化、上次已一致的项直接认为仍然一致，
+ * 不再读取目标的属性、不比较内容。每一项的属性仍然读取，所以原地修改的文件（目录的修改时间不变）也能发现；目标被外部修改则发现不了。<br>
+ * 文件中按遍历顺序（先序）逐个写入目录的记录，最后写入目录到记录位置的索引，打开时只读取索引，检测时各线程按需读取目录的记录。
+ * 只有完整检测正常结束时才替换原来的文件，中途停止的检测不影响上一次的清单；新的清单可以从检查点继续写，见{@link Writer}。<br>
+ * 检测时修改时间距检测开始不到{@link #RACY_MILLIS}毫秒的项不认为已一致，以免检测之后、修改时间不变的修改被忽略。
+ *
+ * @author blovemaple <blovemaple2010(at)gmail.com>
+ */
+public class ScanManifest implements Closeable {
+	private static final Logger logger = LogManager.getLogger(ScanManifest.class);
+
+	/**
+	 * 修改时间距检测开始不到多少毫秒的项不认为已一致（文件系统的修改时间精度可能很低）。
+	 */
+	public static long RACY_MILLIS = 2000;
+
+	private static final int MAGIC = 0x62636b6d; // "bckm"
+	private static final byte VERSION = 1;
+
+	private static final byte DIRECTORY = 1;
+	private static final byte IN_SYNC = 2;
+
+	private final Path file;
+	private final FileChannel channel;
+	private final long scanTime;
+	// 目录的相对路径 -> 记录的位置
+	private final Map<String, Location> index;
+
+	private static class Location {
+		private final long offset;
+		private final int length;
+
+		private Location(long offset, int length) {
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * 目录中的一项。
+	 */
+	public static class Entry {
+		private final String name;
+		private final boolean directory;
+		private final long size;
+		private final long modifiedTime;
+		private final boolean inSync;
+
+		/**
+		 * @param name
+		 *            文件名
+		 * @param attrs
+		 *            此项本身的属性
+		 * @param inSync
+		 *            检测时是否已与目标一致
+		 */
+		public Entry(String name, BasicFileAttributes attrs, boolean inSync) {
+			this(name, attrs.isDirectory(), attrs.size(), attrs.lastModifiedTime().toMillis(), inSync);
+		}
+
+		private Entry(String name, boolean directory, long size, long modifiedTime, boolean inSync) {
+			this.name = name;
+			this.directory = directory;
+			this.size = size;
+			this.modifiedTime = modifiedTime;
+			this.inSync = inSync;
+		}
+
+		public String name() {
+			return name;
+		}
+
+		/**
+		 * 上次已一致，且当前属性与上次相同（目录只要求仍是目录，文件要求大小和修改时间相同）。
+		 */
+		public boolean isUnchangedInSync(BasicFileAttributes attrs) {
+			if (!inSync || attrs.isSymbolicLink() || directory != attrs.isDirectory())
+				return false;
+			return directory || size == attrs.size() && modifiedTime == attrs.lastModifiedTime().toMillis();
+		}
+	}
+
+	/**
+	 * 一个目录的记录。
+	 */
+	public static class Directory {
+		private final String relativePath;
+		private final long modifiedTime;
+		// 按文件名排序
+		private final List<Entry> entries;
+
+		/**
+		 * @param relativePath
+		 *            相对路径，根目录为空字符串
+		 * @param modifiedTime
+		 *            目录的修改时间（毫秒），-1表示不记录（下次需要重新列举）
+		 * @param entries
+		 *            目录中的各项，按文件名排序
+		 */
+		public Directory(String relativePath, long modifiedTime, List<Entry> entries) {
+			this.relativePath = relativePath;
+			this.modifiedTime = modifiedTime;
+			this.entries = entries;
+		}
+
+		public String relativePath() {
+			return relativePath;
+		}
+
+		/**
+		 * 目录的修改时间与记录相同时，返回记录中的文件名（已排序），否则返回null。
+		 */
+		public List<String> namesIfUnchanged(BasicFileAttributes attrs) {
+			if (modifiedTime < 0 || modifiedTime != attrs.lastModifiedTime().toMillis())
+				return null;
+			List<String> names = new ArrayList<>(entries.size());
+			for (Entry entry : entries)
+				names.add(entry.name);
+			return names;
+		}
+
+		/**
+		 * 返回文件名对应的项，没有则返回null。
+		 */
+		public Entry entry(String name) {
+			int low = 0, high = entries.size() - 1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				int cmp = entries.get(middle).name.compareTo(name);
+				if (cmp < 0)
+					low = middle + 1;
+				else if (cmp > 0)
+					high = middle - 1;
+				else
+					return entries.get(middle);
+			}
+			return null;
+		}
+	}
+
+	private ScanManifest(Path file, FileChannel channel, long scanTime, Map<String, Location> index) {
+		this.file = file;
+		this.channel = channel;
+		this.scanTime = scanTime;
+		this.index = index;
+	}
+
+	/**
+	 * 打开上一次完整检测的清单。
+	 *
+	 * @param file
+	 *            清单文件
+	 * @param key
+	 *            清单的适用条件（例如过滤条件和目标目录的标识），与清单记录的不同时不使用清单
+	 * @return 清单，文件不存在、损坏或适用条件不同时返回null
+	 */
+	public static ScanManifest open(Path file, String key) {
+		FileChannel channel = null;
+		try {
+			channel = FileChannel.open(file, StandardOpenOption.READ);
+			DataInputStream header = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+			if (header.readInt() != MAGIC || header.readByte() != VERSION)
+				throw new IOException("Unknown format.");
+			String manifestKey = header.readUTF();
+			long scanTime = header.readLong();
+			if (!manifestKey.equals(key)) {
+				logger.info(() -> "Conf or target changed since scan manifest " + file + " was written, ignored it.");
+				channel.close();
+				return null;
+			}
+
+			// 文件末尾是索引的位置
+			ByteBuffer indexOffset = ByteBuffer.allocate(8);
+			readFully(channel, indexOffset, channel.size() - 8);
+			channel.position(indexOffset.getLong(0));
+			DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+			int count = in.readInt();
+			Map<String, Location> index = new HashMap<>(count * 2);
+			for (int i = 0; i < count; i++)
+				index.put(in.readUTF(), new Location(in.readLong(), in.readInt()));
+
+			logger.info(() -> "Opened scan manifest " + file + ", " + count + " directories recorded.");
+			return new ScanManifest(file, channel, scanTime, index);
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException | IllegalArgumentException e) {
+			logger.error(() -> "Error reading scan manifest " + file + ", ignored it.", e);
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e1) {
+					// 忽略
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * 写入清单的检测开始的时间。
+	 */
+	public long scanTime() {
+		return scanTime;
+	}
+
+	/**
+	 * 读取目录的记录，可以在多个线程中同时调用。
+	 *
+	 * @param relativePath
+	 *            目录的相对路径，根目录为空路径
+	 * @return 记录，没有则返回null
+	 */
+	public Directory directory(Path relativePath) throws IOException {
+		Location location = index.get(relativePath.toString());
+		if (location == null)
+			return null;
+
+		ByteBuffer buffer = ByteBuffer.allocate(location.length);
+		readFully(channel, buffer, location.offset);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer.array()));
+		String path = in.readUTF();
+		if (!path.equals(relativePath.toString()))
+			throw new IOException("Corrupted scan manifest " + file + " at " + location.offset);
+		long modifiedTime = in.readLong();
+		int count = in.readInt();
+		List<Entry> entries = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			String name = in.readUTF();
+			byte flags = in.readByte();
+			entries.add(new Entry(name, (flags & DIRECTORY) != 0, in.readLong(), in.readLong(), (flags & IN_SYNC) != 0));
+		}
+		return new Directory(path, modifiedTime, entries);
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new IOException("Unexpected end of scan manifest.");
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	@Override
+	public String toString() {
+		return "ScanManifest [file=" + file + ", directories=" + index.size() + "]";
+	}
+
+	/**
+	 * 写入新的清单。先写到临时文件，{@link #commit()}时写入索引并替换原来的文件。<br>
+	 * 检测过程中可以定期{@link #checkpoint 保存检查点}：把已写入的记录刷到存储设备上，并在检查点文件中记录遍历到的位置和临时文件的有效长度。
+	 * 检测中途停止（关闭、配置不可备份、崩溃）后，下一次检测用{@link #resume}从检查点继续写同一个临时文件，只需要遍历检查点之后的部分。
+	 * 没有commit就关闭时，没有检查点的临时文件被删除，有检查点的保留。
+	 */
+	public static class Writer implements Closeable {
+		private final Path file;
+		private final Path tempFile;
+		private final Path checkpointFile;
+		private final String key;
+		private final long scanTime;
+		// 从检查点继续时为检查点的位置，否则为null
+		private final String cursor;
+		private final FileChannel channel;
+		// 临时文件中从此位置开始由out写入
+		private final long baseOffset;
+		private final CountingOutputStream counting;
+		private final DataOutputStream out;
+
+		private final List<String> indexPaths;
+		private final List<Location> indexLocations;
+		private boolean checkpointed;
+		private boolean committed = false;
+
+		/**
+		 * 开始写一个新的清单，删除原来的检查点。
+		 *
+		 * @param file
+		 *            清单文件
+		 * @param key
+		 *            清单的适用条件，见{@link ScanManifest#open}
+		 * @param scanTime
+		 *            检测开始的时间
+		 */
+		public Writer(Path file, String key, long scanTime) throws IOException {
+			this(file, key, scanTime, null, newTempChannel(file), 0, new ArrayList<>(), new ArrayList<>());
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			out.writeUTF(key);
+			out.writeLong(scanTime);
+		}
+
+		private Writer(Path file, String key, long scanTime, String cursor, FileChannel channel, long baseOffset,
+				List<String> indexPaths, List<Location> indexLocations) {
+			this.file = file;
+			this.tempFile = tempFile(file);
+			this.checkpointFile = checkpointFile(file);
+			this.key = key;
+			this.scanTime = scanTime;
+			this.cursor = cursor;
+			this.channel = channel;
+			this.baseOffset = baseOffset;
+			this.counting = new CountingOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+			this.out = new DataOutputStream(counting);
+			this.indexPaths = indexPaths;
+			this.indexLocations = indexLocations;
+			this.checkpointed = cursor != null;
+		}
+
+		private static FileChannel newTempChannel(Path file) throws IOException {
+			if (file.getParent() != null)
+				Files.createDirectories(file.getParent());
+			// 重新开始写，原来的检查点不再有效
+			Files.deleteIfExists(checkpointFile(file));
+			return FileChannel.open(tempFile(file), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+		}
+
+		private static Path tempFile(Path file) {
+			return file.resolveSibling(file.getFileName() + ".writing");
+		}
+
+		private static Path checkpointFile(Path file) {
+			return file.resolveSibling(file.getFileName() + ".checkpoint");
+		}
+
+		/**
+		 * 从上一次中途停止的检测保存的检查点继续写清单。检查点之后写入的记录被丢弃。
+		 *
+		 * @param file
+		 *            清单文件
+		 * @param key
+		 *            清单的适用条件，与检查点记录的不同时不继续
+		 * @return 继续写的Writer，没有检查点、检查点或临时文件损坏、适用条件不同时返回null
+		 */
+		public static Writer resume(Path file, String key) {
+			Path checkpointFile = checkpointFile(file);
+			Path tempFile = tempFile(file);
+			try {
+				long scanTime, offset;
+				String cursor;
+				try (DataInputStream in = new DataInputStream(
+						new BufferedInputStream(Files.newInputStream(checkpointFile)))) {
+					if (in.readInt() != MAGIC || in.readByte() != VERSION)
+						throw new IOException("Unknown format.");
+					if (!in.readUTF().equals(key)) {
+						logger.info(() -> "Conf or target changed since scan checkpoint " + checkpointFile
+								+ " was written, ignored it.");
+						return null;
+					}
+					scanTime = in.readLong();
+					cursor = in.readUTF();
+					offset = in.readLong();
+				}
+
+				// 重建检查点之前的记录的索引
+				List<String> indexPaths = new ArrayList<>();
+				List<Location> indexLocations = new ArrayList<>();
+				try (CountingInputStream counting = new CountingInputStream(
+						new BufferedInputStream(Files.newInputStream(tempFile)))) {
+					DataInputStream in = new DataInputStream(counting);
+					if (in.readInt() != MAGIC || in.readByte() != VERSION || !in.readUTF().equals(key)
+							|| in.readLong() != scanTime)
+						throw new IOException("Scan checkpoint does not match " + tempFile);
+					while (counting.getCount() < offset) {
+						long recordOffset = counting.getCount();
+						String path = in.readUTF();
+						in.readLong();
+						int count = in.readInt();
+						for (int i = 0; i < count; i++) {
+							in.readUTF();
+							in.readByte();
+							in.readLong();
+							in.readLong();
+						}
+						indexPaths.add(path);
+						indexLocations.add(new Location(recordOffset, (int) (counting.getCount() - recordOffset)));
+					}
+					if (counting.getCount() != offset)
+						throw new IOException("Corrupted scan manifest " + tempFile + " at " + offset);
+				}
+
+				FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE);
+				channel.truncate(offset);
+				channel.position(offset);
+				logger.info(() -> "Resuming scan manifest " + file + " from checkpoint " + cursor + ", "
+						+ indexPaths.size() + " directories recorded.");
+				return new Writer(file, key, scanTime, cursor, channel, offset, indexPaths, indexLocations);
+			} catch (NoSuchFileException e) {
+				return null;
+			} catch (IOException e) {
+				logger.error(() -> "Error reading scan checkpoint " + checkpointFile + ", ignored it.", e);
+				return null;
+			}
+		}
+
+		/**
+		 * 检测开始的时间，从检查点继续时为最初开始的时间。
+		 */
+		public long scanTime() {
+			return scanTime;
+		}
+
+		/**
+		 * 从检查点继续时返回检查点的位置（传给{@link #checkpoint}的相对路径），否则返回null。
+		 */
+		public String cursor() {
+			return cursor;
+		}
+
+		/**
+		 * 检测时修改时间是否距检测开始太近，不能认为已一致。
+		 */
+		public boolean isRacy(BasicFileAttributes attrs) {
+			return attrs.lastModifiedTime().toMillis() >= scanTime - RACY_MILLIS;
+		}
+
+		/**
+		 * 写入一个目录的记录。
+		 */
+		public void write(Directory directory) throws IOException {
+			long offset = offset();
+			out.writeUTF(directory.relativePath);
+			out.writeLong(directory.modifiedTime);
+			out.writeInt(directory.entries.size());
+			for (Entry entry : directory.entries) {
+				out.writeUTF(entry.name);
+				out.writeByte((entry.directory ? DIRECTORY : 0) | (entry.inSync ? IN_SYNC : 0));
+				out.writeLong(entry.size);
+				out.writeLong(entry.modifiedTime);
+			}
+			indexPaths.add(directory.relativePath);
+			indexLocations.add(new Location(offset, (int) (offset() - offset)));
+		}
+
+		private long offset() {
+			return baseOffset + counting.getCount();
+		}
+
+		/**
+		 * 保存检查点：把已写入的记录写到存储设备上，再替换检查点文件。
+		 *
+		 * @param cursor
+		 *            遍历到的位置，由调用者解释，{@link #resume}后由{@link #cursor()}返回
+		 */
+		public void checkpoint(String cursor) throws IOException {
+			out.flush();
+			channel.force(false);
+
+			Path writing = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".writing");
+			try (DataOutputStream checkpoint = new DataOutputStream(
+					new BufferedOutputStream(Files.newOutputStream(writing)))) {
+				checkpoint.writeInt(MAGIC);
+				checkpoint.writeByte(VERSION);
+				checkpoint.writeUTF(key);
+				checkpoint.writeLong(scanTime);
+				checkpoint.writeUTF(cursor);
+				checkpoint.writeLong(offset());
+			}
+			Files.move(writing, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			checkpointed = true;
+			logger.debug(() -> "Saved scan checkpoint " + checkpointFile + " at " + cursor);
+		}
+
+		/**
+		 * 写入索引，替换原来的清单文件，删除检查点。
+		 */
+		public void commit() throws IOException {
+			long indexOffset = offset();
+			out.writeInt(indexPaths.size());
+			for (int i = 0; i < indexPaths.size(); i++) {
+				Location location = indexLocations.get(i);
+				out.writeUTF(indexPaths.get(i));
+				out.writeLong(location.offset);
+				out.writeInt(location.length);
+			}
+			out.writeLong(indexOffset);
+			out.close();
+			Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			committed = true;
+			Files.deleteIfExists(checkpointFile);
+			logger.info(() -> "Written scan manifest " + file + ", " + indexPaths.size() + " directories recorded.");
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!committed) {
+				out.close();
+				if (!checkpointed)
+					Files.deleteIfExists(tempFile);
+			}
+		}
+	}
+
+	/**
+	 * 按文件名排序。
+	 */
+	static void sort(List<Entry> entries) {
+		Collections.sort(entries, (entry1, entry2) -> entry1.name.compareTo(entry2.name));
+	}
+}
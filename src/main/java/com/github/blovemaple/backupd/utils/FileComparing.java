@@ -0,0 +1,116 @@
+package com.github.blovemaple.backupd.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import com.github.blovemaple.backupd.utils.FileHashing.TreeHasher;
+
+/**
+ * 比较两个文件的内容：逐块同时读取、遇到第一处不同即停止，或只比较抽样的部分。
+ *
+ * @author blovemaple <blovemaple2010(at)gmail.com>
+ */
+public class FileComparing {
+	/**
+	 * 比较文件内容时每次从每个文件读取的字节数。
+	 */
+	public static int CHUNK_SIZE = 256 * 1024;
+	/**
+	 * 抽样比较文件内容时比较的位置数。
+	 */
+	public static int SAMPLES = 8;
+	/**
+	 * 抽样比较文件内容时每个位置比较的字节数。
+	 */
+	public static int SAMPLE_SIZE = 16 * 1024;
+
+	/**
+	 * 同时读取两个文件，逐块比较内容，遇到第一个不同的块就停止，不必读完整个文件。<br>
+	 * 比较的同时计算内容的哈希值（同{@link FileHashing#fileHash}），内容相同时返回，以便调用者记录下来。
+	 *
+	 * @param file1
+	 *            一个文件
+	 * @param file2
+	 *            另一个文件
+	 * @param algorithm
+	 *            计算哈希值的算法
+	 * @return 内容相同则返回内容的哈希值，不同返回null
+	 * @throws IOException
+	 */
+	public static String equalContentHash(Path file1, Path file2, HashAlgorithm algorithm) throws IOException {
+		try (FileChannel in1 = FileChannel.open(file1, StandardOpenOption.READ);
+				FileChannel in2 = FileChannel.open(file2, StandardOpenOption.READ)) {
+			if (in1.size() != in2.size())
+				return null;
+
+			TreeHasher hasher = new TreeHasher(algorithm);
+			ByteBuffer chunk1 = ByteBuffer.allocate(CHUNK_SIZE);
+			ByteBuffer chunk2 = ByteBuffer.allocate(CHUNK_SIZE);
+			while (true) {
+				int length1 = readChunk(in1, chunk1);
+				int length2 = readChunk(in2, chunk2);
+				if (!chunk1.equals(chunk2))
+					return null;
+				if (length1 == 0)
+					// 同时读完（长度不同的话上面已经返回）
+					break;
+				hasher.putBytes(chunk1.array(), 0, length1);
+				if (length1 < CHUNK_SIZE)
+					break;
+			}
+			return hasher.hash();
+		}
+	}
+
+	/**
+	 * 抽样比较两个大小相同的文件的内容：开头、末尾和中间均匀分布的共{@link #SAMPLES}个位置，每个位置{@link #SAMPLE_SIZE}字节。
+	 * 用于在读取全部内容之前尽早发现不同。<br>
+	 * 文件不大于所有样本的总长度时不抽样，直接返回true，由调用者比较全部内容。
+	 *
+	 * @param file1
+	 *            一个文件
+	 * @param file2
+	 *            另一个文件
+	 * @return 抽到的位置上有不同（或大小不同）则返回false，否则返回true（未抽到的位置仍可能不同）
+	 * @throws IOException
+	 */
+	public static boolean equalSamples(Path file1, Path file2) throws IOException {
+		try (FileChannel in1 = FileChannel.open(file1, StandardOpenOption.READ);
+				FileChannel in2 = FileChannel.open(file2, StandardOpenOption.READ)) {
+			long size = in1.size();
+			if (size != in2.size())
+				return false;
+			int samples = Math.max(2, SAMPLES);
+			if (size <= (long) samples * SAMPLE_SIZE)
+				return true;
+
+			ByteBuffer sample1 = ByteBuffer.allocate(SAMPLE_SIZE);
+			ByteBuffer sample2 = ByteBuffer.allocate(SAMPLE_SIZE);
+			long lastPosition = size - SAMPLE_SIZE;
+			for (int i = 0; i < samples; i++) {
+				long position = lastPosition * i / (samples - 1);
+				FileCopying.readBlock(in1, position, sample1);
+				FileCopying.readBlock(in2, position, sample2);
+				if (!sample1.equals(sample2))
+					return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * 读满一块（到文件末尾为止），读完后flip。
+	 *
+	 * @return 读到的字节数
+	 */
+	private static int readChunk(FileChannel channel, ByteBuffer chunk) throws IOException {
+		chunk.clear();
+		while (chunk.hasRemaining() && channel.read(chunk) >= 0)
+			;
+		chunk.flip();
+		return chunk.limit();
+	}
+}
@@ -0,0 +1,342 @@
+package com.github.blovemaple.backupd.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.function.LongConsumer;
+
+import com.github.blovemaple.backupd.utils.FileHashing.TreeHasher;
+
+/**
+ * 复制文件内容到备份目标：整个文件复制（同时计算哈希值）、只改写变化的块、只追加新增的部分，以及fsync。
+ *
+ * @author blovemaple <blovemaple2010(at)gmail.com>
+ */
+public class FileCopying {
+	/**
+	 * 每次复制的字节数。内容要经过用户空间计算哈希值，每块读到同一个缓冲区中。每复制完一块报告一次进度、检查一次中断。
+	 */
+	public static int CHUNK_SIZE = 1024 * 1024;
+	/**
+	 * 目标文件已存在时，源文件至少多大才只重写不同的块（{@link #copyDelta}）。
+	 */
+	public static long DELTA_MIN_SIZE = 64 * 1024 * 1024;
+	/**
+	 * 只重写不同的块时，每块的字节数。
+	 */
+	public static int DELTA_BLOCK_SIZE = 1024 * 1024;
+	/**
+	 * 目标文件至少多大时才检查源文件是否只在末尾追加了内容（{@link #copyAppended}）。
+	 */
+	public static long APPEND_MIN_SIZE = 1024 * 1024;
+	/**
+	 * 检查源文件是否只在末尾追加了内容时，抽样比较的位置数（至少包括目标文件的开头和末尾）。
+	 */
+	public static int APPEND_SAMPLES = 8;
+	/**
+	 * 检查源文件是否只在末尾追加了内容时，每个位置比较的字节数。
+	 */
+	public static int APPEND_SAMPLE_SIZE = 64 * 1024;
+
+	/**
+	 * 复制文件，同时计算复制的内容的哈希值（同{@link FileHashing#fileHash}），并复制修改时间等属性。目标文件已存在则覆盖。<br>
+	 * 哈希值和源文件的大小、修改时间一起保存到目标文件的扩展属性中（{@link FileHashing#storeHash}），以后比较时不必读取目标文件。<br>
+	 * 内容需要经过用户空间，所以不使用{@link FileChannel#transferTo}。每块之间检查线程是否被中断，被中断或出错时删除复制了一部分的目标文件。
+	 *
+	 * @param from
+	 *            源文件
+	 * @param to
+	 *            目标文件
+	 * @param algorithm
+	 *            计算哈希值的算法
+	 * @param copyTimes
+	 *            是否复制修改时间等时间属性，否则由调用者以后用{@link #copyTimes}复制
+	 * @param progress
+	 *            每复制完一块，接收这一块的字节数
+	 * @return 复制的内容的哈希值
+	 * @throws InterruptedIOException
+	 *             线程被中断
+	 * @throws IOException
+	 */
+	public static String copyHashing(Path from, Path to, HashAlgorithm algorithm, boolean copyTimes,
+			LongConsumer progress) throws IOException {
+		BasicFileAttributes attrs = Files.readAttributes(from, BasicFileAttributes.class);
+		TreeHasher hasher = new TreeHasher(algorithm);
+
+		boolean done = false;
+		try {
+			try (FileChannel in = FileChannel.open(from, StandardOpenOption.READ);
+					FileChannel out = FileChannel.open(to, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+							StandardOpenOption.TRUNCATE_EXISTING)) {
+				ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+				int read;
+				while ((read = in.read(buffer)) >= 0) {
+					if (Thread.currentThread().isInterrupted())
+						throw new InterruptedIOException("Interrupted copying " + from);
+
+					buffer.flip();
+					hasher.putBytes(buffer.array(), 0, read);
+					while (buffer.hasRemaining())
+						out.write(buffer);
+					buffer.clear();
+					progress.accept(read);
+				}
+			} catch (ClosedByInterruptException e) {
+				throw interrupted(from, e);
+			}
+
+			copyAttributes(from, to, attrs, copyTimes);
+			done = true;
+		} finally {
+			if (!done)
+				Files.deleteIfExists(to);
+		}
+
+		String hash = hasher.hash();
+		FileHashing.storeHash(to, hash, algorithm, attrs);
+		return hash;
+	}
+
+	/**
+	 * 逐块比较源文件和已存在的目标文件，只把不同的块写入目标文件的对应位置，最后截断到源文件的长度并复制修改时间等属性。
+	 * 适用于在原位置修改了少量内容的大文件。<br>
+	 * 每块之间检查线程是否被中断。被中断或出错时目标文件可能只更新了一部分，但它的修改时间已经改变，下次检查时会被认为与源文件不同。
+	 *
+	 * @param from
+	 *            源文件
+	 * @param to
+	 *            目标文件
+	 * @param copyTimes
+	 *            是否复制修改时间等时间属性，否则由调用者以后用{@link #copyTimes}复制
+	 * @param progress
+	 *            每写入一块，接收这一块的字节数
+	 * @throws InterruptedIOException
+	 *             线程被中断
+	 * @throws IOException
+	 */
+	public static void copyDelta(Path from, Path to, boolean copyTimes, LongConsumer progress) throws IOException {
+		BasicFileAttributes attrs = Files.readAttributes(from, BasicFileAttributes.class);
+
+		try (FileChannel in = FileChannel.open(from, StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(to, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ByteBuffer fromBlock = ByteBuffer.allocateDirect(DELTA_BLOCK_SIZE);
+			ByteBuffer toBlock = ByteBuffer.allocateDirect(DELTA_BLOCK_SIZE);
+
+			long size = in.size();
+			long position = 0;
+			while (position < size) {
+				if (Thread.currentThread().isInterrupted())
+					throw new InterruptedIOException("Interrupted copying " + from);
+
+				int length = readBlock(in, position, fromBlock);
+				if (length <= 0)
+					// 源文件在复制期间变短了
+					break;
+				readBlock(out, position, toBlock);
+
+				// 两块都已flip，内容和长度都相同时equals为true
+				if (!fromBlock.equals(toBlock)) {
+					while (fromBlock.hasRemaining())
+						out.write(fromBlock, position + fromBlock.position());
+					progress.accept(length);
+				}
+				position += length;
+			}
+			out.truncate(position);
+		} catch (ClosedByInterruptException e) {
+			throw interrupted(from, e);
+		}
+
+		copyAttributes(from, to, attrs, copyTimes);
+	}
+
+	/**
+	 * 如果源文件只是在目标文件的基础上追加了内容，则只把追加的部分复制到目标文件末尾，并复制修改时间等属性。<br>
+	 * 判断方法是先在目标文件的长度范围内抽样比较{@link #APPEND_SAMPLES}个位置（开头、末尾和中间均匀分布的位置），都相同时再计算源文件中
+	 * 同样长度的开头部分的哈希值，与已知的目标文件的哈希值相同才认为目标文件是源文件的前缀。只需要读取源文件，适用于日志等只增长的文件。<br>
+	 * 追加时同时算出源文件全部内容的哈希值，和{@link #copyHashing}一样保存到目标文件的扩展属性中。<br>
+	 * 每块之间检查线程是否被中断。被中断或出错时目标文件可能追加了一部分，但它的大小已经改变，下次检查时会被认为与源文件不同。
+	 *
+	 * @param from
+	 *            源文件
+	 * @param to
+	 *            目标文件
+	 * @param toHash
+	 *            目标文件当前内容的哈希值（已记录的，不必读取目标文件）
+	 * @param algorithm
+	 *            计算哈希值的算法，与toHash的相同
+	 * @param copyTimes
+	 *            是否复制修改时间等时间属性，否则由调用者以后用{@link #copyTimes}复制
+	 * @param progress
+	 *            每复制完一块，接收这一块的字节数
+	 * @return 复制后的内容的哈希值，不是追加的情况返回null，此时没有修改目标文件
+	 * @throws InterruptedIOException
+	 *             线程被中断
+	 * @throws IOException
+	 */
+	public static String copyAppended(Path from, Path to, String toHash, HashAlgorithm algorithm, boolean copyTimes,
+			LongConsumer progress) throws IOException {
+		BasicFileAttributes attrs = Files.readAttributes(from, BasicFileAttributes.class);
+		TreeHasher hasher = new TreeHasher(algorithm);
+
+		try (FileChannel in = FileChannel.open(from, StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(to, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			long prefixSize = out.size();
+			if (prefixSize >= in.size() || !isSampledPrefix(in, out, prefixSize))
+				return null;
+
+			// 抽样只能排除明显不同的情况，还要确认源文件的开头部分与目标文件的哈希值相同
+			TreeHasher prefixHasher = new TreeHasher(algorithm);
+			ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+			long position = 0;
+			while (position < prefixSize) {
+				if (Thread.currentThread().isInterrupted())
+					throw new InterruptedIOException("Interrupted copying " + from);
+
+				buffer.clear();
+				buffer.limit((int) Math.min(CHUNK_SIZE, prefixSize - position));
+				int read = in.read(buffer, position);
+				if (read < 0)
+					// 源文件在检查期间变短了
+					return null;
+				prefixHasher.putBytes(buffer.array(), 0, read);
+				hasher.putBytes(buffer.array(), 0, read);
+				position += read;
+			}
+			if (!prefixHasher.hash().equals(toHash))
+				return null;
+
+			buffer.clear();
+			int read;
+			while ((read = in.read(buffer, position)) >= 0) {
+				if (Thread.currentThread().isInterrupted())
+					throw new InterruptedIOException("Interrupted copying " + from);
+
+				buffer.flip();
+				hasher.putBytes(buffer.array(), 0, read);
+				while (buffer.hasRemaining())
+					out.write(buffer, position + buffer.position());
+				buffer.clear();
+				position += read;
+				progress.accept(read);
+			}
+		} catch (ClosedByInterruptException e) {
+			throw interrupted(from, e);
+		}
+
+		copyAttributes(from, to, attrs, copyTimes);
+		String hash = hasher.hash();
+		FileHashing.storeHash(to, hash, algorithm, attrs);
+		return hash;
+	}
+
+	/**
+	 * 读写通道时线程被中断会关闭通道并抛出{@link ClosedByInterruptException}，转换成和块之间检查到中断时一样的异常，调用者只需处理一种。
+	 */
+	private static InterruptedIOException interrupted(Path from, ClosedByInterruptException cause) {
+		InterruptedIOException e = new InterruptedIOException("Interrupted copying " + from);
+		e.initCause(cause);
+		return e;
+	}
+
+	/**
+	 * 把文件的内容和元数据写到存储设备上（fsync）。
+	 *
+	 * @param file
+	 *            文件
+	 * @throws IOException
+	 */
+	public static void sync(Path file) throws IOException {
+		// 只读打开，复制来的权限可能不允许写
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			channel.force(true);
+		}
+	}
+
+	/**
+	 * 把目录的内容（其中新建、改名的项）写到存储设备上，以便改名在崩溃后仍然有效。
+	 * 有的平台或文件系统不能打开目录，此时什么也不做。
+	 *
+	 * @param dir
+	 *            目录
+	 */
+	public static void syncDirectory(Path dir) {
+		try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException | UnsupportedOperationException e) {
+			// 不支持时只能依赖文件系统自己写入
+		}
+	}
+
+	/**
+	 * 抽样比较目标文件是否是源文件的前缀。
+	 */
+	private static boolean isSampledPrefix(FileChannel in, FileChannel out, long prefixSize) throws IOException {
+		int sampleSize = (int) Math.min(APPEND_SAMPLE_SIZE, prefixSize);
+		ByteBuffer fromSample = ByteBuffer.allocate(sampleSize);
+		ByteBuffer toSample = ByteBuffer.allocate(sampleSize);
+
+		long lastPosition = prefixSize - sampleSize;
+		int samples = Math.max(2, APPEND_SAMPLES);
+		for (int i = 0; i < samples; i++) {
+			long position = lastPosition * i / (samples - 1);
+			readBlock(in, position, fromSample);
+			readBlock(out, position, toSample);
+			if (toSample.limit() < sampleSize || !fromSample.equals(toSample))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 从指定位置读满一块（到文件末尾为止），读完后flip。
+	 *
+	 * @return 读到的字节数
+	 */
+	static int readBlock(FileChannel channel, long position, ByteBuffer block) throws IOException {
+		block.clear();
+		while (block.hasRemaining()) {
+			int read = channel.read(block, position + block.position());
+			if (read < 0)
+				break;
+		}
+		block.flip();
+		return block.limit();
+	}
+
+	private static void copyAttributes(Path from, Path to, BasicFileAttributes attrs, boolean copyTimes)
+			throws IOException {
+		PosixFileAttributeView fromPosixView = Files.getFileAttributeView(from, PosixFileAttributeView.class);
+		PosixFileAttributeView toPosixView = Files.getFileAttributeView(to, PosixFileAttributeView.class);
+		if (fromPosixView != null && toPosixView != null) {
+			PosixFileAttributes posixAttrs = fromPosixView.readAttributes();
+			toPosixView.setPermissions(posixAttrs.permissions());
+		}
+
+		if (copyTimes)
+			copyTimes(to, attrs);
+	}
+
+	/**
+	 * 把源文件的修改时间等时间属性设置到目标文件上。修改时间相同的文件会被认为与源文件一致，所以只能在目标文件的内容完整之后设置。
+	 *
+	 * @param to
+	 *            目标文件
+	 * @param attrs
+	 *            复制前读取的源文件属性
+	 * @throws IOException
+	 */
+	public static void copyTimes(Path to, BasicFileAttributes attrs) throws IOException {
+		Files.getFileAttributeView(to, BasicFileAttributeView.class).setTimes(attrs.lastModifiedTime(),
+				attrs.lastAccessTime(), attrs.creationTime());
+	}
+}
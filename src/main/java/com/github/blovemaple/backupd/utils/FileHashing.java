@@ -1,36 +1,297 @@
 package com.github.blovemaple.backupd.utils;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
-import com.google.common.hash.Hasher;
-import com.google.common.hash.Hashing;
+import com.github.blovemaple.backupd.utils.HashAlgorithm.Digest;
+import com.google.common.hash.HashCode;
 
 /**
+ * 计算文件内容的哈希值。<br>
+ * 哈希值按{@link #SEGMENT_SIZE}分段计算：不超过一段的文件就是内容的哈希值；超过一段的文件，对每段内容计算哈希值，
+ * 再对各段的哈希值和总长度（8字节小端序）计算哈希值。这样大文件的各段可以并行计算，而边读边计算（{@link TreeHasher}）的结果相同。<br>
+ * 使用的算法见{@link HashAlgorithm}。
+ *
  * @author blovemaple <blovemaple2010(at)gmail.com>
  */
 public class FileHashing {
 	/**
-	 * 计算文件内容的哈希值（murmur3_128）。
-	 * 
+	 * 保存哈希值的扩展属性名。
+	 */
+	public static final String HASH_ATTRIBUTE = "backupd.hash";
+
+	/**
+	 * 分段计算哈希值时每段的字节数。哈希值会被持久化，所以不能修改。
+	 */
+	public static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+
+	// 每次读取的字节数
+	private static final int BUFFER_SIZE = 1024 * 1024;
+	private static final ThreadLocal<ByteBuffer> buffers = ThreadLocal
+			.withInitial(() -> ByteBuffer.allocate(BUFFER_SIZE));
+
+	// 并行计算各段哈希值的线程池
+	private static final ForkJoinPool hashingPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * 用默认算法计算文件内容的哈希值。
+	 *
+	 * @see #fileHash(Path, HashAlgorithm)
+	 */
+	public static String fileHash(Path filePath) throws IOException {
+		return fileHash(filePath, HashAlgorithm.DEFAULT);
+	}
+
+	/**
+	 * 计算文件内容的哈希值。超过一段的文件在多个线程中并行计算各段。
+	 *
 	 * @param filePath
 	 *            文件路径
+	 * @param algorithm
+	 *            算法
 	 * @return 哈希值16进制字符串
 	 * @throws IOException
 	 */
-	public static String fileHash(Path filePath) throws IOException {
-		// guava的Hashing不建议用md5（慢），快速hash建议用goodFastHash，
-		// 但goodFastHash每次加载使用随机种子，导致结果不固定。固定结果的hash建议用murmur3_128。
-		Hasher hasher = Hashing.murmur3_128().newHasher();
-		try (InputStream in = Files.newInputStream(filePath)) {
-			byte[] bytes = new byte[8192];
-			int len;
-			while ((len = in.read(bytes)) >= 0) {
-				hasher.putBytes(bytes, 0, len);
+	public static String fileHash(Path filePath, HashAlgorithm algorithm) throws IOException {
+		try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size <= SEGMENT_SIZE) {
+				TreeHasher hasher = new TreeHasher(algorithm);
+				hashSegment(channel, 0, hasher::putBytes);
+				return hasher.hash();
+			}
+
+			int segmentCount = (int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+			List<Callable<byte[]>> segmentTasks = new ArrayList<>(segmentCount);
+			long[] segmentLengths = new long[segmentCount];
+			for (int i = 0; i < segmentCount; i++) {
+				int index = i;
+				segmentTasks.add(() -> {
+					Digest segmentDigest = algorithm.newDigest();
+					segmentLengths[index] = hashSegment(channel, (long) index * SEGMENT_SIZE,
+							segmentDigest::update);
+					return segmentDigest.finish();
+				});
+			}
+
+			List<Future<byte[]>> segmentHashes = hashingPool.invokeAll(segmentTasks);
+			Digest digest = algorithm.newDigest();
+			long length = 0;
+			for (int i = 0; i < segmentCount; i++) {
+				byte[] segmentHash = getSegmentHash(segmentHashes.get(i));
+				digest.update(segmentHash, 0, segmentHash.length);
+				length += segmentLengths[i];
+				if (segmentLengths[i] < SEGMENT_SIZE)
+					// 文件在计算期间变短了，后面的段没有内容
+					break;
+			}
+			return finishTree(digest, length);
+		}
+	}
+
+	private static String finishTree(Digest digest, long length) {
+		byte[] lengthBytes = new byte[8];
+		for (int i = 0; i < 8; i++)
+			lengthBytes[i] = (byte) (length >>> (i * 8));
+		digest.update(lengthBytes, 0, lengthBytes.length);
+		return HashCode.fromBytes(digest.finish()).toString();
+	}
+
+	private static byte[] getSegmentHash(Future<byte[]> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted hashing.");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * 读取一段内容。
+	 *
+	 * @param position
+	 *            段的开始位置
+	 * @param consumer
+	 *            接收读到的内容
+	 * @return 读到的字节数
+	 */
+	private static long hashSegment(FileChannel channel, long position, BytesConsumer consumer)
+			throws IOException {
+		ByteBuffer buffer = buffers.get();
+		long length = 0;
+		while (length < SEGMENT_SIZE) {
+			buffer.clear();
+			buffer.limit((int) Math.min(BUFFER_SIZE, SEGMENT_SIZE - length));
+			int read = channel.read(buffer, position + length);
+			if (read < 0)
+				break;
+			consumer.accept(buffer.array(), 0, read);
+			length += read;
+		}
+		return length;
+	}
+
+	@FunctionalInterface
+	private interface BytesConsumer {
+		void accept(byte[] bytes, int offset, int length);
+	}
+
+	/**
+	 * 边读边计算哈希值，结果与{@link FileHashing#fileHash}相同。
+	 */
+	public static class TreeHasher {
+		private final HashAlgorithm algorithm;
+		private Digest segmentDigest;
+		private int segmentLength = 0;
+		// 已满的段的哈希值，到有第二段时才创建
+		private Digest treeDigest;
+		private long length = 0;
+
+		public TreeHasher(HashAlgorithm algorithm) {
+			this.algorithm = algorithm;
+			this.segmentDigest = algorithm.newDigest();
+		}
+
+		public void putBytes(byte[] bytes, int offset, int length) {
+			while (length > 0) {
+				// 已满的段在有后续内容时才结束，以便不超过一段的内容直接返回段的哈希值
+				if (segmentLength == SEGMENT_SIZE)
+					finishSegment();
+				int segmentPart = Math.min(length, SEGMENT_SIZE - segmentLength);
+				segmentDigest.update(bytes, offset, segmentPart);
+				segmentLength += segmentPart;
+				this.length += segmentPart;
+				offset += segmentPart;
+				length -= segmentPart;
 			}
 		}
-		return hasher.hash().toString();
+
+		private void finishSegment() {
+			if (treeDigest == null)
+				treeDigest = algorithm.newDigest();
+			byte[] segmentHash = segmentDigest.finish();
+			treeDigest.update(segmentHash, 0, segmentHash.length);
+			segmentDigest = algorithm.newDigest();
+			segmentLength = 0;
+		}
+
+		/**
+		 * 返回哈希值16进制字符串。之后不能再使用。
+		 */
+		public String hash() {
+			if (treeDigest == null)
+				return HashCode.fromBytes(segmentDigest.finish()).toString();
+			finishSegment();
+			return finishTree(treeDigest, length);
+		}
+	}
+
+	/**
+	 * 把复制得到的文件的哈希值保存到它的扩展属性中，同时保存算法和复制时源文件的大小、修改时间。文件系统不支持扩展属性时什么也不做。
+	 *
+	 * @param file
+	 *            复制得到的文件
+	 * @param hash
+	 *            哈希值
+	 * @param algorithm
+	 *            计算哈希值的算法
+	 * @param sourceAttrs
+	 *            复制时源文件的属性
+	 */
+	public static void storeHash(Path file, String hash, HashAlgorithm algorithm, BasicFileAttributes sourceAttrs) {
+		UserDefinedFileAttributeView view = Files.getFileAttributeView(file, UserDefinedFileAttributeView.class);
+		if (view == null)
+			return;
+
+		String value = algorithm.id() + ':' + sourceAttrs.size() + ':' + sourceAttrs.lastModifiedTime().toMillis() + ':'
+				+ hash;
+		try {
+			view.write(HASH_ATTRIBUTE, StandardCharsets.UTF_8.encode(value));
+		} catch (IOException | UnsupportedOperationException e) {
+			// 文件系统不支持时（例如挂载时没有开启user_xattr）不保存，以后比较时再计算
+		}
+	}
+
+	/**
+	 * 读取{@link #storeHash}保存的哈希值。只有算法相同，且文件的大小和修改时间与复制时源文件的一致（复制后没有被修改）才有效。
+	 *
+	 * @param file
+	 *            复制得到的文件
+	 * @param algorithm
+	 *            需要的算法
+	 * @return 哈希值，没有或无效时返回null
+	 */
+	public static String storedHash(Path file, HashAlgorithm algorithm) throws IOException {
+		return storedHash(file, algorithm, null);
+	}
+
+	/**
+	 * 同{@link #storedHash(Path, HashAlgorithm)}，使用已经读到的文件属性。
+	 *
+	 * @param attrs
+	 *            文件当前的属性，null表示需要时读取
+	 */
+	public static String storedHash(Path file, HashAlgorithm algorithm, BasicFileAttributes attrs)
+			throws IOException {
+		UserDefinedFileAttributeView view = Files.getFileAttributeView(file, UserDefinedFileAttributeView.class);
+		if (view == null)
+			return null;
+
+		String value;
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate(view.size(HASH_ATTRIBUTE));
+			view.read(HASH_ATTRIBUTE, buffer);
+			buffer.flip();
+			value = StandardCharsets.UTF_8.decode(buffer).toString();
+		} catch (IOException | UnsupportedOperationException e) {
+			// 没有此属性，或文件系统不支持
+			return null;
+		}
+
+		String[] fields = value.split(":");
+		if (fields.length != 4 || !algorithm.id().equals(fields[0]))
+			return null;
+		if (attrs == null)
+			attrs = Files.readAttributes(file, BasicFileAttributes.class);
+		try {
+			if (attrs.size() != Long.parseLong(fields[1])
+					|| attrs.lastModifiedTime().toMillis() != Long.parseLong(fields[2]))
+				return null;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		return fields[3];
+	}
+
+	/**
+	 * 删除{@link #storeHash}保存的哈希值，用于没有计算哈希值的修改。
+	 */
+	public static void removeStoredHash(Path file) {
+		UserDefinedFileAttributeView view = Files.getFileAttributeView(file, UserDefinedFileAttributeView.class);
+		if (view == null)
+			return;
+		try {
+			view.delete(HASH_ATTRIBUTE);
+		} catch (IOException | UnsupportedOperationException e) {
+			// 没有此属性，或文件系统不支持
+		}
 	}
 }
@@ -0,0 +1,92 @@
+package com.github.blovemaple.backupd.utils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * 某一时刻一个路径的元数据，由一次{@link Files#readAttributes}得到（跟随符号链接，与{@link Files#isDirectory}等一致），
+ * 代替分别调用notExists、isDirectory、isRegularFile、size、getLastModifiedTime。<br>
+ * 遍历目录时已经得到的属性可以直接用{@link #of}包装，不必再读取。
+ *
+ * @author blovemaple <blovemaple2010(at)gmail.com>
+ */
+public class FileSnapshot {
+	/**
+	 * 不存在的路径。
+	 */
+	public static final FileSnapshot ABSENT = new FileSnapshot(null);
+
+	private final BasicFileAttributes attrs;
+
+	private FileSnapshot(BasicFileAttributes attrs) {
+		this.attrs = attrs;
+	}
+
+	/**
+	 * 读取路径当前的元数据。
+	 *
+	 * @param path
+	 *            路径
+	 * @return 元数据，路径不存在时返回{@link #ABSENT}
+	 * @throws IOException
+	 */
+	public static FileSnapshot read(Path path) throws IOException {
+		try {
+			return new FileSnapshot(Files.readAttributes(path, BasicFileAttributes.class));
+		} catch (NoSuchFileException e) {
+			return ABSENT;
+		}
+	}
+
+	/**
+	 * 包装已经读到的属性。
+	 */
+	public static FileSnapshot of(BasicFileAttributes attrs) {
+		return new FileSnapshot(attrs);
+	}
+
+	public boolean exists() {
+		return attrs != null;
+	}
+
+	public boolean isDirectory() {
+		return attrs != null && attrs.isDirectory();
+	}
+
+	public boolean isRegularFile() {
+		return attrs != null && attrs.isRegularFile();
+	}
+
+	public long size() {
+		return attributes().size();
+	}
+
+	public FileTime modifiedTime() {
+		return attributes().lastModifiedTime();
+	}
+
+	/**
+	 * 读到的属性。
+	 *
+	 * @throws IllegalStateException
+	 *             路径不存在
+	 */
+	public BasicFileAttributes attributes() {
+		if (attrs == null)
+			throw new IllegalStateException("Path does not exist.");
+		return attrs;
+	}
+
+	@Override
+	public String toString() {
+		if (attrs == null)
+			return "FileSnapshot [absent]";
+		return "FileSnapshot [directory=" + attrs.isDirectory() + ", regularFile=" + attrs.isRegularFile()
+				+ ", size=" + attrs.size() + ", modifiedTime=" + attrs.lastModifiedTime() + "]";
+	}
+
+}
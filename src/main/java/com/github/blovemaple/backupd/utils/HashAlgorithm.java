@@ -0,0 +1,149 @@
+package com.github.blovemaple.backupd.utils;
+
+import java.util.Arrays;
+import java.util.zip.Checksum;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * 计算文件内容哈希值（用于判断内容是否变化）的算法。保存的哈希值都同时记录算法的{@link #id()}，换算法后旧的哈希值不再使用。
+ *
+ * @author blovemaple <blovemaple2010(at)gmail.com>
+ */
+public enum HashAlgorithm {
+	/**
+	 * 128位murmur3，原来唯一的算法。
+	 */
+	// guava的Hashing不建议用md5（慢），快速hash建议用goodFastHash，
+	// 但goodFastHash每次加载使用随机种子，导致结果不固定。固定结果的hash建议用murmur3_128。
+	MURMUR3_128("murmur3_128") {
+		@Override
+		public Digest newDigest() {
+			Hasher hasher = Hashing.murmur3_128().newHasher();
+			return new Digest() {
+				@Override
+				public void update(byte[] bytes, int offset, int length) {
+					hasher.putBytes(bytes, offset, length);
+				}
+
+				@Override
+				public byte[] finish() {
+					return hasher.hash().asBytes();
+				}
+			};
+		}
+	},
+	/**
+	 * 32位CRC32C。JDK 9以上使用java.util.zip.CRC32C（有硬件指令支持），否则使用guava的实现。
+	 */
+	CRC32C("crc32c") {
+		@Override
+		public Digest newDigest() {
+			Checksum checksum = newJdkCrc32c();
+			if (checksum == null) {
+				Hasher hasher = Hashing.crc32c().newHasher();
+				return new Digest() {
+					@Override
+					public void update(byte[] bytes, int offset, int length) {
+						hasher.putBytes(bytes, offset, length);
+					}
+
+					@Override
+					public byte[] finish() {
+						return hasher.hash().asBytes();
+					}
+				};
+			}
+			return new Digest() {
+				@Override
+				public void update(byte[] bytes, int offset, int length) {
+					checksum.update(bytes, offset, length);
+				}
+
+				@Override
+				public byte[] finish() {
+					// 与guava的crc32c一样按小端序输出
+					int value = (int) checksum.getValue();
+					return new byte[] { (byte) value, (byte) (value >>> 8), (byte) (value >>> 16),
+							(byte) (value >>> 24) };
+				}
+			};
+		}
+	},
+	/**
+	 * 64位xxHash（种子为0）。
+	 */
+	XXHASH64("xxh64") {
+		@Override
+		public Digest newDigest() {
+			return new XxHash64();
+		}
+	};
+
+	/**
+	 * 默认的算法，与不支持选择算法时计算的哈希值兼容。
+	 */
+	public static final HashAlgorithm DEFAULT = MURMUR3_128;
+
+	private static final Class<?> jdkCrc32cClass;
+	static {
+		Class<?> crc32cClass;
+		try {
+			crc32cClass = Class.forName("java.util.zip.CRC32C");
+		} catch (ClassNotFoundException e) {
+			// JDK 8
+			crc32cClass = null;
+		}
+		jdkCrc32cClass = crc32cClass;
+	}
+
+	private static Checksum newJdkCrc32c() {
+		if (jdkCrc32cClass == null)
+			return null;
+		try {
+			return (Checksum) jdkCrc32cClass.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * 计算一个哈希值的过程。
+	 */
+	public interface Digest {
+		void update(byte[] bytes, int offset, int length);
+
+		/**
+		 * 返回哈希值。之后不能再使用。
+		 */
+		byte[] finish();
+	}
+
+	private final String id;
+
+	private HashAlgorithm(String id) {
+		this.id = id;
+	}
+
+	/**
+	 * 算法的标识，用于配置和保存的哈希值。
+	 */
+	public String id() {
+		return id;
+	}
+
+	public abstract Digest newDigest();
+
+	/**
+	 * 根据标识返回算法。
+	 *
+	 * @throws IllegalArgumentException
+	 *             没有此标识的算法
+	 */
+	public static HashAlgorithm of(String id) {
+		return Arrays.stream(values()).filter(algorithm -> algorithm.id.equalsIgnoreCase(id)).findFirst()
+				.orElseThrow(() -> new IllegalArgumentException("Unknown hash algorithm: " + id));
+	}
+
+}
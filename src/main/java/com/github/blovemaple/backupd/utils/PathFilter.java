@@ -0,0 +1,182 @@
+package com.github.blovemaple.backupd.utils;
+
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 按glob过滤相对路径：匹配任意一个include（没有include时匹配所有路径），且本身和所有上级目录都不匹配任何exclude。<br>
+ * 除了判断一个路径，还可以判断一个目录下是否可能有匹配的路径（{@link #mayMatchUnder}），遍历和注册监视时跳过整个子树。
+ * include按“/”分段，目录的各段与include开头的各段逐段比较，含“**”的段之后不再比较（可能匹配任意多段）。
+ *
+ * @author blovemaple <blovemaple2010(at)gmail.com>
+ */
+public class PathFilter implements PathMatcher {
+	/**
+	 * 匹配所有路径。
+	 */
+	public static final PathFilter ALL = new PathFilter(Collections.emptyList(), Collections.emptyList(),
+			Collections.emptyList(), Collections.emptyList());
+
+	private final List<String> includes;
+	private final List<String> excludes;
+	private final List<Include> includeMatchers;
+	private final List<PathMatcher> excludeMatchers;
+
+	/**
+	 * 一个include及其各段。
+	 */
+	private static class Include {
+		private final PathMatcher matcher;
+		// 各段的matcher，含“**”的段为null；无法分段时整个为null
+		private final List<PathMatcher> segments;
+
+		private Include(PathMatcher matcher, List<PathMatcher> segments) {
+			this.matcher = matcher;
+			this.segments = segments;
+		}
+
+		private boolean mayMatchUnder(Path relativeDir) {
+			if (segments == null)
+				return true;
+			int depth = relativeDir.getNameCount();
+			for (int i = 0; i < depth; i++) {
+				if (i >= segments.size())
+					// include的段数比目录下的路径少
+					return false;
+				PathMatcher segment = segments.get(i);
+				if (segment == null)
+					return true;
+				if (!segment.matches(relativeDir.getName(i)))
+					return false;
+			}
+			// 目录下的路径至少还有一段
+			return segments.size() > depth;
+		}
+	}
+
+	private PathFilter(List<String> includes, List<String> excludes, List<Include> includeMatchers,
+			List<PathMatcher> excludeMatchers) {
+		this.includes = includes;
+		this.excludes = excludes;
+		this.includeMatchers = includeMatchers;
+		this.excludeMatchers = excludeMatchers;
+	}
+
+	/**
+	 * @param fileSystem
+	 *            路径所在的文件系统（glob的语法由文件系统决定）
+	 * @param includes
+	 *            include的glob
+	 * @param excludes
+	 *            exclude的glob
+	 */
+	public static PathFilter of(FileSystem fileSystem, List<String> includes, List<String> excludes) {
+		if (includes.isEmpty() && excludes.isEmpty())
+			return ALL;
+
+		List<Include> includeMatchers = new ArrayList<>();
+		for (String include : includes) {
+			List<String> segmentGlobs = splitSegments(include);
+			List<PathMatcher> segments = null;
+			if (segmentGlobs != null) {
+				segments = new ArrayList<>();
+				for (String segmentGlob : segmentGlobs)
+					segments.add(segmentGlob.contains("**") ? null : fileSystem.getPathMatcher("glob:" + segmentGlob));
+			}
+			includeMatchers.add(new Include(fileSystem.getPathMatcher("glob:" + include), segments));
+		}
+		List<PathMatcher> excludeMatchers = new ArrayList<>();
+		for (String exclude : excludes)
+			excludeMatchers.add(fileSystem.getPathMatcher("glob:" + exclude));
+
+		return new PathFilter(new ArrayList<>(includes), new ArrayList<>(excludes), includeMatchers,
+				excludeMatchers);
+	}
+
+	/**
+	 * 按不在[]、{}中的“/”把glob分段。
+	 *
+	 * @return 各段，[]、{}中有“/”时无法分段，返回null
+	 */
+	private static List<String> splitSegments(String glob) {
+		List<String> segments = new ArrayList<>();
+		int depth = 0;
+		int start = 0;
+		for (int i = 0; i < glob.length(); i++) {
+			char c = glob.charAt(i);
+			if (c == '\\') {
+				i++;
+			} else if (c == '[' || c == '{') {
+				depth++;
+			} else if ((c == ']' || c == '}') && depth > 0) {
+				depth--;
+			} else if (c == '/') {
+				if (depth > 0)
+					return null;
+				segments.add(glob.substring(start, i));
+				start = i + 1;
+			}
+		}
+		segments.add(glob.substring(start));
+		return segments;
+	}
+
+	/**
+	 * 判断相对路径是否通过过滤。
+	 */
+	@Override
+	public boolean matches(Path relativePath) {
+		if (isExcluded(relativePath))
+			return false;
+		if (includeMatchers.isEmpty())
+			return true;
+		for (Include include : includeMatchers)
+			if (include.matcher.matches(relativePath))
+				return true;
+		return false;
+	}
+
+	/**
+	 * 判断目录下（不包括目录本身）是否可能有通过过滤的路径。返回false时可以跳过整个子树。
+	 *
+	 * @param relativeDir
+	 *            目录的相对路径，根目录为空路径
+	 */
+	public boolean mayMatchUnder(Path relativeDir) {
+		if (relativeDir.toString().isEmpty())
+			return true;
+		if (isExcluded(relativeDir))
+			return false;
+		if (includeMatchers.isEmpty())
+			return true;
+		for (Include include : includeMatchers)
+			if (include.mayMatchUnder(relativeDir))
+				return true;
+		return false;
+	}
+
+	/**
+	 * 路径本身或某个上级目录匹配exclude。
+	 */
+	private boolean isExcluded(Path relativePath) {
+		if (excludeMatchers.isEmpty() || relativePath.toString().isEmpty())
+			return false;
+		for (int count = 1; count <= relativePath.getNameCount(); count++) {
+			Path prefix = relativePath.subpath(0, count);
+			for (PathMatcher exclude : excludeMatchers)
+				if (exclude.matches(prefix))
+					return true;
+		}
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return "PathFilter [includes=" + includes + ", excludes=" + excludes + "]";
+	}
+
+}
@@ -0,0 +1,120 @@
+package com.github.blovemaple.backupd.utils;
+
+/**
+ * 64位xxHash（XXH64）的流式实现，种子为0。哈希值按大端序输出（与xxhsum的16进制表示一致）。
+ *
+ * @author blovemaple <blovemaple2010(at)gmail.com>
+ */
+class XxHash64 implements HashAlgorithm.Digest {
+	private static final long PRIME1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long PRIME3 = 0x165667B19E3779F9L;
+	private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+	private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+	private static final int STRIPE_SIZE = 32;
+
+	private long v1 = PRIME1 + PRIME2;
+	private long v2 = PRIME2;
+	private long v3 = 0;
+	private long v4 = -PRIME1;
+	private long totalLength = 0;
+
+	// 不足一个stripe的剩余内容
+	private final byte[] buffer = new byte[STRIPE_SIZE];
+	private int bufferLength = 0;
+
+	@Override
+	public void update(byte[] bytes, int offset, int length) {
+		totalLength += length;
+
+		if (bufferLength > 0) {
+			int part = Math.min(length, STRIPE_SIZE - bufferLength);
+			System.arraycopy(bytes, offset, buffer, bufferLength, part);
+			bufferLength += part;
+			offset += part;
+			length -= part;
+			if (bufferLength < STRIPE_SIZE)
+				return;
+			stripe(buffer, 0);
+			bufferLength = 0;
+		}
+
+		int end = offset + length;
+		for (; offset <= end - STRIPE_SIZE; offset += STRIPE_SIZE)
+			stripe(bytes, offset);
+
+		bufferLength = end - offset;
+		System.arraycopy(bytes, offset, buffer, 0, bufferLength);
+	}
+
+	private void stripe(byte[] bytes, int offset) {
+		v1 = round(v1, readLong(bytes, offset));
+		v2 = round(v2, readLong(bytes, offset + 8));
+		v3 = round(v3, readLong(bytes, offset + 16));
+		v4 = round(v4, readLong(bytes, offset + 24));
+	}
+
+	@Override
+	public byte[] finish() {
+		long hash;
+		if (totalLength >= STRIPE_SIZE) {
+			hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12)
+					+ Long.rotateLeft(v4, 18);
+			hash = mergeRound(hash, v1);
+			hash = mergeRound(hash, v2);
+			hash = mergeRound(hash, v3);
+			hash = mergeRound(hash, v4);
+		} else {
+			hash = PRIME5;
+		}
+		hash += totalLength;
+
+		int offset = 0;
+		for (; offset + 8 <= bufferLength; offset += 8) {
+			hash ^= round(0, readLong(buffer, offset));
+			hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+		}
+		if (offset + 4 <= bufferLength) {
+			hash ^= (readInt(buffer, offset) & 0xFFFFFFFFL) * PRIME1;
+			hash = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+			offset += 4;
+		}
+		for (; offset < bufferLength; offset++) {
+			hash ^= (buffer[offset] & 0xFFL) * PRIME5;
+			hash = Long.rotateLeft(hash, 11) * PRIME1;
+		}
+
+		hash ^= hash >>> 33;
+		hash *= PRIME2;
+		hash ^= hash >>> 29;
+		hash *= PRIME3;
+		hash ^= hash >>> 32;
+
+		byte[] result = new byte[8];
+		for (int i = 0; i < 8; i++)
+			result[i] = (byte) (hash >>> (56 - i * 8));
+		return result;
+	}
+
+	private static long round(long acc, long input) {
+		acc += input * PRIME2;
+		acc = Long.rotateLeft(acc, 31);
+		return acc * PRIME1;
+	}
+
+	private static long mergeRound(long acc, long value) {
+		acc ^= round(0, value);
+		return acc * PRIME1 + PRIME4;
+	}
+
+	private static long readLong(byte[] bytes, int offset) {
+		return (readInt(bytes, offset) & 0xFFFFFFFFL) | ((long) readInt(bytes, offset + 4) << 32);
+	}
+
+	private static int readInt(byte[] bytes, int offset) {
+		return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8 | (bytes[offset + 2] & 0xFF) << 16
+				| (bytes[offset + 3] & 0xFF) << 24;
+	}
+
+}
@@ -1,4 +1,4 @@
 #!/bin/bash
 
 cd "$(dirname $(readlink -f $0))"
-java -cp "$(find lib|tr "\n" ":")" com.github.blovemaple.backupd.Runner -c conf.txt
+java -cp "$(find lib|tr "\n" ":")" com.github.blovemaple.backupd.Runner -c conf.txt -s state
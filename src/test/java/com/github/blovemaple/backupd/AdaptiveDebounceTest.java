@@ -0,0 +1,75 @@
+package com.github.blovemaple.backupd;
+
+import static com.github.blovemaple.backupd.task.BackupConf.BackupConfType.*;
+import static org.junit.Assert.*;
+
+import java.nio.file.Paths;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.blovemaple.backupd.machine.AdaptiveDebounce;
+import com.github.blovemaple.backupd.task.BackupConf;
+import com.github.blovemaple.backupd.task.BackupTask;
+
+public class AdaptiveDebounceTest {
+	private int originalMinDelayMillis;
+	private int originalHotFactor;
+	private AdaptiveDebounce debounce;
+	private BackupTask task;
+
+	@Before
+	public void setUp() throws Exception {
+		originalMinDelayMillis = AdaptiveDebounce.MIN_DELAY_MILLIS;
+		AdaptiveDebounce.MIN_DELAY_MILLIS = 500;
+		originalHotFactor = AdaptiveDebounce.HOT_FACTOR;
+		AdaptiveDebounce.HOT_FACTOR = 32;
+		debounce = new AdaptiveDebounce();
+		task = new BackupTask(new BackupConf(Paths.get("/org"), Paths.get("/dst"), DAEMON), Paths.get("file"));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		AdaptiveDebounce.MIN_DELAY_MILLIS = originalMinDelayMillis;
+		AdaptiveDebounce.HOT_FACTOR = originalHotFactor;
+	}
+
+	/**
+	 * 只修改一次的文件用最短延迟。
+	 */
+	@Test
+	public void testOnce() {
+		assertEquals(500, debounce.delayAfter(task, 100000));
+		assertEquals(500, debounce.delayAfter(task, 100000));
+	}
+
+	/**
+	 * 每秒都被修改的文件，延迟加倍直到超过修改间隔。
+	 */
+	@Test
+	public void testHot() {
+		long time = 100000;
+		assertEquals(500, debounce.delayAfter(task, time));
+		assertEquals(1000, debounce.delayAfter(task, time += 1000));
+		assertEquals(2000, debounce.delayAfter(task, time += 1000));
+		// 间隔小于延迟，视为同一次修改
+		assertEquals(2000, debounce.delayAfter(task, time += 1000));
+		assertEquals(2000, debounce.delayAfter(task, time += 1000));
+	}
+
+	/**
+	 * 延迟不超过最长延迟，长时间不修改后恢复最短延迟。
+	 */
+	@Test
+	public void testMaxAndCool() {
+		long time = 100000;
+		long delay = debounce.delayAfter(task, time);
+		for (int i = 0; i < 20; i++)
+			delay = debounce.delayAfter(task, time += delay);
+		assertEquals(AdaptiveDebounce.MAX_DELAY_SECONDS * 1000L, delay);
+
+		assertEquals(500, debounce.delayAfter(task, time + delay * AdaptiveDebounce.COOL_FACTOR));
+	}
+
+}
@@ -7,13 +7,19 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import com.github.blovemaple.backupd.machine.BackupDelayingQueue;
+import com.github.blovemaple.backupd.machine.TaskSpill;
 import com.github.blovemaple.backupd.task.BackupConf;
 import com.github.blovemaple.backupd.task.BackupTask;
 
@@ -98,6 +104,157 @@ public class BackupDelayingQueueTest extends TestBase {
 		assertNull(queue.fetch(2));
 	}
 
+	@Test
+	public void testCancelConf() throws Exception {
+		Path file = fs.getPath("/org/file");
+		Files.createFile(file);
+		Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() - 3000));
+
+		BackupConf conf1 = new BackupConf(fs.getPath("/org"), fs.getPath("/dst1"), ONCE);
+		BackupConf conf2 = new BackupConf(fs.getPath("/org"), fs.getPath("/dst2"), ONCE);
+
+		submit(conf1, "file");
+		BackupTask task2 = submit(conf2, "file");
+		submit(conf1, "file");
+
+		queue.cancelConf(conf1);
+
+		assertEquals(task2, queue.fetch(0));
+		assertNull(queue.fetch(0));
+	}
+
+	@Test
+	public void testFetchAcceptable() throws Exception {
+		Path file = fs.getPath("/org/file");
+		Files.createFile(file);
+		Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() - 3000));
+
+		BackupConf conf1 = new BackupConf(fs.getPath("/org"), fs.getPath("/dst1"), ONCE);
+		BackupConf conf2 = new BackupConf(fs.getPath("/org"), fs.getPath("/dst2"), ONCE);
+
+		BackupTask task1 = submit(conf1, "file");
+		BackupTask task2 = submit(conf2, "file");
+
+		// 不acceptable的配置的任务留在队列中
+		assertEquals(task2, queue.fetch(0, conf -> conf == conf2));
+		assertNull(queue.fetch(0, conf -> conf == conf2));
+
+		// 等待期间变为acceptable
+		AtomicBoolean accepting = new AtomicBoolean(false);
+		new Thread(() -> {
+			try {
+				Thread.sleep(200);
+			} catch (InterruptedException e) {
+				return;
+			}
+			accepting.set(true);
+			queue.wakeUp();
+		}).start();
+		assertEquals(task1, queue.fetch(3, conf -> accepting.get()));
+	}
+
+	@Test
+	public void testMergeSubtree() throws Exception {
+		Files.createDirectories(fs.getPath("/org/dir/sub"));
+		for (String fileName : new String[] { "dir/file1", "dir/sub/file2", "dir/sub/file3", "file4" }) {
+			Path file = fs.getPath("/org").resolve(fileName);
+			Files.createFile(file);
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() - 3000));
+		}
+		Files.setLastModifiedTime(fs.getPath("/org/dir"), FileTime.fromMillis(System.currentTimeMillis() - 3000));
+
+		BackupConf conf = new BackupConf(fs.getPath("/org"), fs.getPath("/dst"), ONCE);
+
+		submit(conf, "dir/file1");
+		submit(conf, "dir/sub/file2");
+		BackupTask otherTask = submit(conf, "file4");
+		BackupTask subtreeTask = new BackupTask(conf, fs.getPath("dir"), true);
+		queue.submit(subtreeTask);
+		submit(conf, "dir/sub/file3");
+
+		assertEquals(otherTask, queue.fetch(0));
+		assertEquals(subtreeTask, queue.fetch(0));
+		assertNull(queue.fetch(0));
+	}
+
+	@Test
+	public void testSpill() throws Exception {
+		queue.close();
+		queue = new BackupDelayingQueue(new HashMap<>(), null, null, 2);
+
+		Set<BackupTask> tasks = new HashSet<>();
+		for (int i = 0; i < 5; i++) {
+			Path file = fs.getPath("/org/file" + i);
+			Files.createFile(file);
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() - 3000));
+			tasks.add(submit("file" + i));
+		}
+
+		Set<BackupTask> fetchedTasks = new HashSet<>();
+		for (int i = 0; i < 5; i++)
+			fetchedTasks.add(queue.fetch(1));
+		assertEquals(tasks, fetchedTasks);
+		assertNull(queue.fetch(0));
+	}
+
+	@Test
+	public void testSpillCancelConf() throws Exception {
+		queue.close();
+		queue = new BackupDelayingQueue(new HashMap<>(), null, null, 1);
+		int originalRunSize = TaskSpill.RUN_SIZE;
+		TaskSpill.RUN_SIZE = 2;
+		try {
+			BackupConf conf = new BackupConf(fs.getPath("/org"), fs.getPath("/dst"), ONCE);
+			for (int i = 0; i < 7; i++) {
+				Path file = fs.getPath("/org/file" + i);
+				Files.createFile(file);
+				Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() - 3000));
+			}
+			for (int i = 0; i < 5; i++)
+				submit(conf, "file" + i);
+
+			// 取消前溢出的任务在再次执行同一配置后也不会被读回
+			queue.cancelConf(conf);
+			Set<BackupTask> tasks = new HashSet<>();
+			tasks.add(submit(conf, "file5"));
+			tasks.add(submit(conf, "file6"));
+
+			Set<BackupTask> fetchedTasks = new HashSet<>();
+			BackupTask task;
+			while ((task = queue.fetch(1)) != null)
+				fetchedTasks.add(task);
+			assertEquals(tasks, fetchedTasks);
+		} finally {
+			TaskSpill.RUN_SIZE = originalRunSize;
+		}
+	}
+
+	@Test
+	public void testSubmitAll() throws Exception {
+		BackupConf conf = new BackupConf(fs.getPath("/org"), fs.getPath("/dst"), ONCE);
+		List<BackupTask> tasks = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			Path file = fs.getPath("/org/file" + i);
+			Files.createFile(file);
+			// 一半ready，一半需要延迟
+			if (i % 2 == 0)
+				Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() - 3000));
+			tasks.add(new BackupTask(conf, fs.getPath("file" + i)));
+		}
+		queue.submitAll(tasks);
+
+		Set<BackupTask> fetchedTasks = new HashSet<>();
+		BackupTask task;
+		while ((task = queue.fetch(0)) != null)
+			fetchedTasks.add(task);
+		assertEquals(50, fetchedTasks.size());
+		assertTrue(fetchedTasks.stream().allMatch(fetchedTask -> tasks.indexOf(fetchedTask) % 2 == 0));
+
+		while (fetchedTasks.size() < tasks.size() && (task = queue.fetch(4)) != null)
+			fetchedTasks.add(task);
+		assertEquals(new HashSet<>(tasks), fetchedTasks);
+	}
+
 	private BackupTask submit(String fileName) throws InterruptedException, IOException {
 		BackupConf conf = new BackupConf(fs.getPath("/org"), fs.getPath("/dst"), ONCE);
 		return submit(conf, fileName);
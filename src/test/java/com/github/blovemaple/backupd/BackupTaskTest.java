@@ -0,0 +1,262 @@
+package com.github.blovemaple.backupd;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+import com.github.blovemaple.backupd.machine.GroupCommitter;
+import com.github.blovemaple.backupd.task.BackupConf;
+import com.github.blovemaple.backupd.task.BackupConf.BackupConfType;
+import com.github.blovemaple.backupd.task.BackupConf.Durability;
+import com.github.blovemaple.backupd.task.BackupContext;
+import com.github.blovemaple.backupd.task.BackupTask;
+import com.github.blovemaple.backupd.task.HashIndex;
+import com.github.blovemaple.backupd.utils.FileCopying;
+import com.github.blovemaple.backupd.utils.FileSnapshot;
+
+public class BackupTaskTest extends TestBase {
+	private static final Set<PosixFilePermission> READ_ONLY = PosixFilePermissions.fromString("r--r--r--");
+	private static final Set<PosixFilePermission> WRITABLE = PosixFilePermissions.fromString("rw-r--r--");
+
+	private final Path org = fs.getPath("/org");
+	private final Path dst = fs.getPath("/dst");
+	private final BackupConf conf = new BackupConf(org, dst, BackupConfType.ONCE);
+
+	/**
+	 * 修改时间相同而大小不同的文件需要备份。
+	 */
+	@Test
+	public void testSizeChanged() throws Exception {
+		Files.createDirectories(dst);
+		Files.write(org.resolve("file"), Arrays.asList("abc"));
+		Files.write(dst.resolve("file"), Arrays.asList("abcd"));
+		FileTime time = FileTime.fromMillis(1000000);
+		Files.setLastModifiedTime(org.resolve("file"), time);
+		Files.setLastModifiedTime(dst.resolve("file"), time);
+
+		assertTrue(new BackupTask(conf, fs.getPath("file")).needBackup());
+
+		Files.write(dst.resolve("file"), Arrays.asList("abc"));
+		Files.setLastModifiedTime(dst.resolve("file"), time);
+		assertFalse(new BackupTask(conf, fs.getPath("file")).needBackup());
+	}
+
+	/**
+	 * 无法判断是否需要备份时，checkNeedBackup抛出异常，needBackup只打印并返回false。
+	 */
+	@Test
+	public void testCheckNeedBackupError() throws Exception {
+		Path to = dst.resolve("file");
+		Files.createDirectories(dst);
+		Files.write(org.resolve("file"), Arrays.asList("abc"));
+		Files.write(to, Arrays.asList("abd"));
+		Files.setLastModifiedTime(to, FileTime.fromMillis(1000000));
+
+		// 检测时读到的目标文件大小相同、修改时间不同，比较内容时目标文件已不存在
+		BackupTask task = new BackupTask(conf, fs.getPath("file"));
+		task.setToSnapshot(FileSnapshot.read(to));
+		Files.delete(to);
+		try {
+			task.checkNeedBackup();
+			fail();
+		} catch (IOException e) {
+			// 目标文件不存在
+		}
+		assertFalse(task.needBackup());
+	}
+
+	/**
+	 * 检测时的元数据用于判断是否需要备份，执行时重新读取。
+	 */
+	@Test
+	public void testFromSnapshot() throws Exception {
+		Path from = org.resolve("file");
+		Files.write(from, Arrays.asList("abc"));
+		FileSnapshot snapshot = FileSnapshot.read(from);
+		Files.delete(from);
+
+		BackupTask task = new BackupTask(conf, fs.getPath("file"));
+		task.setFromSnapshot(snapshot);
+		assertTrue(task.needBackup());
+		assertFalse(task.call());
+		assertTrue(Files.notExists(dst.resolve("file")));
+	}
+
+	/**
+	 * 复制被中断时保留原来的目标文件，不留下临时文件。
+	 */
+	@Test
+	public void testReplaceAtomically() throws Exception {
+		Files.createDirectories(dst);
+		Files.write(org.resolve("file"), Arrays.asList("new"));
+		Files.write(dst.resolve("file"), Arrays.asList("old content"));
+
+		BackupTask task = new BackupTask(conf, fs.getPath("file"));
+		Thread.currentThread().interrupt();
+		try {
+			task.call();
+			fail();
+		} catch (IOException e) {
+			// 中断时可能是InterruptedIOException或ClosedByInterruptException
+		} finally {
+			Thread.interrupted();
+		}
+		assertEquals(Arrays.asList("old content"), Files.readAllLines(dst.resolve("file")));
+
+		conf.setDurability(Durability.FILE);
+		assertTrue(task.call());
+		assertEquals(Arrays.asList("new"), Files.readAllLines(dst.resolve("file")));
+		try (Stream<Path> files = Files.list(dst)) {
+			assertEquals(Arrays.asList(dst.resolve("file")), files.collect(Collectors.toList()));
+		}
+	}
+
+	/**
+	 * 子树任务删除目标目录中复制中止时留下的临时文件，不备份临时文件名的源文件。
+	 */
+	@Test
+	public void testStaleTempFiles() throws Exception {
+		Files.createDirectories(org.resolve("dir"));
+		Files.createDirectories(dst.resolve("dir"));
+		Files.write(org.resolve("dir/file"), Arrays.asList("abc"));
+		Files.write(org.resolve("dir/.other" + BackupTask.TEMP_SUFFIX), Arrays.asList("abc"));
+		Files.write(dst.resolve("dir/.file" + BackupTask.TEMP_SUFFIX), Arrays.asList("ab"));
+
+		assertTrue(new BackupTask(conf, fs.getPath("dir"), true).call());
+		try (Stream<Path> files = Files.list(dst.resolve("dir"))) {
+			assertEquals(Arrays.asList(dst.resolve("dir/file")), files.collect(Collectors.toList()));
+		}
+	}
+
+	/**
+	 * 成批fsync时，提交之后才用临时文件替换目标文件、给目标文件设置源文件的修改时间。
+	 */
+	@Test
+	public void testGroupCommit() throws Exception {
+		Path from = org.resolve("file");
+		Path to = dst.resolve("file");
+		Files.write(from, Arrays.asList("abc"));
+		Files.createDirectories(dst);
+		Files.write(to, Arrays.asList("old"));
+		FileTime time = FileTime.fromMillis(1000000);
+		Files.setLastModifiedTime(from, time);
+		conf.setDurability(Durability.GROUP);
+
+		// 测试期间不会到时间自动提交
+		long originalMaxDelayMillis = GroupCommitter.MAX_DELAY_MILLIS;
+		GroupCommitter.MAX_DELAY_MILLIS = 60000;
+		GroupCommitter committer = new GroupCommitter();
+		try {
+			BackupTask task = new BackupTask(conf, fs.getPath("file"));
+			task.setContext(new BackupContext(null, committer, null));
+			assertTrue(task.call());
+			assertEquals(Arrays.asList("old"), Files.readAllLines(to));
+
+			// 再次备份同一文件时先等待之前的临时文件提交
+			Files.write(from, Arrays.asList("abcd"));
+			Files.setLastModifiedTime(from, time);
+			task = new BackupTask(conf, fs.getPath("file"));
+			task.setContext(new BackupContext(null, committer, null));
+			assertTrue(task.call());
+			assertEquals(Arrays.asList("abc"), Files.readAllLines(to));
+			assertEquals(1, committer.committedFiles());
+		} finally {
+			// 关闭时提交剩余的文件
+			committer.close();
+			GroupCommitter.MAX_DELAY_MILLIS = originalMaxDelayMillis;
+		}
+		assertEquals(Arrays.asList("abcd"), Files.readAllLines(to));
+		assertEquals(time, Files.getLastModifiedTime(to));
+		// 临时文件已改名
+		try (Stream<Path> files = Files.list(dst)) {
+			assertEquals(1, files.count());
+		}
+	}
+
+	/**
+	 * 目标文件带着源文件的只读权限，不能在原位置写时改为整个复制。
+	 */
+	@Test
+	public void testReadOnlyDelta() throws Exception {
+		long originalDeltaMinSize = FileCopying.DELTA_MIN_SIZE;
+		FileCopying.DELTA_MIN_SIZE = 1;
+		// 测试用的文件系统不检查权限，用默认文件系统
+		Path dir = Files.createTempDirectory("backupd-task");
+		try {
+			BackupConf diskConf = new BackupConf(dir.resolve("org"), dir.resolve("dst"), BackupConfType.ONCE);
+			Path from = Files.createDirectory(diskConf.getFromPath()).resolve("file");
+			Path to = diskConf.getToPath().resolve("file");
+			Files.write(from, Arrays.asList("abc"));
+			Files.setPosixFilePermissions(from, READ_ONLY);
+			assertTrue(new BackupTask(diskConf, dir.getFileSystem().getPath("file")).call());
+
+			Files.setPosixFilePermissions(from, WRITABLE);
+			Files.write(from, Arrays.asList("xyz"));
+			Files.setPosixFilePermissions(from, READ_ONLY);
+			Files.setLastModifiedTime(from, FileTime.fromMillis(1000000));
+			assertTrue(new BackupTask(diskConf, dir.getFileSystem().getPath("file")).call());
+
+			assertEquals(Arrays.asList("xyz"), Files.readAllLines(to));
+			assertEquals(READ_ONLY, Files.getPosixFilePermissions(to));
+		} finally {
+			FileCopying.DELTA_MIN_SIZE = originalDeltaMinSize;
+			deleteDiskDir(dir);
+		}
+	}
+
+	/**
+	 * 目标文件带着源文件的只读权限，不能追加时改为整个复制。
+	 */
+	@Test
+	public void testReadOnlyAppend() throws Exception {
+		long originalAppendMinSize = FileCopying.APPEND_MIN_SIZE;
+		FileCopying.APPEND_MIN_SIZE = 1;
+		Path dir = Files.createTempDirectory("backupd-task");
+		try {
+			BackupConf diskConf = new BackupConf(dir.resolve("org"), dir.resolve("dst"), BackupConfType.ONCE);
+			// 记录目标文件的哈希值，追加前需要确认目标文件是源文件的前缀
+			BackupContext context = new BackupContext(new HashIndex(diskConf.getHashAlgorithm()), null, null);
+			Path from = Files.createDirectory(diskConf.getFromPath()).resolve("file");
+			Path to = diskConf.getToPath().resolve("file");
+			Files.write(from, Arrays.asList("abc"));
+			Files.setPosixFilePermissions(from, READ_ONLY);
+			BackupTask task = new BackupTask(diskConf, dir.getFileSystem().getPath("file"));
+			task.setContext(context);
+			assertTrue(task.call());
+
+			Files.setPosixFilePermissions(from, WRITABLE);
+			Files.write(from, Arrays.asList("xyz"), StandardOpenOption.APPEND);
+			Files.setPosixFilePermissions(from, READ_ONLY);
+			task = new BackupTask(diskConf, dir.getFileSystem().getPath("file"));
+			task.setContext(context);
+			assertTrue(task.call());
+
+			assertEquals(Arrays.asList("abc", "xyz"), Files.readAllLines(to));
+			assertEquals(READ_ONLY, Files.getPosixFilePermissions(to));
+		} finally {
+			FileCopying.APPEND_MIN_SIZE = originalAppendMinSize;
+			deleteDiskDir(dir);
+		}
+	}
+
+	private void deleteDiskDir(Path dir) throws IOException {
+		try (Stream<Path> paths = Files.walk(dir)) {
+			for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+				Files.delete(path);
+		}
+	}
+
+}
@@ -4,12 +4,15 @@ import static org.junit.Assert.*;
 
 import java.io.IOException;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.List;
 
 import org.junit.Test;
 
 import com.github.blovemaple.backupd.task.BackupConf;
 import com.github.blovemaple.backupd.task.BackupConf.BackupConfType;
+import com.github.blovemaple.backupd.task.BackupConf.Durability;
+import com.github.blovemaple.backupd.utils.HashAlgorithm;
 import com.google.common.collect.Lists;
 
 public class ConfGeneratorTest {
@@ -24,6 +27,11 @@ public class ConfGeneratorTest {
 		lines.add("from /a/b/c");
 		lines.add("to /a/b/d");
 		lines.add("only abc");
+		lines.add("only def/**");
+		lines.add("except **/node_modules");
+		lines.add("streams 4");
+		lines.add("hash xxh64");
+		lines.add("durability group");
 		lines.add("backup remote");
 		lines.add("from remote file:///a/b/c");
 		lines.add("to remote   file:///a/b/d");
@@ -42,28 +50,36 @@ public class ConfGeneratorTest {
 		assertEquals(conf0.getType(), BackupConfType.DAEMON);
 		assertEquals(conf0.getFromPath(), Paths.get("/a/b/c"));
 		assertEquals(conf0.getToPath(), Paths.get("/a/b/d"));
-		assertNull(conf0.getFilter());
+		assertTrue(conf0.getIncludes().isEmpty());
+		assertTrue(conf0.getExcludes().isEmpty());
+		assertNull(conf0.getStreams());
+		assertEquals(conf0.getHashAlgorithm(), HashAlgorithm.DEFAULT);
+		assertEquals(conf0.getDurability(), Durability.NONE);
 
 		BackupConf conf1 = confs.get(1);
 		assertEquals(conf1.getName(), "filter");
 		assertEquals(conf1.getType(), BackupConfType.DAEMON);
 		assertEquals(conf1.getFromPath(), Paths.get("/a/b/c"));
 		assertEquals(conf1.getToPath(), Paths.get("/a/b/d"));
-		assertEquals(conf1.getFilter(), "abc");
+		assertEquals(conf1.getIncludes(), Arrays.asList("abc", "def/**"));
+		assertEquals(conf1.getExcludes(), Arrays.asList("**/node_modules"));
+		assertEquals(conf1.getStreams(), Integer.valueOf(4));
+		assertEquals(conf1.getHashAlgorithm(), HashAlgorithm.XXHASH64);
+		assertEquals(conf1.getDurability(), Durability.GROUP);
 
 		BackupConf conf2 = confs.get(2);
 		assertEquals(conf2.getName(), "remote");
 		assertEquals(conf2.getType(), BackupConfType.DAEMON);
 		assertEquals(conf2.getFromPath(), Paths.get("/a/b/c"));
 		assertEquals(conf2.getToPath(), Paths.get("/a/b/d"));
-		assertNull(conf2.getFilter());
+		assertTrue(conf2.getIncludes().isEmpty());
 
 		BackupConf conf3 = confs.get(3);
 		assertEquals(conf3.getName(), "comment");
 		assertEquals(conf3.getType(), BackupConfType.DAEMON);
 		assertEquals(conf3.getFromPath(), Paths.get("/a/b/c"));
 		assertEquals(conf3.getToPath(), Paths.get("/a/b/d"));
-		assertNull(conf3.getFilter());
+		assertTrue(conf3.getIncludes().isEmpty());
 
 	}
 
@@ -0,0 +1,95 @@
+package com.github.blovemaple.backupd;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.blovemaple.backupd.task.DirectoryWalker;
+
+public class DirectoryWalkerTest extends TestBase {
+	private int originalWalkThreads;
+	private int originalMaxPendingDirectories;
+	private int originalEntryChunkSize;
+
+	@Before
+	public void setUp1() throws Exception {
+		originalWalkThreads = DirectoryWalker.WALK_THREADS;
+		originalMaxPendingDirectories = DirectoryWalker.MAX_PENDING_DIRECTORIES;
+		originalEntryChunkSize = DirectoryWalker.ENTRY_CHUNK_SIZE;
+		DirectoryWalker.WALK_THREADS = 4;
+		DirectoryWalker.ENTRY_CHUNK_SIZE = 3;
+	}
+
+	@After
+	public void tearDown1() throws Exception {
+		DirectoryWalker.WALK_THREADS = originalWalkThreads;
+		DirectoryWalker.MAX_PENDING_DIRECTORIES = originalMaxPendingDirectories;
+		DirectoryWalker.ENTRY_CHUNK_SIZE = originalEntryChunkSize;
+	}
+
+	/**
+	 * 结果按先序、同一目录中按文件名排序，与并行程度无关；visitor返回null的项没有结果，但仍进入其子目录。
+	 */
+	@Test
+	public void testOrder() throws Exception {
+		List<String> expected = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			String dir = "d" + i;
+			Files.createDirectories(fs.getPath("/org", dir, "sub"));
+			expected.add(dir);
+			for (int j = 0; j < 5; j++) {
+				Files.write(fs.getPath("/org", dir, "f" + j), new byte[0]);
+				expected.add(dir + "/f" + j);
+			}
+			expected.add(dir + "/sub");
+			Files.write(fs.getPath("/org", dir, "sub", "x"), new byte[0]);
+			expected.add(dir + "/sub/x");
+		}
+		Files.write(fs.getPath("/org/file"), new byte[0]);
+		expected.add("file");
+		Files.write(fs.getPath("/org/skipped"), new byte[0]);
+
+		for (int maxPendingDirectories : new int[] { 1, 4096 }) {
+			DirectoryWalker.MAX_PENDING_DIRECTORIES = maxPendingDirectories;
+			List<String> walked = new ArrayList<>();
+			new DirectoryWalker<>(fs.getPath("/org"), (path, attrs) -> {
+				if (path.toString().equals("skipped"))
+					return null;
+				assertEquals(path.toString().matches("d\\d(/sub)?"), attrs.isDirectory());
+				return path.toString();
+			}).walk(walked::add);
+			assertEquals(expected, walked);
+		}
+	}
+
+	/**
+	 * 与另一个根目录合并遍历：每个相对路径只处理一次，同时得到两边的属性；只进入root下的子目录。
+	 */
+	@Test
+	public void testMerge() throws Exception {
+		Files.createDirectories(fs.getPath("/org/b"));
+		Files.createDirectories(fs.getPath("/dst/b"));
+		Files.createDirectories(fs.getPath("/dst/c"));
+		Files.write(fs.getPath("/org/a"), new byte[0]);
+		Files.write(fs.getPath("/org/b/x"), new byte[0]);
+		Files.write(fs.getPath("/dst/a"), new byte[0]);
+		Files.write(fs.getPath("/dst/b/y"), new byte[0]);
+		Files.write(fs.getPath("/dst/c/z"), new byte[0]);
+
+		List<String> walked = new ArrayList<>();
+		new DirectoryWalker<>(fs.getPath("/org"), fs.getPath("/dst"),
+				(path, attrs, otherAttrs) -> path + ":" + (attrs != null) + ":" + (otherAttrs != null))
+						.walk(walked::add);
+		assertEquals(Arrays.asList("a:true:true", "b:true:true", "b/x:true:false", "b/y:false:true", "c:false:true"),
+				walked);
+	}
+
+}
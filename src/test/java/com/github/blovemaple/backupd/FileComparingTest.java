@@ -0,0 +1,96 @@
+package com.github.blovemaple.backupd;
+
+import static com.github.blovemaple.backupd.utils.FileHashing.*;
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.blovemaple.backupd.utils.FileComparing;
+import com.github.blovemaple.backupd.utils.HashAlgorithm;
+
+public class FileComparingTest extends TestBase {
+	private int originalChunkSize;
+	private int originalSamples;
+	private int originalSampleSize;
+
+	@Before
+	public void setUp1() throws Exception {
+		originalChunkSize = FileComparing.CHUNK_SIZE;
+		originalSamples = FileComparing.SAMPLES;
+		originalSampleSize = FileComparing.SAMPLE_SIZE;
+		FileComparing.CHUNK_SIZE = 1000;
+		FileComparing.SAMPLES = 4;
+		FileComparing.SAMPLE_SIZE = 100;
+	}
+
+	@After
+	public void tearDown1() throws Exception {
+		FileComparing.CHUNK_SIZE = originalChunkSize;
+		FileComparing.SAMPLES = originalSamples;
+		FileComparing.SAMPLE_SIZE = originalSampleSize;
+	}
+
+	@Test
+	public void testEqualContentHash() throws Exception {
+		for (int size : new int[] { 0, 999, 1000, 10500 }) {
+			byte[] bytes = new byte[size];
+			new Random().nextBytes(bytes);
+			Path file1 = fs.getPath("/org/file1");
+			Path file2 = fs.getPath("/org/file2");
+			Files.write(file1, bytes);
+			Files.write(file2, bytes);
+			assertEquals(fileHash(file1), FileComparing.equalContentHash(file1, file2, HashAlgorithm.DEFAULT));
+
+			if (size > 0) {
+				bytes[size - 1]++;
+				Files.write(file2, bytes);
+				assertNull(FileComparing.equalContentHash(file1, file2, HashAlgorithm.DEFAULT));
+			}
+		}
+	}
+
+	/**
+	 * 抽样的位置（开头、末尾、中间均匀分布）有不同时发现不同，未抽到的位置的不同发现不了。
+	 */
+	@Test
+	public void testEqualSamples() throws Exception {
+		Path file1 = fs.getPath("/org/file1");
+		Path file2 = fs.getPath("/org/file2");
+
+		// 不大于样本总长度时不抽样
+		byte[] bytes = new byte[400];
+		new Random().nextBytes(bytes);
+		Files.write(file1, bytes);
+		bytes[0]++;
+		Files.write(file2, bytes);
+		assertTrue(FileComparing.equalSamples(file1, file2));
+
+		// 4个样本位置为0、300、600、900
+		bytes = new byte[1000];
+		new Random().nextBytes(bytes);
+		Files.write(file1, bytes);
+		Files.write(file2, bytes);
+		assertTrue(FileComparing.equalSamples(file1, file2));
+
+		for (int position : new int[] { 0, 350, 999 }) {
+			bytes[position]++;
+			Files.write(file2, bytes);
+			assertFalse(FileComparing.equalSamples(file1, file2));
+			bytes[position]--;
+		}
+
+		bytes[200]++;
+		Files.write(file2, bytes);
+		assertTrue(FileComparing.equalSamples(file1, file2));
+
+		Files.write(file2, new byte[999]);
+		assertFalse(FileComparing.equalSamples(file1, file2));
+	}
+
+}
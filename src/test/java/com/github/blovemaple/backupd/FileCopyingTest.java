@@ -0,0 +1,201 @@
+package com.github.blovemaple.backupd;
+
+import static com.github.blovemaple.backupd.utils.FileHashing.*;
+import static org.junit.Assert.*;
+
+import java.io.InterruptedIOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.blovemaple.backupd.utils.FileCopying;
+import com.github.blovemaple.backupd.utils.FileHashing;
+import com.github.blovemaple.backupd.utils.HashAlgorithm;
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+
+public class FileCopyingTest extends TestBase {
+	private int originalChunkSize;
+	private int originalDeltaBlockSize;
+	private final Path from = fs.getPath("/org/file");
+	private final Path to = fs.getPath("/org/copy");
+
+	@Before
+	public void setUp1() throws Exception {
+		originalChunkSize = FileCopying.CHUNK_SIZE;
+		FileCopying.CHUNK_SIZE = 1000;
+		originalDeltaBlockSize = FileCopying.DELTA_BLOCK_SIZE;
+		FileCopying.DELTA_BLOCK_SIZE = 1000;
+
+		byte[] bytes = new byte[10500];
+		new Random().nextBytes(bytes);
+		Files.write(from, bytes);
+		Files.setLastModifiedTime(from, FileTime.fromMillis(1000000));
+	}
+
+	@After
+	public void tearDown1() throws Exception {
+		FileCopying.CHUNK_SIZE = originalChunkSize;
+		FileCopying.DELTA_BLOCK_SIZE = originalDeltaBlockSize;
+	}
+
+	/**
+	 * 边复制边计算哈希值，连同算法保存到目标文件的扩展属性中，换算法或目标文件被修改后失效。
+	 */
+	@Test
+	public void testCopyHashing() throws Exception {
+		// 测试用的文件系统不支持扩展属性，另建一个支持的
+		try (FileSystem xattrFs = Jimfs.newFileSystem(
+				Configuration.unix().toBuilder().setAttributeViews("basic", "posix", "user").build())) {
+			Path xattrFrom = xattrFs.getPath("/file");
+			Path xattrTo = xattrFs.getPath("/copy");
+			Files.copy(from, xattrFrom);
+
+			AtomicLong progress = new AtomicLong();
+			String hash = FileCopying.copyHashing(xattrFrom, xattrTo, HashAlgorithm.XXHASH64, true,
+					progress::addAndGet);
+
+			assertEquals(10500, progress.get());
+			assertEquals(fileHash(xattrFrom, HashAlgorithm.XXHASH64), hash);
+			assertEquals(fileHash(xattrTo, HashAlgorithm.XXHASH64), hash);
+			assertEquals(hash, FileHashing.storedHash(xattrTo, HashAlgorithm.XXHASH64));
+			assertNull(FileHashing.storedHash(xattrTo, HashAlgorithm.MURMUR3_128));
+
+			Files.setLastModifiedTime(xattrTo, FileTime.fromMillis(2000000));
+			assertNull(FileHashing.storedHash(xattrTo, HashAlgorithm.XXHASH64));
+		}
+
+		// 不支持扩展属性时只复制
+		assertEquals(fileHash(from), FileCopying.copyHashing(from, to, HashAlgorithm.DEFAULT, true, bytes -> {
+		}));
+		assertNull(FileHashing.storedHash(to, HashAlgorithm.DEFAULT));
+	}
+
+	/**
+	 * 只重写不同的块，源文件变短时截断目标文件。
+	 */
+	@Test
+	public void testCopyDelta() throws Exception {
+		Files.copy(from, to, StandardCopyOption.COPY_ATTRIBUTES);
+
+		byte[] bytes = Files.readAllBytes(from);
+		bytes[2500]++;
+		bytes[7000]++;
+		Files.write(from, Arrays.copyOf(bytes, 9000));
+
+		AtomicLong progress = new AtomicLong();
+		FileCopying.copyDelta(from, to, true, progress::addAndGet);
+
+		assertEquals(2000, progress.get());
+		assertEquals(fileHash(from), fileHash(to));
+		assertEquals(Files.getLastModifiedTime(from), Files.getLastModifiedTime(to));
+	}
+
+	/**
+	 * 源文件只在末尾追加了内容时只复制追加的部分，否则不修改目标文件。
+	 */
+	@Test
+	public void testCopyAppended() throws Exception {
+		Files.copy(from, to, StandardCopyOption.COPY_ATTRIBUTES);
+
+		byte[] appended = new byte[2500];
+		new Random().nextBytes(appended);
+		Files.write(from, appended, StandardOpenOption.APPEND);
+
+		AtomicLong progress = new AtomicLong();
+		String hash = FileCopying.copyAppended(from, to, fileHash(to), HashAlgorithm.DEFAULT, true,
+				progress::addAndGet);
+		assertEquals(2500, progress.get());
+		assertEquals(fileHash(from), hash);
+		assertEquals(fileHash(from), fileHash(to));
+
+		byte[] bytes = Files.readAllBytes(from);
+		bytes[0]++;
+		Files.write(from, Arrays.copyOf(bytes, bytes.length + 100));
+		assertNull(FileCopying.copyAppended(from, to, hash, HashAlgorithm.DEFAULT, true, progress::addAndGet));
+		assertEquals(hash, fileHash(to));
+	}
+
+	/**
+	 * 抽样的位置都相同、但未抽到的位置被修改时，哈希值不同，不当作追加。
+	 */
+	@Test
+	public void testCopyAppendedUnsampledChange() throws Exception {
+		int originalSampleSize = FileCopying.APPEND_SAMPLE_SIZE;
+		FileCopying.APPEND_SAMPLE_SIZE = 100;
+		try {
+			Files.copy(from, to, StandardCopyOption.COPY_ATTRIBUTES);
+			String hash = fileHash(to);
+
+			// 8个位置抽样，每个位置100字节，5000不在抽样范围内
+			byte[] bytes = Files.readAllBytes(from);
+			bytes[5000]++;
+			Files.write(from, Arrays.copyOf(bytes, bytes.length + 100));
+
+			assertNull(FileCopying.copyAppended(from, to, hash, HashAlgorithm.DEFAULT, true, length -> {
+			}));
+			assertEquals(hash, fileHash(to));
+		} finally {
+			FileCopying.APPEND_SAMPLE_SIZE = originalSampleSize;
+		}
+	}
+
+	/**
+	 * 复制期间被中断时不留下复制了一部分的文件。
+	 */
+	@Test
+	public void testInterrupted() throws Exception {
+		AtomicLong progress = new AtomicLong();
+		try {
+			FileCopying.copyHashing(from, to, HashAlgorithm.DEFAULT, true, bytes -> {
+				if (progress.addAndGet(bytes) >= 3000)
+					Thread.currentThread().interrupt();
+			});
+			fail();
+		} catch (InterruptedIOException e) {
+			assertTrue(Thread.interrupted());
+		}
+
+		assertEquals(3000, progress.get());
+		assertTrue(Files.notExists(to));
+	}
+
+	/**
+	 * 读写通道时被中断（通道被关闭）同样当作中断处理，不留下复制了一部分的文件。
+	 */
+	@Test
+	public void testInterruptedInChannel() throws Exception {
+		// 测试用的文件系统的通道不响应中断，用默认文件系统
+		Path dir = Files.createTempDirectory("backupd-copying");
+		Path diskFrom = dir.resolve("file");
+		Path diskTo = dir.resolve("copy");
+		try {
+			Files.copy(from, diskFrom);
+			try {
+				// 在两次检查之间中断，下次读取时通道被关闭
+				FileCopying.copyHashing(diskFrom, diskTo, HashAlgorithm.DEFAULT, true,
+						bytes -> Thread.currentThread().interrupt());
+				fail();
+			} catch (InterruptedIOException e) {
+				assertTrue(Thread.interrupted());
+			}
+
+			assertTrue(Files.notExists(diskTo));
+		} finally {
+			Files.deleteIfExists(diskFrom);
+			Files.deleteIfExists(diskTo);
+			Files.delete(dir);
+		}
+	}
+
+}
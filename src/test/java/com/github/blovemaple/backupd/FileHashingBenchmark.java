@@ -0,0 +1,63 @@
+package com.github.blovemaple.backupd;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import com.github.blovemaple.backupd.utils.FileHashing;
+import com.github.blovemaple.backupd.utils.FileHashing.TreeHasher;
+import com.github.blovemaple.backupd.utils.HashAlgorithm;
+
+/**
+ * 比较各算法单线程边读边计算和{@link FileHashing#fileHash}并行计算哈希值的速度。在真实文件系统上运行，不属于单元测试。<br>
+ * 参数：文件大小（MiB，默认1024）、次数（默认3）。
+ *
+ * @author blovemaple <blovemaple2010(at)gmail.com>
+ */
+public class FileHashingBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int sizeMiB = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+		Path file = Files.createTempFile("backupd-hashing", ".bin");
+		try {
+			byte[] buffer = new byte[1024 * 1024];
+			Random random = new Random();
+			try (OutputStream out = Files.newOutputStream(file)) {
+				for (int i = 0; i < sizeMiB; i++) {
+					random.nextBytes(buffer);
+					out.write(buffer);
+				}
+			}
+
+			for (int round = 0; round < rounds; round++) {
+				for (HashAlgorithm algorithm : HashAlgorithm.values()) {
+					long start = System.nanoTime();
+					TreeHasher hasher = new TreeHasher(algorithm);
+					try (InputStream in = Files.newInputStream(file)) {
+						int read;
+						while ((read = in.read(buffer)) >= 0)
+							hasher.putBytes(buffer, 0, read);
+					}
+					String sequentialHash = hasher.hash();
+					long sequentialNanos = System.nanoTime() - start;
+
+					start = System.nanoTime();
+					String parallelHash = FileHashing.fileHash(file, algorithm);
+					long parallelNanos = System.nanoTime() - start;
+
+					if (!sequentialHash.equals(parallelHash))
+						throw new IllegalStateException("Hash mismatch: " + sequentialHash + " " + parallelHash);
+					System.out.printf("round %d %s: sequential %.1f MiB/s, parallel %.1f MiB/s%n", round,
+							algorithm.id(), sizeMiB * 1e9 / sequentialNanos, sizeMiB * 1e9 / parallelNanos);
+				}
+			}
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+}
@@ -0,0 +1,64 @@
+package com.github.blovemaple.backupd;
+
+import static com.github.blovemaple.backupd.utils.FileHashing.*;
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.github.blovemaple.backupd.utils.FileHashing.TreeHasher;
+import com.github.blovemaple.backupd.utils.HashAlgorithm;
+import com.google.common.hash.Hashing;
+
+public class FileHashingTest extends TestBase {
+
+	/**
+	 * 各算法并行分段计算的结果与边读边计算的相同。
+	 */
+	@Test
+	public void testTreeHash() throws Exception {
+		Random random = new Random();
+		Path file = fs.getPath("/org/file");
+		for (int size : new int[] { 0, 1000, SEGMENT_SIZE - 1, SEGMENT_SIZE, SEGMENT_SIZE + 1,
+				2 * SEGMENT_SIZE + 123 }) {
+			byte[] bytes = new byte[size];
+			random.nextBytes(bytes);
+			Files.write(file, bytes);
+
+			for (HashAlgorithm algorithm : HashAlgorithm.values()) {
+				// 按不整齐的块边读边计算
+				TreeHasher hasher = new TreeHasher(algorithm);
+				for (int offset = 0; offset < size; offset += 100_003)
+					hasher.putBytes(bytes, offset, Math.min(100_003, size - offset));
+				assertEquals(algorithm + " size " + size, hasher.hash(), fileHash(file, algorithm));
+			}
+
+			// 不超过一段时与直接计算的相同，murmur3_128与支持选择算法前的哈希值兼容
+			if (size <= SEGMENT_SIZE) {
+				assertEquals(Hashing.murmur3_128().hashBytes(bytes).toString(), fileHash(file));
+				assertEquals(Hashing.crc32c().hashBytes(bytes).toString(),
+						fileHash(file, HashAlgorithm.CRC32C));
+			}
+		}
+	}
+
+	/**
+	 * xxHash64的参考值。
+	 */
+	@Test
+	public void testXxHash64() throws Exception {
+		Path file = fs.getPath("/org/file");
+		String[][] vectors = { { "", "ef46db3751d8e999" }, { "a", "d24ec4f1a98c6e5b" },
+				{ "abc", "44bc2cf5ad770999" },
+				{ "Nobody inspects the spammish repetition", "fbcea83c8a378bf1" } };
+		for (String[] vector : vectors) {
+			Files.write(file, vector[0].getBytes(StandardCharsets.UTF_8));
+			assertEquals(vector[0], vector[1], fileHash(file, HashAlgorithm.XXHASH64));
+		}
+	}
+
+}
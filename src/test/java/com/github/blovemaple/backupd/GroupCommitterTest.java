@@ -0,0 +1,111 @@
+package com.github.blovemaple.backupd;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.blovemaple.backupd.machine.GroupCommitter;
+
+public class GroupCommitterTest extends TestBase {
+	private long originalMaxDelayMillis;
+	private long originalMaxPendingBytes;
+
+	@Before
+	public void setUp1() throws Exception {
+		originalMaxDelayMillis = GroupCommitter.MAX_DELAY_MILLIS;
+		originalMaxPendingBytes = GroupCommitter.MAX_PENDING_BYTES;
+		GroupCommitter.MAX_DELAY_MILLIS = 500;
+		GroupCommitter.MAX_PENDING_BYTES = 1000;
+	}
+
+	@After
+	public void tearDown1() throws Exception {
+		GroupCommitter.MAX_DELAY_MILLIS = originalMaxDelayMillis;
+		GroupCommitter.MAX_PENDING_BYTES = originalMaxPendingBytes;
+	}
+
+	/**
+	 * 文件攒够字节数时立即提交，关闭时提交剩余的。
+	 */
+	@Test
+	public void testCommitByBytes() throws Exception {
+		// 测试期间不会到时间自动提交
+		GroupCommitter.MAX_DELAY_MILLIS = 60000;
+		Path file1 = fs.getPath("/org/file1");
+		Path file2 = fs.getPath("/org/file2");
+		Files.write(file1, Arrays.asList("abc"));
+		Files.write(file2, Arrays.asList("abc"));
+
+		try (GroupCommitter committer = new GroupCommitter()) {
+			committer.add(file1, 100);
+			committer.add(file1, 600);
+			assertEquals(0, committer.committedFiles());
+
+			committer.add(file2, 600);
+			waitCommitted(committer, 2);
+
+			AtomicBoolean committed = new AtomicBoolean();
+			committer.add(file1, 100, () -> committed.set(true));
+			committer.close();
+			assertEquals(3, committer.committedFiles());
+			assertTrue(committed.get());
+		}
+	}
+
+	/**
+	 * 没有攒够字节数时，等到最长延迟时提交。
+	 */
+	@Test
+	public void testCommitByDelay() throws Exception {
+		Path file = fs.getPath("/org/file");
+		Files.write(file, Arrays.asList("abc"));
+
+		try (GroupCommitter committer = new GroupCommitter()) {
+			long startTime = System.currentTimeMillis();
+			committer.add(file, 100);
+			waitCommitted(committer, 1);
+			assertTrue(System.currentTimeMillis() - startTime >= GroupCommitter.MAX_DELAY_MILLIS);
+		}
+	}
+
+	/**
+	 * fsync失败的文件不执行提交后操作。
+	 */
+	@Test
+	public void testSyncFailed() throws Exception {
+		Path file = fs.getPath("/org/file");
+		Files.write(file, Arrays.asList("abc"));
+		// 目录不能作为普通文件打开，fsync失败
+		Path dir = Files.createDirectory(fs.getPath("/org/dir"));
+
+		AtomicBoolean fileCommitted = new AtomicBoolean(), dirCommitted = new AtomicBoolean();
+		try (GroupCommitter committer = new GroupCommitter()) {
+			committer.add(dir, 100, () -> dirCommitted.set(true));
+			committer.add(file, 100, () -> fileCommitted.set(true));
+			waitCommitted(committer, 1);
+		}
+		assertTrue(fileCommitted.get());
+		assertFalse(dirCommitted.get());
+	}
+
+	/**
+	 * 等待已提交的文件数达到指定值，超时则失败。
+	 */
+	private static void waitCommitted(GroupCommitter committer, long files) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (committer.committedFiles() < files) {
+			if (System.currentTimeMillis() > deadline)
+				fail("Committed " + committer.committedFiles() + " files, expected " + files);
+			Thread.sleep(10);
+		}
+		assertEquals(files, committer.committedFiles());
+	}
+
+}
@@ -0,0 +1,115 @@
+package com.github.blovemaple.backupd;
+
+import static com.github.blovemaple.backupd.utils.FileHashing.*;
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.github.blovemaple.backupd.task.HashIndex;
+import com.github.blovemaple.backupd.utils.HashAlgorithm;
+
+public class HashIndexTest extends TestBase {
+	private final Path indexFile = fs.getPath("/state/hashes/test.index");
+
+	/**
+	 * 元数据没有变化时使用记录的哈希值，变化后重新计算。
+	 */
+	@Test
+	public void testReuse() throws Exception {
+		Path file = fs.getPath("/org/file");
+		Files.write(file, Arrays.asList("abc"));
+		FileTime time = Files.getLastModifiedTime(file);
+		String originalHash = fileHash(file);
+
+		try (HashIndex index = new HashIndex(indexFile, HashAlgorithm.MURMUR3_128)) {
+			assertEquals(originalHash, index.fromHash(fs.getPath("file"), file));
+		}
+
+		// 内容变化而大小和修改时间不变，仍然使用重启前记录的哈希值
+		Files.write(file, Arrays.asList("xyz"));
+		Files.setLastModifiedTime(file, time);
+		try (HashIndex index = new HashIndex(indexFile, HashAlgorithm.MURMUR3_128)) {
+			assertEquals(originalHash, index.fromHash(fs.getPath("file"), file));
+
+			Files.setLastModifiedTime(file, FileTime.fromMillis(time.toMillis() + 1000));
+			assertEquals(fileHash(file), index.fromHash(fs.getPath("file"), file));
+		}
+	}
+
+	/**
+	 * 换算法后丢弃重启前记录的哈希值。
+	 */
+	@Test
+	public void testAlgorithmChanged() throws Exception {
+		Path file = fs.getPath("/org/file");
+		Files.write(file, Arrays.asList("abc"));
+		FileTime time = Files.getLastModifiedTime(file);
+
+		try (HashIndex index = new HashIndex(indexFile, HashAlgorithm.MURMUR3_128)) {
+			index.fromHash(fs.getPath("file"), file);
+		}
+
+		Files.write(file, Arrays.asList("xyz"));
+		Files.setLastModifiedTime(file, time);
+		try (HashIndex index = new HashIndex(indexFile, HashAlgorithm.XXHASH64)) {
+			assertNull(index.recordedFromHash(fs.getPath("file"), file));
+			assertEquals(fileHash(file, HashAlgorithm.XXHASH64), index.fromHash(fs.getPath("file"), file));
+		}
+		try (HashIndex index = new HashIndex(indexFile, HashAlgorithm.XXHASH64)) {
+			assertEquals(fileHash(file, HashAlgorithm.XXHASH64),
+					index.recordedFromHash(fs.getPath("file"), file));
+		}
+	}
+
+	/**
+	 * 复制后目标文件直接使用源文件的哈希值。
+	 */
+	@Test
+	public void testCopied() throws Exception {
+		Path fromFile = fs.getPath("/org/file");
+		Files.write(fromFile, Arrays.asList("abc"));
+		Path toFile = fs.getPath("/dst/file");
+		Files.createDirectories(toFile.getParent());
+		Files.copy(fromFile, toFile);
+
+		try (HashIndex index = new HashIndex(indexFile, HashAlgorithm.MURMUR3_128)) {
+			String hash = index.fromHash(fs.getPath("file"), fromFile);
+			// 让目标文件内容不同但大小相同，以确认没有读取目标文件
+			Files.write(toFile, Arrays.asList("xyz"));
+			index.copied(fs.getPath("file"), fromFile, toFile, null);
+			assertEquals(hash, index.toHash(fs.getPath("file"), toFile));
+		}
+	}
+
+	/**
+	 * 记录数达到上限后不再记录新的路径，已记录的路径仍然更新。
+	 */
+	@Test
+	public void testMaxRecords() throws Exception {
+		int originalMaxRecords = HashIndex.MAX_RECORDS;
+		HashIndex.MAX_RECORDS = 2;
+		try (HashIndex index = new HashIndex(indexFile, HashAlgorithm.MURMUR3_128)) {
+			Path[] files = new Path[3];
+			for (int i = 0; i < files.length; i++) {
+				files[i] = fs.getPath("/org/file" + i);
+				Files.write(files[i], Arrays.asList("abc" + i));
+				index.fromHash(fs.getPath("file" + i), files[i]);
+			}
+			assertNotNull(index.recordedFromHash(fs.getPath("file0"), files[0]));
+			assertNotNull(index.recordedFromHash(fs.getPath("file1"), files[1]));
+			assertNull(index.recordedFromHash(fs.getPath("file2"), files[2]));
+
+			Files.write(files[0], Arrays.asList("xyz"));
+			assertEquals(fileHash(files[0]), index.fromHash(fs.getPath("file0"), files[0]));
+			assertEquals(fileHash(files[0]), index.recordedFromHash(fs.getPath("file0"), files[0]));
+		} finally {
+			HashIndex.MAX_RECORDS = originalMaxRecords;
+		}
+	}
+
+}
@@ -0,0 +1,60 @@
+package com.github.blovemaple.backupd;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import com.github.blovemaple.backupd.utils.PathFilter;
+
+public class PathFilterTest extends TestBase {
+
+	/**
+	 * 匹配任意一个include且不在exclude的子树中。
+	 */
+	@Test
+	public void testMatches() throws Exception {
+		PathFilter filter = PathFilter.of(fs, Arrays.asList("docs/**/*.pdf", "*.txt"),
+				Arrays.asList("**/node_modules", "docs/tmp"));
+
+		assertTrue(filter.matches(fs.getPath("docs/a/b.pdf")));
+		assertTrue(filter.matches(fs.getPath("a.txt")));
+		assertFalse(filter.matches(fs.getPath("docs/a/b.doc")));
+		assertFalse(filter.matches(fs.getPath("a/b.txt")));
+		assertFalse(filter.matches(fs.getPath("docs/a/node_modules/b.pdf")));
+		assertFalse(filter.matches(fs.getPath("docs/tmp/a/b.pdf")));
+
+		assertTrue(PathFilter.ALL.matches(fs.getPath("any/path")));
+		assertTrue(PathFilter.of(fs, Collections.emptyList(), Arrays.asList("x")).matches(fs.getPath("y/x1")));
+	}
+
+	/**
+	 * 按include的各段判断目录下是否可能有匹配的路径，exclude的目录下都不可能。
+	 */
+	@Test
+	public void testMayMatchUnder() throws Exception {
+		PathFilter filter = PathFilter.of(fs, Arrays.asList("docs/**/*.pdf", "src/*/main/*.java"),
+				Arrays.asList("**/node_modules"));
+
+		assertTrue(filter.mayMatchUnder(fs.getPath("")));
+		assertTrue(filter.mayMatchUnder(fs.getPath("docs")));
+		assertTrue(filter.mayMatchUnder(fs.getPath("docs/a/b/c")));
+		assertFalse(filter.mayMatchUnder(fs.getPath("docs/node_modules")));
+		assertFalse(filter.mayMatchUnder(fs.getPath("lib")));
+
+		assertTrue(filter.mayMatchUnder(fs.getPath("src/x")));
+		assertTrue(filter.mayMatchUnder(fs.getPath("src/x/main")));
+		assertFalse(filter.mayMatchUnder(fs.getPath("src/x/test")));
+		// 段数比include少
+		assertFalse(filter.mayMatchUnder(fs.getPath("src/x/main/y")));
+
+		// {}中有“/”时无法分段，总是可能匹配
+		PathFilter braces = PathFilter.of(fs, Arrays.asList("{a/b,c}/d"), Collections.emptyList());
+		assertTrue(braces.mayMatchUnder(fs.getPath("e/f")));
+
+		assertTrue(PathFilter.ALL.mayMatchUnder(fs.getPath("any/dir")));
+	}
+
+}
@@ -0,0 +1,114 @@
+package com.github.blovemaple.backupd;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.github.blovemaple.backupd.task.ScanManifest;
+
+public class ScanManifestTest extends TestBase {
+
+	/**
+	 * 写入后读回：目录没有变化时返回记录的列举，文件大小和修改时间没有变化、上次已一致时认为仍然一致；
+	 * 适用条件不同时不使用，没有commit的清单不替换原来的。
+	 */
+	@Test
+	public void testManifest() throws Exception {
+		Path manifestFile = fs.getPath("/state/test.manifest");
+		Path dir = fs.getPath("/org/dir");
+		Files.createDirectories(dir);
+		Path file1 = Files.write(dir.resolve("file1"), new byte[10]);
+		Path file2 = Files.write(dir.resolve("file2"), new byte[10]);
+		FileTime old = FileTime.fromMillis(System.currentTimeMillis() - 60000);
+		Files.setLastModifiedTime(file1, old);
+		Files.setLastModifiedTime(file2, old);
+		Files.setLastModifiedTime(dir, old);
+
+		try (ScanManifest.Writer writer = new ScanManifest.Writer(manifestFile, "key", System.currentTimeMillis())) {
+			List<ScanManifest.Entry> entries = new ArrayList<>();
+			entries.add(new ScanManifest.Entry("file1", attrs(file1), true));
+			entries.add(new ScanManifest.Entry("file2", attrs(file2), false));
+			writer.write(new ScanManifest.Directory("dir", old.toMillis(), entries));
+			writer.write(new ScanManifest.Directory("", -1, new ArrayList<>()));
+			writer.commit();
+		}
+
+		assertNull(ScanManifest.open(manifestFile, "other key"));
+		try (ScanManifest manifest = ScanManifest.open(manifestFile, "key")) {
+			assertNull(manifest.directory(fs.getPath("none")));
+			assertNull(manifest.directory(fs.getPath("")).namesIfUnchanged(attrs(dir)));
+
+			ScanManifest.Directory directory = manifest.directory(fs.getPath("dir"));
+			assertEquals(Arrays.asList("file1", "file2"), directory.namesIfUnchanged(attrs(dir)));
+			assertTrue(directory.entry("file1").isUnchangedInSync(attrs(file1)));
+			assertFalse(directory.entry("file2").isUnchangedInSync(attrs(file2)));
+			assertNull(directory.entry("file3"));
+
+			Files.write(file1, new byte[10]);
+			assertFalse(directory.entry("file1").isUnchangedInSync(attrs(file1)));
+			Files.write(dir.resolve("file3"), new byte[10]);
+			assertNull(directory.namesIfUnchanged(attrs(dir)));
+		}
+
+		try (ScanManifest.Writer writer = new ScanManifest.Writer(manifestFile, "key", System.currentTimeMillis())) {
+			writer.write(new ScanManifest.Directory("", -1, new ArrayList<>()));
+		}
+		try (ScanManifest manifest = ScanManifest.open(manifestFile, "key")) {
+			assertNotNull(manifest.directory(fs.getPath("dir")));
+		}
+	}
+
+	/**
+	 * 从检查点继续写：检查点之前的记录保留，之后的丢弃；适用条件不同时不继续；commit后检查点被删除。
+	 */
+	@Test
+	public void testCheckpoint() throws Exception {
+		Path manifestFile = fs.getPath("/state/test.manifest");
+		long scanTime = System.currentTimeMillis() - 60000;
+
+		try (ScanManifest.Writer writer = new ScanManifest.Writer(manifestFile, "key", scanTime)) {
+			assertNull(writer.cursor());
+			writer.write(new ScanManifest.Directory("", -1, new ArrayList<>()));
+			writer.write(new ScanManifest.Directory("a", -1, new ArrayList<>()));
+			writer.checkpoint("a");
+			writer.write(new ScanManifest.Directory("b", -1, new ArrayList<>()));
+		}
+
+		assertNull(ScanManifest.Writer.resume(manifestFile, "other key"));
+		try (ScanManifest.Writer writer = ScanManifest.Writer.resume(manifestFile, "key")) {
+			assertEquals("a", writer.cursor());
+			assertEquals(scanTime, writer.scanTime());
+			writer.write(new ScanManifest.Directory("c", -1, new ArrayList<>()));
+			writer.commit();
+		}
+		assertNull(ScanManifest.Writer.resume(manifestFile, "key"));
+
+		try (ScanManifest manifest = ScanManifest.open(manifestFile, "key")) {
+			assertEquals(scanTime, manifest.scanTime());
+			assertNotNull(manifest.directory(fs.getPath("")));
+			assertNotNull(manifest.directory(fs.getPath("a")));
+			assertNull(manifest.directory(fs.getPath("b")));
+			assertNotNull(manifest.directory(fs.getPath("c")));
+		}
+
+		// 重新开始写时原来的检查点不再有效
+		try (ScanManifest.Writer writer = new ScanManifest.Writer(manifestFile, "key", scanTime)) {
+			writer.checkpoint("");
+		}
+		new ScanManifest.Writer(manifestFile, "key", scanTime).close();
+		assertNull(ScanManifest.Writer.resume(manifestFile, "key"));
+	}
+
+	private static BasicFileAttributes attrs(Path path) throws Exception {
+		return Files.readAttributes(path, BasicFileAttributes.class);
+	}
+
+}
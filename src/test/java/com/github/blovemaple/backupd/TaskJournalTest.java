@@ -0,0 +1,176 @@
+package com.github.blovemaple.backupd;
+
+import static com.github.blovemaple.backupd.task.BackupConf.BackupConfType.*;
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import com.github.blovemaple.backupd.machine.TaskJournal;
+import com.github.blovemaple.backupd.task.BackupConf;
+import com.github.blovemaple.backupd.task.BackupTask;
+
+public class TaskJournalTest extends TestBase {
+	private final Path journalFile = fs.getPath("/state/queue.journal");
+	private final BackupConf conf = new BackupConf(fs.getPath("/org"), fs.getPath("/dst"), DAEMON);
+
+	@Test
+	public void testRecover() throws Exception {
+		try (TaskJournal journal = new TaskJournal(journalFile)) {
+			BackupTask done = task("done");
+			journal.submitted(done);
+			journal.fetched(done);
+			journal.done(done);
+
+			BackupTask running = task("running");
+			journal.submitted(running);
+			journal.fetched(running);
+
+			BackupTask discarded = task("discarded");
+			journal.submitted(discarded);
+			journal.discarded(discarded);
+
+			// 执行期间再次提交的任务，执行完毕后仍然有效
+			BackupTask resubmitted = task("resubmitted");
+			journal.submitted(resubmitted);
+			journal.fetched(resubmitted);
+			journal.submitted(task("resubmitted"));
+			journal.done(resubmitted);
+
+			journal.submitted(new BackupTask(conf, fs.getPath("dir"), true));
+		}
+
+		try (TaskJournal journal = new TaskJournal(journalFile)) {
+			List<BackupTask> tasks = recover(journal);
+			assertEquals(3, tasks.size());
+			assertEquals(task("running"), tasks.get(0));
+			assertEquals(task("resubmitted"), tasks.get(1));
+			assertEquals(fs.getPath("dir"), tasks.get(2).relativePath());
+			assertTrue(tasks.get(2).isSubtree());
+
+			// 重新提交或丢弃之前仍然保留
+			assertEquals(3, journal.recover(conf).size());
+			journal.submitted(tasks.get(0));
+			journal.discarded(tasks.get(1));
+			journal.submitted(tasks.get(2));
+			assertTrue(journal.recover(conf).isEmpty());
+		}
+
+		try (TaskJournal journal = new TaskJournal(journalFile)) {
+			List<BackupTask> tasks = recover(journal);
+			assertEquals(2, tasks.size());
+			assertEquals(task("running"), tasks.get(0));
+			assertEquals(fs.getPath("dir"), tasks.get(1).relativePath());
+		}
+	}
+
+	/**
+	 * 恢复期间重写文件时，还没有重新提交的任务不丢失。
+	 */
+	@Test
+	public void testCompactWhileRecovering() throws Exception {
+		int originalMinRecords = TaskJournal.COMPACT_MIN_RECORDS;
+		TaskJournal.COMPACT_MIN_RECORDS = 10;
+		try {
+			try (TaskJournal journal = new TaskJournal(journalFile)) {
+				for (int i = 0; i < 3; i++)
+					journal.submitted(task("recovered" + i));
+			}
+
+			try (TaskJournal journal = new TaskJournal(journalFile)) {
+				journal.submitted(recover(journal).get(0));
+				for (int i = 0; i < 100; i++) {
+					BackupTask task = task("file" + i);
+					journal.submitted(task);
+					journal.fetched(task);
+					journal.done(task);
+				}
+			}
+
+			try (TaskJournal journal = new TaskJournal(journalFile)) {
+				assertEquals(3, recover(journal).size());
+			}
+		} finally {
+			TaskJournal.COMPACT_MIN_RECORDS = originalMinRecords;
+		}
+	}
+
+	@Test
+	public void testFlush() throws Exception {
+		long originalInterval = TaskJournal.FLUSH_INTERVAL_MILLIS;
+		TaskJournal.FLUSH_INTERVAL_MILLIS = 60000;
+		try (TaskJournal journal = new TaskJournal(journalFile)) {
+			// 记录先写到缓冲区
+			journal.submitted(task("file"));
+			assertEquals(0, Files.size(journalFile));
+
+			journal.flush();
+			assertTrue(Files.size(journalFile) > 0);
+
+			// fsync之前也先flush
+			long flushedSize = Files.size(journalFile);
+			journal.submitted(task("file2"));
+			journal.force();
+			assertTrue(Files.size(journalFile) > flushedSize);
+		} finally {
+			TaskJournal.FLUSH_INTERVAL_MILLIS = originalInterval;
+		}
+	}
+
+	@Test
+	public void testDiscardedConf() throws Exception {
+		BackupConf conf2 = new BackupConf(fs.getPath("/org"), fs.getPath("/dst2"), DAEMON);
+		try (TaskJournal journal = new TaskJournal(journalFile)) {
+			journal.submitted(task("file1"));
+			BackupTask fetched = task("file2");
+			journal.submitted(fetched);
+			journal.fetched(fetched);
+			journal.submitted(new BackupTask(conf2, fs.getPath("file")));
+
+			journal.discardedConf(conf);
+		}
+
+		try (TaskJournal journal = new TaskJournal(journalFile)) {
+			assertTrue(journal.recover(conf).isEmpty());
+			assertEquals(1, journal.recover(conf2).size());
+		}
+	}
+
+	@Test
+	public void testCompact() throws Exception {
+		int originalMinRecords = TaskJournal.COMPACT_MIN_RECORDS;
+		TaskJournal.COMPACT_MIN_RECORDS = 10;
+		try {
+			try (TaskJournal journal = new TaskJournal(journalFile)) {
+				journal.submitted(task("kept"));
+				for (int i = 0; i < 100; i++) {
+					BackupTask task = task("file" + i);
+					journal.submitted(task);
+					journal.fetched(task);
+					journal.done(task);
+				}
+			}
+
+			try (TaskJournal journal = new TaskJournal(journalFile)) {
+				List<BackupTask> tasks = recover(journal);
+				assertEquals(1, tasks.size());
+				assertEquals(task("kept"), tasks.get(0));
+			}
+		} finally {
+			TaskJournal.COMPACT_MIN_RECORDS = originalMinRecords;
+		}
+	}
+
+	private BackupTask task(String relativePath) {
+		return new BackupTask(conf, fs.getPath(relativePath));
+	}
+
+	private List<BackupTask> recover(TaskJournal journal) {
+		return journal.recover(conf).stream().map(entry -> entry.toTask(conf)).collect(Collectors.toList());
+	}
+
+}
@@ -14,7 +14,7 @@ import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 
-import com.github.blovemaple.backupd.machine.BackupDelayingQueue;
+import com.github.blovemaple.backupd.machine.AdaptiveDebounce;
 import com.github.blovemaple.backupd.task.DetectingTask;
 import com.github.blovemaple.backupd.task.RealTimeDetectingTask;
 import com.google.common.jimfs.Configuration;
@@ -27,7 +27,9 @@ public class TestBase {
 	@BeforeClass
 	public static void setUpBeforeClass() throws Exception {
 		// 指定延迟备份时间、ready等待时间、事件提取时间，测试case依赖这些时间
-		BackupDelayingQueue.DELAY_SECONDS = 3;
+		AdaptiveDebounce.MIN_DELAY_MILLIS = 3000;
+		// 测试case按固定延迟等待，不让延迟随修改频率加倍
+		AdaptiveDebounce.HOT_FACTOR = 1;
 		DetectingTask.READY_WAITING_SECONDS = 1;
 		RealTimeDetectingTask.EVENT_POLL_SECONDS = 1;
 		// 测试开始时创建JimFS内存文件系统